@@ -0,0 +1,73 @@
+package com.example.android.pets.benchmark;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Runs {@link PetBenchmark} and writes the report as JSON under the app's external files,
+ * in benchmark/. Debug builds only. The service is not exported, so on an emulator or a
+ * userdebug device start it as root with
+ * <pre>
+ * adb root
+ * adb shell am startservice -n com.example.android.pets/.benchmark.BenchmarkService \
+ *     --eia sizes 1000,100000,1000000 --ei iterations 1000
+ * </pre>
+ * and pull the file named in the log. Both extras are optional.
+ */
+public class BenchmarkService extends IntentService {
+
+    private static final String LOG_TAG = BenchmarkService.class.getSimpleName( );
+
+    public static final String EXTRA_SIZES = "sizes";
+    public static final String EXTRA_ITERATIONS = "iterations";
+
+    private static final int[] DEFAULT_SIZES = {1000, 100000, 1000000};
+    private static final int DEFAULT_ITERATIONS = 1000;
+
+    public BenchmarkService() {
+        super(LOG_TAG);
+    }
+
+    @Override
+    protected void onHandleIntent( Intent intent ) {
+        int[] sizes = intent.getIntArrayExtra(EXTRA_SIZES);
+        if (sizes == null) {
+            sizes = DEFAULT_SIZES;
+        }
+        int iterations = intent.getIntExtra(EXTRA_ITERATIONS, DEFAULT_ITERATIONS);
+
+        try {
+            JSONObject report = new PetBenchmark(this, iterations).run(sizes);
+            File file = write(report);
+            Log.i(LOG_TAG, "Benchmark report written to " + file);
+        } catch (JSONException | IOException e) {
+            Log.e(LOG_TAG, "Benchmark failed", e);
+        }
+    }
+
+    private File write( JSONObject report ) throws IOException, JSONException {
+        File dir = new File(getExternalFilesDir(null), "benchmark");
+        if (!dir.isDirectory( ) && !dir.mkdirs( )) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File file = new File(dir, "pets-" + report.getString("version") + "-" +
+                report.getLong("started_at") + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(report.toString(2));
+        } finally {
+            writer.close( );
+        }
+        return file;
+    }
+}
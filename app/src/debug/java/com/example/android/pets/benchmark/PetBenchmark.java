@@ -0,0 +1,284 @@
+package com.example.android.pets.benchmark;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.PetListItem;
+import com.example.android.pets.PetProvider;
+import com.example.android.pets.data.CatalogFilter;
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetCodec;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.StorageProfile;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.example.android.pets.data.CatalogFilter.PAGE_PROJECTION;
+import static com.example.android.pets.data.CatalogFilter.PAGE_SIZE;
+import static com.example.android.pets.data.PetContract.SORT_NAME;
+
+/**
+ * Measures the provider operations on a scratch copy of the schema, seeded with a given number
+ * of pets. pets.db is never touched. For each operation it reports throughput, latency
+ * percentiles and bytes allocated per call, as JSON so runs of two releases can be compared.
+ * <p>
+ * Runs on a device, see {@link BenchmarkService}, and on the JVM under Robolectric, see
+ * PetBenchmarkTest, which is what CI compares between releases.
+ */
+public final class PetBenchmark {
+
+    private static final String LOG_TAG = PetBenchmark.class.getSimpleName( );
+
+    static final String DATABASE_NAME = "pets-benchmark.db";
+
+    /* Pets inserted per transaction while seeding */
+    private static final int SEED_BATCH = 10000;
+
+    /* Calls run before measuring, to warm the caches and the JIT */
+    private static final int WARMUP = 100;
+
+    private static final String[] BREEDS = {"Labrador", "Poodle", "Beagle", "Pug", "Mixed"};
+
+    /**
+     * Counts the bytes the calling thread allocates between {@link #start()} and
+     * {@link #stop()}. The device and the JVM count them differently.
+     */
+    public interface AllocationCounter {
+        void start();
+
+        long stop();
+    }
+
+    /* The counters of the Android runtime */
+    @SuppressWarnings("deprecation")
+    public static final AllocationCounter DEVICE_ALLOCATIONS = new AllocationCounter( ) {
+        @Override
+        public void start() {
+            Debug.startAllocCounting( );
+            Debug.resetThreadAllocSize( );
+        }
+
+        @Override
+        public long stop() {
+            long allocated = Debug.getThreadAllocSize( );
+            Debug.stopAllocCounting( );
+            return allocated;
+        }
+    };
+
+    private final Context context;
+    private final int iterations;
+    private final AllocationCounter allocations;
+
+    /* Same seed on every run, so two runs see the same data and the same access pattern */
+    private final Random random = new Random(42);
+
+    public PetBenchmark( Context context, int iterations ) {
+        this(context, iterations, DEVICE_ALLOCATIONS);
+    }
+
+    public PetBenchmark( Context context, int iterations, AllocationCounter allocations ) {
+        this.context = context.getApplicationContext( );
+        this.iterations = iterations;
+        this.allocations = allocations;
+    }
+
+    /**
+     * Run every operation once per database size. Blocks for a long time on large sizes, so
+     * call it off the main thread.
+     */
+    public JSONObject run( int[] sizes ) throws JSONException {
+        JSONObject report = new JSONObject( );
+        report.put("version", BuildConfig.VERSION_NAME);
+        report.put("version_code", BuildConfig.VERSION_CODE);
+        report.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        report.put("schema_version", PetDbHelper.DATABASE_VERSION);
+        report.put("storage_profile", BuildConfig.DB_STORAGE_PROFILE);
+        report.put("iterations", iterations);
+        report.put("started_at", System.currentTimeMillis( ));
+
+        JSONArray results = new JSONArray( );
+        for (int rows : sizes) {
+            runSize(rows, results);
+        }
+        report.put("results", results);
+        return report;
+    }
+
+    private void runSize( int rows, JSONArray results ) throws JSONException {
+        context.deleteDatabase(DATABASE_NAME);
+        BenchmarkProvider provider = new BenchmarkProvider( );
+        provider.attachInfo(context, null);
+        try {
+            // Not SystemClock: Robolectric stops it
+            long seedStart = System.nanoTime( );
+            seed(provider, rows);
+            Log.i(LOG_TAG, "Seeded " + rows + " pets in " +
+                    (System.nanoTime( ) - seedStart) / 1000000 + " ms");
+
+            for (Operation operation : operations(provider, rows)) {
+                results.put(measure(operation, rows));
+            }
+        } finally {
+            provider.shutdown( );
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    private void seed( PetProvider provider, int rows ) {
+        List <Pet> batch = new ArrayList <>(Math.min(rows, SEED_BATCH));
+        for (int i = 0; i < rows; i++) {
+            batch.add(randomPet(i));
+            if (batch.size( ) == SEED_BATCH) {
+                provider.bulkInsert(batch);
+                batch.clear( );
+            }
+        }
+        if (!batch.isEmpty( )) {
+            provider.bulkInsert(batch);
+        }
+    }
+
+    private Pet randomPet( int i ) {
+        return new Pet("Pet " + i, BREEDS[random.nextInt(BREEDS.length)],
+                random.nextInt(3), 1 + random.nextInt(60));
+    }
+
+    /* Ids of the seeded pets are 1..rows, the database being new */
+    private Uri randomPetUri( int rows ) {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, 1 + random.nextInt(rows));
+    }
+
+    private List <Operation> operations( final PetProvider provider, final int rows ) {
+        List <Operation> operations = new ArrayList <>( );
+        operations.add(new Operation("query_pets_page") {
+            @Override
+            void call( int i ) {
+                Uri uri = new CatalogFilter(CatalogFilter.ANY, CatalogFilter.ANY,
+                        CatalogFilter.ANY, null, SORT_NAME).firstPageUri(PAGE_SIZE);
+                drain(provider.query(uri, PAGE_PROJECTION, null, null, null));
+            }
+        });
+        operations.add(new Operation("read_page") {
+            @Override
+            void call( int i ) {
+                // What the catalog does with each page before binding it to the list
+                Cursor cursor = provider.query(CatalogFilter.NONE.firstPageUri(PAGE_SIZE),
+                        PAGE_PROJECTION, null, null, null);
+                try {
+                    PetListItem.readAll(cursor);
+                } finally {
+                    cursor.close( );
+                }
+            }
+        });
+        operations.add(new Operation("query_pets_id") {
+            @Override
+            void call( int i ) {
+                drain(provider.query(randomPetUri(rows), null, null, null, null));
+            }
+        });
+        operations.add(new Operation("insert") {
+            @Override
+            void call( int i ) {
+                provider.insert(PetEntry.CONTENT_URI, PetCodec.toContentValues(randomPet(i)));
+            }
+        });
+        operations.add(new Operation("update") {
+            @Override
+            void call( int i ) {
+                ContentValues values = new ContentValues( );
+                values.put(PetEntry.COLUMN_PET_NAME, "Renamed " + i);
+                values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + random.nextInt(60));
+                provider.update(randomPetUri(rows), values, null, null);
+            }
+        });
+        operations.add(new Operation("delete_id") {
+            @Override
+            void call( int i ) {
+                provider.delete(randomPetUri(rows), null, null);
+            }
+        });
+        return operations;
+    }
+
+    private static void drain( Cursor cursor ) {
+        try {
+            while (cursor.moveToNext( )) {
+                cursor.getLong(0);
+            }
+        } finally {
+            cursor.close( );
+        }
+    }
+
+    private JSONObject measure( Operation operation, int rows ) throws JSONException {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.call(i);
+        }
+
+        long[] latencies = new long[iterations];
+        allocations.start( );
+        long start = System.nanoTime( );
+        for (int i = 0; i < iterations; i++) {
+            long callStart = System.nanoTime( );
+            operation.call(WARMUP + i);
+            latencies[i] = System.nanoTime( ) - callStart;
+        }
+        long elapsed = System.nanoTime( ) - start;
+        long allocated = allocations.stop( );
+
+        Arrays.sort(latencies);
+        JSONObject result = new JSONObject( );
+        result.put("rows", rows);
+        result.put("operation", operation.name);
+        result.put("ops_per_sec", iterations * 1e9 / elapsed);
+        result.put("p50_us", percentile(latencies, 50) / 1000);
+        result.put("p90_us", percentile(latencies, 90) / 1000);
+        result.put("p99_us", percentile(latencies, 99) / 1000);
+        result.put("max_us", latencies[latencies.length - 1] / 1000);
+        result.put("alloc_bytes_per_op", allocated / iterations);
+        Log.i(LOG_TAG, result.toString( ));
+        return result;
+    }
+
+    private static long percentile( long[] sorted, int percent ) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    private abstract static class Operation {
+        final String name;
+
+        Operation( String name ) {
+            this.name = name;
+        }
+
+        abstract void call( int i );
+    }
+
+    /* The provider, serving the scratch database instead of pets.db */
+    static final class BenchmarkProvider extends PetProvider {
+        @Override
+        protected PetDbHelper createDbHelper( Context context ) {
+            return new PetDbHelper(context, DATABASE_NAME,
+                    StorageProfile.forName(BuildConfig.DB_STORAGE_PROFILE));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.android.pets.sync;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.PetSyncClient;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.TreeMap;
+
+/**
+ * Syncs the pets into a {@link SyncStubServer} and checks that the replica matches the
+ * provider, then logs a JSON report. Debug builds only; pets.db is only read. The service is
+ * not exported, so on an emulator or a userdebug device start it as root with
+ * <pre>
+ * adb root
+ * adb shell am startservice -n com.example.android.pets/.sync.SyncCheckService
+ * </pre>
+ * The first batch is rejected, to check it is sent again, then a full sync runs, then an
+ * incremental one, which should send only the changes made meanwhile.
+ */
+public class SyncCheckService extends IntentService {
+
+    private static final String LOG_TAG = SyncCheckService.class.getSimpleName( );
+
+    /* Sync state of the stub, apart from that of any real endpoint */
+    private static final String STATE_NAME = "sync_check";
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO};
+
+    public SyncCheckService() {
+        super(LOG_TAG);
+    }
+
+    @Override
+    protected void onHandleIntent( Intent intent ) {
+        try {
+            Log.i(LOG_TAG, "Sync check: " + check( ).toString(2));
+        } catch (JSONException | IOException e) {
+            Log.e(LOG_TAG, "Sync check failed", e);
+        }
+    }
+
+    private JSONObject check() throws IOException, JSONException {
+        SharedPreferences state = getSharedPreferences(STATE_NAME, MODE_PRIVATE);
+        // The stub starts empty, so start from scratch
+        state.edit( ).clear( ).commit( );
+        SyncStubServer server = new SyncStubServer( );
+        try {
+            PetSyncClient client = new PetSyncClient(this, server.url( ), state);
+            JSONObject report = new JSONObject( );
+
+            server.failNext(1);
+            try {
+                client.sync( );
+                report.put("rejected_batch_failed", false);
+            } catch (IOException e) {
+                report.put("rejected_batch_failed", true);
+            }
+
+            long start = SystemClock.elapsedRealtime( );
+            report.put("full_sync_changes", client.sync( ));
+            report.put("full_sync_ms", SystemClock.elapsedRealtime( ) - start);
+
+            start = SystemClock.elapsedRealtime( );
+            report.put("incremental_sync_changes", client.sync( ));
+            report.put("incremental_sync_ms", SystemClock.elapsedRealtime( ) - start);
+
+            report.put("requests", server.requests( ));
+            report.put("mismatches", compare(server.pets( )));
+            return report;
+        } finally {
+            server.stop( );
+        }
+    }
+
+    /* Returns the number of pets that differ between the provider and the replica */
+    private int compare( TreeMap <Long, JSONObject> replica ) {
+        int mismatches = 0;
+        Cursor cursor = getContentResolver( ).query(PetEntry.CONTENT_URI, COLUMNS, null, null,
+                null);
+        if (cursor == null) {
+            return replica.size( );
+        }
+        try {
+            while (cursor.moveToNext( )) {
+                JSONObject pet = replica.remove(cursor.getLong(0));
+                if (pet == null) {
+                    mismatches++;
+                    continue;
+                }
+                for (int i = 1; i < COLUMNS.length; i++) {
+                    if (!cursor.getString(i).equals(pet.optString(COLUMNS[i], null))) {
+                        mismatches++;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            cursor.close( );
+        }
+        // Pets only the replica has
+        return mismatches + replica.size( );
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.android.pets.sync;
+
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * A sync server on the loopback interface for {@link com.example.android.pets.PetSyncClient},
+ * keeping the pets it receives in memory. Debug builds only.
+ * <p>
+ * It checks what a real server has to: a batch must start where the last acknowledged one
+ * ended, in the same epoch, unless it is a reset. Anything else is answered 409, so a client
+ * that skips or reorders changes fails loudly. One request per connection.
+ */
+final class SyncStubServer {
+
+    private static final String LOG_TAG = SyncStubServer.class.getSimpleName( );
+
+    private final ServerSocket socket;
+    private final Thread thread;
+
+    /* The replica. Guarded by this. */
+    private final TreeMap <Long, JSONObject> pets = new TreeMap <>( );
+    private String epoch;
+    private long until;
+    private int requests;
+
+    /* Requests still to answer 503, to check that a failed batch is sent again */
+    private int failures;
+
+    SyncStubServer() throws IOException {
+        socket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        thread = new Thread(new Runnable( ) {
+            @Override
+            public void run() {
+                serve( );
+            }
+        }, LOG_TAG);
+        thread.start( );
+    }
+
+    URL url() throws IOException {
+        return new URL("http", "127.0.0.1", socket.getLocalPort( ), "/pets/changes");
+    }
+
+    void stop() throws IOException {
+        socket.close( );
+        try {
+            thread.join( );
+        } catch (InterruptedException e) {
+            Thread.currentThread( ).interrupt( );
+        }
+    }
+
+    synchronized void failNext( int requests ) {
+        failures = requests;
+    }
+
+    synchronized int requests() {
+        return requests;
+    }
+
+    /* Returns a copy of the replica, by _id */
+    synchronized TreeMap <Long, JSONObject> pets() {
+        return new TreeMap <>(pets);
+    }
+
+    private void serve() {
+        while (!socket.isClosed( )) {
+            try {
+                Socket client = socket.accept( );
+                try {
+                    handle(client);
+                } finally {
+                    client.close( );
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed( )) {
+                    Log.w(LOG_TAG, "Request failed", e);
+                }
+            }
+        }
+    }
+
+    private void handle( Socket client ) throws IOException {
+        InputStream in = new BufferedInputStream(client.getInputStream( ));
+        String requestLine = readLine(in);
+        int length = 0;
+        String header;
+        while (!(header = readLine(in)).isEmpty( )) {
+            int colon = header.indexOf(':');
+            if (colon > 0 &&
+                    header.substring(0, colon).trim( ).equalsIgnoreCase("Content-Length")) {
+                length = Integer.parseInt(header.substring(colon + 1).trim( ));
+            }
+        }
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(body, read, length - read);
+            if (count < 0) {
+                throw new IOException("Request body cut short");
+            }
+            read += count;
+        }
+
+        int status;
+        if (!requestLine.startsWith("POST ")) {
+            status = 405;
+        } else {
+            try {
+                status = apply(new JSONObject(new String(body, "UTF-8")));
+            } catch (JSONException e) {
+                Log.w(LOG_TAG, "Bad batch", e);
+                status = 400;
+            }
+        }
+        OutputStream out = client.getOutputStream( );
+        out.write(("HTTP/1.1 " + status + " Stub\r\nContent-Length: 0\r\n" +
+                "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush( );
+    }
+
+    private synchronized int apply( JSONObject batch ) throws JSONException {
+        requests++;
+        if (failures > 0) {
+            failures--;
+            return 503;
+        }
+        boolean reset = batch.getBoolean("reset");
+        boolean gap = !batch.getString("epoch").equals(epoch) || batch.getLong("since") != until;
+        if (!reset && gap) {
+            Log.w(LOG_TAG, "Gap: expected " + epoch + "/" + until + ", got " +
+                    batch.getString("epoch") + "/" + batch.getLong("since"));
+            return 409;
+        }
+        if (reset) {
+            pets.clear( );
+        }
+        JSONArray changes = batch.getJSONArray("changes");
+        for (int i = 0; i < changes.length( ); i++) {
+            JSONObject change = changes.getJSONObject(i);
+            long id = change.getLong(PetEntry._ID);
+            String operation = change.getString("op");
+            if ("upsert".equals(operation)) {
+                pets.put(id, change);
+            } else if ("delete".equals(operation)) {
+                pets.remove(id);
+            } else if ("delete_through".equals(operation)) {
+                Iterator <Long> ids = pets.headMap(id, true).keySet( ).iterator( );
+                while (ids.hasNext( )) {
+                    ids.next( );
+                    ids.remove( );
+                }
+            } else {
+                return 400;
+            }
+        }
+        epoch = batch.getString("epoch");
+        until = batch.getLong("until");
+        return 204;
+    }
+
+    private static String readLine( InputStream in ) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream( );
+        int c;
+        while ((c = in.read( )) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+}
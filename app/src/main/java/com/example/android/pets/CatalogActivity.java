@@ -15,54 +15,129 @@
  */
 package com.example.android.pets;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
-import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.view.ViewTreeObserver;
+import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.CatalogFilter;
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks <Cursor> {
+public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks <List <PetListItem>> {
 
-    ListView listView;
-    PetCursorAdapter petCursorAdapter;
+    RecyclerView recyclerView;
+    LinearLayoutManager layoutManager;
+    PetListAdapter petListAdapter;
+    View emptyView;
 
     private static final String LOG_TAG = CatalogActivity.class.getSimpleName( );
 
+    /* Start loading the next page when fewer than this many rows are left below the screen */
+    private static final int PREFETCH_DISTANCE = CatalogFilter.PAGE_SIZE / 2;
+
+    /* The loaded pets are read again at most this often while pets keep changing */
+    private static final long RELOAD_THROTTLE_MILLIS = 250;
+
+    private static final int PAGE_LOADER = 0;
+    private static final String ARG_URI = "uri";
+    private static final String ARG_LIMIT = "limit";
+
+    private static final String STATE_FILTER = "filter";
+
+    /* Filters and sort chosen by the user */
+    private CatalogFilter filter = CatalogFilter.NONE;
+
+    /* Every pet loaded so far, in list order */
+    private List <PetListItem> loadedPets = new ArrayList <>( );
+
+    /* Last row loaded, the key of the next page, or null before the first page */
+    private PetListItem lastLoaded = null;
+
+    /* Row after which the page being loaded starts, handed to the loader */
+    private PetListItem pageAfter = null;
+
+    /* False once a page came back shorter than requested */
+    private boolean hasMorePages = true;
+
+    private boolean pageLoading = false;
+
+    /* Set once the first page was shown, which ends the cold start */
+    private boolean firstPageShown = false;
+
+    /* Runs inserts and deletes off the main thread */
+    private PetWriteQueue writeQueue;
+
+    /* Reads the pages already shown again when pets change, and hands over what changed */
+    private PetQuery loadedQuery;
+
+    /* Number of rows loadedQuery reads */
+    private int observedLimit = CatalogFilter.PAGE_SIZE;
+
     @Override
     protected void onCreate( Bundle savedInstanceState ) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
-        View emptyView = findViewById(R.id.empty_view);
-        listView = (ListView) findViewById(R.id.list);
+        writeQueue = new PetWriteQueue(this);
 
-        listView.setEmptyView(emptyView);
+        if (savedInstanceState != null) {
+            filter = CatalogFilter.fromBundle(savedInstanceState.getBundle(STATE_FILTER));
+        }
+
+        emptyView = findViewById(R.id.empty_view);
+        recyclerView = (RecyclerView) findViewById(R.id.list);
+        layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
 
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener( ) {
+        PetThumbnailLoader thumbnailLoader = new PetThumbnailLoader(getApplicationContext( ));
+        petListAdapter = new PetListAdapter(thumbnailLoader, new PetListAdapter.OnPetClickListener( ) {
             @Override
-            public void onItemClick( AdapterView <?> parent, View view, int position, long id ) {
-                Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
-                Uri currentPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
-                intent.setData(currentPetUri);
-                startActivity(intent);
+            public void onPetClick( PetListItem pet ) {
+                // The editor shows the row it is given and only re-checks it in the background
+                startActivity(EditorActivity.newEditIntent(CatalogActivity.this, pet));
+            }
+        });
+        recyclerView.setAdapter(petListAdapter);
+
+        // Show the empty view whenever the list has no rows
+        petListAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver( ) {
+            @Override
+            public void onChanged() {
+                updateEmptyView( );
+            }
+
+            @Override
+            public void onItemRangeInserted( int positionStart, int itemCount ) {
+                updateEmptyView( );
+            }
+
+            @Override
+            public void onItemRangeRemoved( int positionStart, int itemCount ) {
+                updateEmptyView( );
             }
         });
 
@@ -76,8 +151,174 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        petCursorAdapter = new PetCursorAdapter(this, null);
-        getLoaderManager( ).initLoader(0, null, this);
+        // Load the next page when the user scrolls close to the end of what is loaded
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener( ) {
+            @Override
+            public void onScrolled( RecyclerView view, int dx, int dy ) {
+                int lastVisible = layoutManager.findLastVisibleItemPosition( );
+                if (lastVisible >= petListAdapter.getItemCount( ) - PREFETCH_DISTANCE) {
+                    loadNextPage( );
+                }
+            }
+        });
+
+        loadedQuery = new PetQuery(this, CatalogFilter.PAGE_PROJECTION, RELOAD_THROTTLE_MILLIS,
+                new PetQuery.Listener( ) {
+                    @Override
+                    public void onQueryChanged( PetQuery query, PetQuery.Delta delta ) {
+                        onLoadedPetsChanged(delta);
+                    }
+                });
+        loadPage(null, CatalogFilter.PAGE_SIZE);
+    }
+
+    @Override
+    protected void onSaveInstanceState( Bundle outState ) {
+        super.onSaveInstanceState(outState);
+        outState.putBundle(STATE_FILTER, filter.toBundle( ));
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy( );
+        loadedQuery.stop( );
+        writeQueue.detachAll( );
+    }
+
+    private void updateEmptyView() {
+        emptyView.setVisibility(petListAdapter.getItemCount( ) == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    /* Start loading the page that follows the last loaded row */
+    private void loadNextPage() {
+        if (hasMorePages && !pageLoading && lastLoaded != null) {
+            loadPage(lastLoaded, CatalogFilter.PAGE_SIZE);
+        }
+    }
+
+    /* Watch every row loaded so far, as a single page */
+    private void observeLoadedPets() {
+        observedLimit = Math.max(CatalogFilter.PAGE_SIZE, loadedPets.size( ));
+        loadedQuery.observe(filter.firstPageUri(observedLimit), loadedPets);
+    }
+
+    /* The loaded pages changed in the provider: show only the rows that changed */
+    private void onLoadedPetsChanged( PetQuery.Delta delta ) {
+        loadedPets = delta.rows;
+        hasMorePages = loadedPets.size( ) == observedLimit;
+        lastLoaded = loadedPets.isEmpty( ) ? null : loadedPets.get(loadedPets.size( ) - 1);
+        petListAdapter.applyDelta(delta);
+        if (pageLoading) {
+            // That page starts after the old last row and is dropped when it arrives
+            pageLoading = false;
+            loadNextPage( );
+        }
+    }
+
+    /**
+     * Load the page after the given row, or the first page if after is null.
+     */
+    private void loadPage( PetListItem after, int limit ) {
+        pageLoading = true;
+        pageAfter = after;
+        Uri pageUri;
+        if (after == null) {
+            pageUri = filter.firstPageUri(limit);
+        } else {
+            String afterKey = PetContract.SORT_WEIGHT.equals(filter.sort)
+                    ? String.valueOf(after.weight) : after.name;
+            pageUri = filter.nextPageUri(after.id, afterKey, limit);
+        }
+        Bundle args = new Bundle( );
+        args.putParcelable(ARG_URI, pageUri);
+        args.putInt(ARG_LIMIT, limit);
+        getLoaderManager( ).restartLoader(PAGE_LOADER, args, this);
+    }
+
+    /**
+     * Show a dialog to pick the gender, breed, weight range and sort of the list. Applying it
+     * starts the list again from its first page.
+     */
+    private void showFilterDialog() {
+        final View dialogView = getLayoutInflater( ).inflate(R.layout.dialog_filter, null);
+        final Spinner genderSpinner = (Spinner) dialogView.findViewById(R.id.filter_gender);
+        final EditText breedEdit = (EditText) dialogView.findViewById(R.id.filter_breed);
+        final EditText minWeightEdit = (EditText) dialogView.findViewById(R.id.filter_min_weight);
+        final EditText maxWeightEdit = (EditText) dialogView.findViewById(R.id.filter_max_weight);
+        final Spinner sortSpinner = (Spinner) dialogView.findViewById(R.id.filter_sort);
+
+        // Position 0 of the gender spinner is "Any", then the GENDER_* constants in order
+        genderSpinner.setSelection(filter.gender == CatalogFilter.ANY ? 0 : filter.gender + 1);
+        breedEdit.setText(filter.breed);
+        if (filter.minWeight != CatalogFilter.ANY) {
+            minWeightEdit.setText(String.valueOf(filter.minWeight));
+        }
+        if (filter.maxWeight != CatalogFilter.ANY) {
+            maxWeightEdit.setText(String.valueOf(filter.maxWeight));
+        }
+        sortSpinner.setSelection(sortPosition(filter.sort));
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_filter)
+                .setView(dialogView)
+                .setPositiveButton(R.string.filter_apply, new DialogInterface.OnClickListener( ) {
+                    @Override
+                    public void onClick( DialogInterface dialog, int which ) {
+                        int genderPosition = genderSpinner.getSelectedItemPosition( );
+                        applyFilter(new CatalogFilter(
+                                genderPosition == 0 ? CatalogFilter.ANY : genderPosition - 1,
+                                parseWeight(minWeightEdit),
+                                parseWeight(maxWeightEdit),
+                                breedEdit.getText( ).toString( ).trim( ),
+                                SORT_VALUES[sortSpinner.getSelectedItemPosition( )]));
+                    }
+                })
+                .setNeutralButton(R.string.filter_clear, new DialogInterface.OnClickListener( ) {
+                    @Override
+                    public void onClick( DialogInterface dialog, int which ) {
+                        applyFilter(CatalogFilter.NONE);
+                    }
+                })
+                .setNegativeButton(R.string.cancel, null)
+                .show( );
+    }
+
+    /* Sort values, in the order of R.array.array_sort_options */
+    private static final String[] SORT_VALUES = {
+            null,
+            PetContract.SORT_NAME,
+            PetContract.SORT_WEIGHT,
+            PetContract.SORT_NEWEST};
+
+    private static int sortPosition( String sort ) {
+        for (int i = 1; i < SORT_VALUES.length; i++) {
+            if (SORT_VALUES[i].equals(sort)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static int parseWeight( EditText editText ) {
+        String text = editText.getText( ).toString( ).trim( );
+        if (TextUtils.isEmpty(text)) {
+            return CatalogFilter.ANY;
+        }
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return CatalogFilter.ANY;
+        }
+    }
+
+    private void applyFilter( CatalogFilter newFilter ) {
+        // Observed again once the first page of the new filter is loaded
+        loadedQuery.stop( );
+        filter = newFilter;
+        loadedPets = new ArrayList <>( );
+        lastLoaded = null;
+        hasMorePages = true;
+        loadPage(null, CatalogFilter.PAGE_SIZE);
     }
 
     @Override
@@ -92,6 +333,10 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     public boolean onOptionsItemSelected( MenuItem item ) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId( )) {
+            // Respond to a click on the "Filter" menu option
+            case R.id.action_filter:
+                showFilterDialog( );
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insetData( );
@@ -105,7 +350,21 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     }
 
     private void deleteAllPets() {
-        getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+        writeQueue.delete(PetEntry.CONTENT_URI, null, null, new PetWriteQueue.Callback <Integer>( ) {
+            @Override
+            public void onResult( Integer rowsDeleted ) {
+                Toast.makeText(CatalogActivity.this, getResources( ).getQuantityString(
+                        R.plurals.catalog_pets_deleted, rowsDeleted, rowsDeleted),
+                        Toast.LENGTH_SHORT).show( );
+            }
+
+            @Override
+            public void onError( RuntimeException e ) {
+                super.onError(e);
+                Toast.makeText(CatalogActivity.this, R.string.catalog_delete_all_failed,
+                        Toast.LENGTH_SHORT).show( );
+            }
+        });
     }
 
     private void insetData() {
@@ -117,46 +376,84 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
 
         // Insere um novo pet no provider, returnando o URI de conteúdo para o novo pet.
-        Uri newUri = getContentResolver( ).insert(PetEntry.CONTENT_URI, values);
-
-        // Mostra um mensagem toast dependendo ou não se a inserção foi bem sucedida
-        if (newUri == null) {
-            // Se o novo conteúdo do URI é nulo, então houve um erro com inserção.
-            Toast.makeText(this, R.string.insert_failed,
-                    Toast.LENGTH_SHORT
-            ).show( );
-        } else {
-            // Caso contrário, a inserção foi bem sucedida e podemos mostrar um toast.
-            Toast.makeText(this, R.string.insert_ok,
-                    Toast.LENGTH_SHORT
-            ).show( );
-        }
+        writeQueue.insert(PetEntry.CONTENT_URI, values, new PetWriteQueue.Callback <Uri>( ) {
+            @Override
+            public void onResult( Uri newUri ) {
+                // Mostra um mensagem toast dependendo ou não se a inserção foi bem sucedida
+                if (newUri == null) {
+                    // Se o novo conteúdo do URI é nulo, então houve um erro com inserção.
+                    Toast.makeText(CatalogActivity.this, R.string.insert_failed,
+                            Toast.LENGTH_SHORT
+                    ).show( );
+                } else {
+                    // Caso contrário, a inserção foi bem sucedida e podemos mostrar um toast.
+                    Toast.makeText(CatalogActivity.this, R.string.insert_ok,
+                            Toast.LENGTH_SHORT
+                    ).show( );
+                }
+            }
+        });
     }
 
     @Override
-    public Loader <Cursor> onCreateLoader( int id, Bundle args ) {
-
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED};
-
-        return new CursorLoader(
+    public Loader <List <PetListItem>> onCreateLoader( int id, Bundle args ) {
+        return new PetPageLoader(
                 this,
-                PetEntry.CONTENT_URI,
-                projection, null,
-                null,
-                null);
+                CatalogFilter.PAGE_PROJECTION,
+                (Uri) args.getParcelable(ARG_URI),
+                pageAfter,
+                args.getInt(ARG_LIMIT));
     }
 
     @Override
-    public void onLoadFinished( Loader <Cursor> loader, Cursor data ) {
-        petCursorAdapter.swapCursor(data);
-        listView.setAdapter(petCursorAdapter);
+    public void onLoadFinished( Loader <List <PetListItem>> loader, List <PetListItem> page ) {
+        PetPageLoader pageLoader = (PetPageLoader) loader;
+        if (page == null) {
+            pageLoading = false;
+            return;
+        }
+
+        List <PetListItem> pets;
+        if (pageLoader.getAfter( ) == null) {
+            // A first page replaces everything that was loaded before
+            pets = new ArrayList <>(page);
+        } else if (pageLoader.getAfter( ) == lastLoaded) {
+            pets = new ArrayList <>(loadedPets.size( ) + page.size( ));
+            pets.addAll(loadedPets);
+            pets.addAll(page);
+        } else {
+            // Page already shown, or stale because the list was reloaded while it was loading
+            return;
+        }
+        pageLoading = false;
+
+        loadedPets = pets;
+        hasMorePages = page.size( ) == pageLoader.getLimit( );
+        lastLoaded = pets.isEmpty( ) ? null : pets.get(pets.size( ) - 1);
+        petListAdapter.submitList(pets);
+        observeLoadedPets( );
+        if (!firstPageShown) {
+            firstPageShown = true;
+            markFirstListFrame( );
+        }
+    }
+
+    /* Record the cold start timings once the first rows are about to be drawn */
+    private void markFirstListFrame() {
+        PetStartup.mark(PetStartup.FIRST_PAGE_LOADED);
+        recyclerView.getViewTreeObserver( ).addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener( ) {
+                    @Override
+                    public boolean onPreDraw() {
+                        recyclerView.getViewTreeObserver( ).removeOnPreDrawListener(this);
+                        PetStartup.mark(PetStartup.FIRST_LIST_FRAME);
+                        return true;
+                    }
+                });
     }
 
     @Override
-    public void onLoaderReset( Loader <Cursor> loader ) {
-        petCursorAdapter.swapCursor(null);
+    public void onLoaderReset( Loader <List <PetListItem>> loader ) {
+        // Loaded pets belong to the activity, nothing to release here
     }
 }
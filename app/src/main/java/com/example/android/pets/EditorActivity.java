@@ -17,9 +17,12 @@ package com.example.android.pets;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
+import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
@@ -47,6 +50,19 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     private static final String LOG_TAG = EditorActivity.class.getSimpleName();
 
+    /* Row of the pet as the catalog read it, shown before the provider answers */
+    private static final String EXTRA_NAME = "com.example.android.pets.extra.NAME";
+    private static final String EXTRA_BREED = "com.example.android.pets.extra.BREED";
+    private static final String EXTRA_GENDER = "com.example.android.pets.extra.GENDER";
+    private static final String EXTRA_WEIGHT = "com.example.android.pets.extra.WEIGHT";
+
+    /* Only the columns of the form; all of them are in the catalog covering indexes */
+    private static final String[] PROJECTION = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
     /** EditText field to enter the pet's name */
     private EditText mNameEditText;
 
@@ -71,6 +87,12 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     /** Verify if user has enter some input */
     private boolean mPetHasChanged = false;
 
+    /** The form was filled from the intent, the loader only checks it is still current */
+    private boolean mShownFromIntent = false;
+
+    /** Runs saves and deletes off the main thread */
+    private PetWriteQueue writeQueue;
+
     private View.OnTouchListener mTouchListener = new View.OnTouchListener( ) {
         @Override
         public boolean onTouch( View v, MotionEvent event ) {
@@ -79,11 +101,27 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         }
     };
 
+    /**
+     * Returns an intent opening the editor on a pet of the catalog. The row travels with the
+     * intent, so the editor shows it at once instead of waiting for a query.
+     */
+    public static Intent newEditIntent( Context context, PetListItem pet ) {
+        Intent intent = new Intent(context, EditorActivity.class);
+        intent.setData(ContentUris.withAppendedId(PetEntry.CONTENT_URI, pet.id));
+        intent.putExtra(EXTRA_NAME, pet.name);
+        intent.putExtra(EXTRA_BREED, pet.breed);
+        intent.putExtra(EXTRA_GENDER, pet.gender);
+        intent.putExtra(EXTRA_WEIGHT, pet.weight);
+        return intent;
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_editor);
 
+        writeQueue = new PetWriteQueue(this);
+
         intentUri = getIntent().getData();
         if (intentUri == null){
             setTitle("Add a new Pet");
@@ -107,6 +145,16 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         setupSpinner();
 
+        // After a configuration change the views restore what was on screen, maybe edited
+        Intent intent = getIntent();
+        if (intentUri != null && savedInstanceState == null && intent.hasExtra(EXTRA_NAME)) {
+            showPet(intent.getStringExtra(EXTRA_NAME), intent.getStringExtra(EXTRA_BREED),
+                    intent.getIntExtra(EXTRA_GENDER, PetEntry.GENDER_UNKNOWN),
+                    intent.getIntExtra(EXTRA_WEIGHT, 0));
+            mShownFromIntent = true;
+        }
+
+        // Still needed with the intent data: the pet may have changed since the catalog read it
         getLoaderManager().initLoader(0, null, this);
 
     }
@@ -138,31 +186,44 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
     /**
-     * Perform the deletion of the pet in the database.
+     * Perform the deletion of the pet in the database. The toast is shown and the editor is
+     * closed once the provider has answered.
      */
     private void deletePet() {
-        if (intentUri != null){
-            int rowsDeleted = getContentResolver().delete(
-                    intentUri,
-                    null,
-                    null
-            );
-
-            // Mostra uma mensagem toast dependendo se ou não o delete foi bem sucedido.
-            if (rowsDeleted == 0) {
-                // Se nenhum registro foi deletado, então houve um erro com o delete.
-                Toast.makeText(this, getString(R.string.editor_delete_pet_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Caso contrário, o delete foi bem sucedido e podemos mostrar um toast.
-                Toast.makeText(this, getString(R.string.editor_delete_pet_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
-            getContentResolver().notifyChange(intentUri, null);
-            finish();
+        if (intentUri != null && !writeQueue.hasPendingWrites()){
+            writeQueue.delete(intentUri, null, null, new PetWriteQueue.Callback <Integer>( ) {
+                @Override
+                public void onResult( Integer rowsDeleted ) {
+                    // Mostra uma mensagem toast dependendo se ou não o delete foi bem sucedido.
+                    if (rowsDeleted == 0) {
+                        // Se nenhum registro foi deletado, então houve um erro com o delete.
+                        Toast.makeText(EditorActivity.this, getString(R.string.editor_delete_pet_failed),
+                                Toast.LENGTH_SHORT).show();
+                    } else {
+                        // Caso contrário, o delete foi bem sucedido e podemos mostrar um toast.
+                        Toast.makeText(EditorActivity.this, getString(R.string.editor_delete_pet_successful),
+                                Toast.LENGTH_SHORT).show();
+                    }
+                    finish();
+                }
+
+                @Override
+                public void onError( RuntimeException e ) {
+                    super.onError(e);
+                    Toast.makeText(EditorActivity.this, getString(R.string.editor_delete_pet_failed),
+                            Toast.LENGTH_SHORT).show();
+                }
+            });
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Pending writes still complete, they just don't call back into this activity
+        writeQueue.detachAll();
+    }
+
     @Override
     public void onBackPressed() {
         // Se o pet não mudou, continue lidando com clique do botão "back"
@@ -304,7 +365,10 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     private void saveOrUpdatePet() {
 
-        Uri newUri;
+        if (writeQueue.hasPendingWrites()) {
+            // A save or delete is already running, it will close the editor
+            return;
+        }
 
         if (intentUri == null &&
                 TextUtils.isEmpty(mNameEditText.getText().toString().trim()) && TextUtils.isEmpty(mBreedEditText.getText().toString().trim()) &&
@@ -325,33 +389,62 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             values.put(PetEntry.COLUMN_PET_WEIGHT, 0);
         }
 
+        // The provider only logs invalid input, so tell the user here
+        if (TextUtils.isEmpty(values.getAsString(PetEntry.COLUMN_PET_NAME))) {
+            Toast.makeText(this, R.string.editor_name_required, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT) <= 0) {
+            Toast.makeText(this, R.string.editor_weight_required, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         if (intentUri == null ){
            // Insere um novo pet no provider, returnando o URI de conteúdo para o novo pet.
-           newUri = getContentResolver( ).insert(PetEntry.CONTENT_URI, values);
-           Log.d(LOG_TAG, String.valueOf(newUri));
-
-           if (newUri == null) {
-               // Se o novo conteúdo do URI é nulo, então houve um erro com inserção.
-               Toast.makeText(this, R.string.insert_failed,
-                       Toast.LENGTH_SHORT).show();
-           } else {
-               // Caso contrário, a inserção foi bem sucedida e podemos mostrar um toast.
-               Toast.makeText(this, R.string.insert_ok,
-                       Toast.LENGTH_SHORT).show();
-               Log.e(LOG_TAG, newUri.toString());
-           }
+           writeQueue.insert(PetEntry.CONTENT_URI, values, new PetWriteQueue.Callback <Uri>( ) {
+               @Override
+               public void onResult( Uri newUri ) {
+                   Log.d(LOG_TAG, String.valueOf(newUri));
+                   if (newUri == null) {
+                       // Se o novo conteúdo do URI é nulo, então houve um erro com inserção.
+                       Toast.makeText(EditorActivity.this, R.string.insert_failed,
+                               Toast.LENGTH_SHORT).show();
+                   } else {
+                       // Caso contrário, a inserção foi bem sucedida e podemos mostrar um toast.
+                       Toast.makeText(EditorActivity.this, R.string.insert_ok,
+                               Toast.LENGTH_SHORT).show();
+                       /** Close Activity */
+                       finish();
+                   }
+               }
+
+               @Override
+               public void onError( RuntimeException e ) {
+                   super.onError(e);
+                   Toast.makeText(EditorActivity.this, R.string.insert_failed,
+                           Toast.LENGTH_SHORT).show();
+               }
+           });
        } else {
            // Atualiza um novo pet no provider, returnando o URI de conteúdo para o novo pet.
-          int update =  getContentResolver().update(intentUri, values, null, null);
-
-          if(update == 1) {
-              Toast.makeText(this, "Pet Salvo" , Toast.LENGTH_SHORT).show();
-          } else
-              Toast.makeText(this, "Atualização falhou", Toast.LENGTH_SHORT).show();
+           writeQueue.update(intentUri, values, null, null, new PetWriteQueue.Callback <Integer>( ) {
+               @Override
+               public void onResult( Integer update ) {
+                   if (update == 1) {
+                       Toast.makeText(EditorActivity.this, "Pet Salvo", Toast.LENGTH_SHORT).show();
+                       /** Close Activity */
+                       finish();
+                   } else
+                       Toast.makeText(EditorActivity.this, "Atualização falhou", Toast.LENGTH_SHORT).show();
+               }
+
+               @Override
+               public void onError( RuntimeException e ) {
+                   super.onError(e);
+                   Toast.makeText(EditorActivity.this, "Atualização falhou", Toast.LENGTH_SHORT).show();
+               }
+           });
        }
-
-        /** Close Activity */
-        finish();
     }
 
 
@@ -362,7 +455,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             return new CursorLoader(
                     this,
                     intentUri,
-                    null,
+                    PROJECTION,
                     null,
                     null,
                     null);
@@ -375,19 +468,40 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         if (cursor == null ){
             return;
         }
-        if (cursor.moveToNext( )) {
-            mNameEditText.setText(
-                    cursor.getString(
-                            cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME)));
-            mBreedEditText.setText(
-                    cursor.getString(
-                            cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED)));
-            mWeightEditText.setText(
-                    cursor.getString(
-                            cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT)));
-            mGenderSpinner.setSelection(
-                    cursor.getInt(
-                            cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER)));
+        if (!cursor.moveToFirst( )) {
+            if (mShownFromIntent) {
+                // Deleted since the catalog read it, there is nothing left to edit
+                Toast.makeText(this, R.string.editor_pet_gone, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+            return;
+        }
+        // Never overwrite what the user already typed
+        if (mPetHasChanged) {
+            return;
+        }
+        showPet(cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME)),
+                cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT)));
+    }
+
+    /**
+     * Fill the form with the pet. Fields already showing the value are left alone, so a
+     * re-validation that finds nothing new does not move the cursor or flicker.
+     */
+    private void showPet( String name, String breed, int gender, int weight ) {
+        setTextIfChanged(mNameEditText, name);
+        setTextIfChanged(mBreedEditText, breed);
+        setTextIfChanged(mWeightEditText, String.valueOf(weight));
+        if (mGenderSpinner.getSelectedItemPosition( ) != gender) {
+            mGenderSpinner.setSelection(gender);
+        }
+    }
+
+    private static void setTextIfChanged( EditText view, String text ) {
+        if (!TextUtils.equals(view.getText( ), text)) {
+            view.setText(text);
         }
     }
 
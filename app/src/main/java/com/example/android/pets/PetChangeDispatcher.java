@@ -0,0 +1,106 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.ShelterEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends the change notifications of {@link PetProvider}, coalesced over a short window.
+ * <p>
+ * The provider reports a URI only once the write is committed. The first change of a window
+ * schedules a flush; every other change of the window is merged into it. The changes are
+ * grouped by the list they belong to, {@link PetEntry#CONTENT_URI} for the main shelter or the
+ * pets URI of another shelter, and on flush, for each list:
+ * <ul>
+ * <li>a single changed pet is notified through its item URI. Observers of that pet get it,
+ * and so do list observers, since {@link android.content.CursorLoader} and the catalog
+ * observe the list URI with notifyForDescendants set;</li>
+ * <li>several pets, or a write on the whole table, collapse into one notification of the
+ * list URI, which also reaches every item and search observer of that list.</li>
+ * </ul>
+ * So a burst of writes makes each observer re-query once instead of once per row, and
+ * observers of a shelter still hear of its changes when another list changed in the same
+ * window.
+ */
+class PetChangeDispatcher {
+
+    private final ContentResolver resolver;
+    private final long windowMillis;
+    private final Handler handler = new Handler(Looper.getMainLooper( ));
+
+    /* URIs changed since the last flush, by list URI. Guarded by this. */
+    private final Map <Uri, Set <Uri>> pending = new LinkedHashMap <>( );
+
+    private final Runnable flush = new Runnable( ) {
+        @Override
+        public void run() {
+            flush( );
+        }
+    };
+
+    PetChangeDispatcher( ContentResolver resolver, long windowMillis ) {
+        this.resolver = resolver;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Record a committed change of a pet (item URI) or of the pets table (list URI).
+     */
+    void changed( Uri uri ) {
+        synchronized (this) {
+            boolean first = pending.isEmpty( );
+            Uri list = listUri(uri);
+            Set <Uri> changes = pending.get(list);
+            if (changes == null) {
+                changes = new LinkedHashSet <>( );
+                pending.put(list, changes);
+            }
+            changes.add(uri);
+            if (!first) {
+                return;
+            }
+        }
+        handler.postDelayed(flush, windowMillis);
+    }
+
+    /* Send the notifications of the window that just ended, one per list */
+    private void flush() {
+        List <Uri> uris = new ArrayList <>( );
+        synchronized (this) {
+            for (Map.Entry <Uri, Set <Uri>> entry : pending.entrySet( )) {
+                Set <Uri> changes = entry.getValue( );
+                uris.add(changes.size( ) == 1 ? changes.iterator( ).next( ) : entry.getKey( ));
+            }
+            pending.clear( );
+        }
+        for (Uri uri : uris) {
+            resolver.notifyChange(uri, null);
+        }
+    }
+
+    /* The list a changed URI belongs to: the pets of a shelter, shelters/<name>/pets, or else
+     * the pets of the main shelter */
+    private static Uri listUri( Uri uri ) {
+        List <String> segments = uri.getPathSegments( );
+        if (segments.size( ) >= 3 && PetContract.PATH_SHELTERS.equals(segments.get(0)) &&
+                PetContract.PATH_PETS.equals(segments.get(2))) {
+            return ShelterEntry.CONTENT_URI.buildUpon( )
+                    .appendPath(segments.get(1))
+                    .appendPath(PetContract.PATH_PETS)
+                    .build( );
+        }
+        return PetEntry.CONTENT_URI;
+    }
+}
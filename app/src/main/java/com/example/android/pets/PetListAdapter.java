@@ -0,0 +1,209 @@
+package com.example.android.pets;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link RecyclerView} adapter for the list of pets.
+ * <p>
+ * Each row keeps its views in a {@link PetViewHolder}, so nothing is looked up while binding.
+ * A new list is compared with the current one by {@link DiffUtil} on a background thread,
+ * and only the rows that were inserted, removed, moved or changed are animated and bound again.
+ * A {@link PetQuery.Delta} that only changed values in place skips the diff altogether.
+ * Photo thumbnails are decoded in the background by a {@link PetThumbnailLoader}.
+ */
+public class PetListAdapter extends RecyclerView.Adapter <PetListAdapter.PetViewHolder> {
+
+    /**
+     * Called when a pet row is clicked.
+     */
+    public interface OnPetClickListener {
+        void onPetClick( PetListItem pet );
+    }
+
+    /* One thread is enough: diffs are run in the order the lists are submitted */
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor( );
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper( ));
+    private final OnPetClickListener clickListener;
+    private final PetThumbnailLoader thumbnailLoader;
+
+    /* List currently shown. Never modified, replaced by the next submitted list. */
+    private List <PetListItem> items = Collections.emptyList( );
+
+    /* Last list submitted; the same as items unless a diff is running */
+    private List <PetListItem> submittedItems = items;
+
+    /* Incremented on every submit, so the result of an outdated diff is dropped */
+    private int generation = 0;
+
+    public PetListAdapter( PetThumbnailLoader thumbnailLoader, OnPetClickListener clickListener ) {
+        this.thumbnailLoader = thumbnailLoader;
+        this.clickListener = clickListener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show a new list of pets. The list must not be modified after this call.
+     */
+    public void submitList( final List <PetListItem> newItems ) {
+        final int submitted = ++generation;
+        final List <PetListItem> oldItems = items;
+        submittedItems = newItems;
+
+        if (oldItems.isEmpty( ) || newItems.isEmpty( )) {
+            // Nothing to compare, a full change is as cheap as a diff
+            items = newItems;
+            notifyDataSetChanged( );
+            return;
+        }
+
+        DIFF_EXECUTOR.execute(new Runnable( ) {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result =
+                        DiffUtil.calculateDiff(new PetDiffCallback(oldItems, newItems));
+                mainHandler.post(new Runnable( ) {
+                    @Override
+                    public void run() {
+                        if (submitted != generation) {
+                            return;
+                        }
+                        items = newItems;
+                        result.dispatchUpdatesTo(PetListAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show the result of a {@link PetQuery} change, computed against the list shown last. Rows
+     * updated in place are bound again right away; any other change goes through
+     * {@link #submitList}.
+     */
+    public void applyDelta( PetQuery.Delta delta ) {
+        if (!delta.isInPlace( ) || items != submittedItems) {
+            submitList(delta.rows);
+            return;
+        }
+        generation++;
+        items = delta.rows;
+        submittedItems = delta.rows;
+        for (int position : delta.updatedPositions) {
+            notifyItemChanged(position);
+        }
+    }
+
+    public PetListItem getItem( int position ) {
+        return items.get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return items.size( );
+    }
+
+    @Override
+    public long getItemId( int position ) {
+        return items.get(position).id;
+    }
+
+    @Override
+    public PetViewHolder onCreateViewHolder( ViewGroup parent, int viewType ) {
+        View view = LayoutInflater.from(parent.getContext( ))
+                .inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder( PetViewHolder holder, int position ) {
+        holder.bind(items.get(position));
+    }
+
+    @Override
+    public void onViewRecycled( PetViewHolder holder ) {
+        thumbnailLoader.cancel(holder.thumbnailView);
+    }
+
+    /**
+     * Holds the views of one pet row.
+     */
+    class PetViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        private final ImageView thumbnailView;
+        private final TextView nameView;
+        private final TextView summaryView;
+
+        PetViewHolder( View itemView ) {
+            super(itemView);
+            thumbnailView = (ImageView) itemView.findViewById(R.id.thumbnail);
+            nameView = (TextView) itemView.findViewById(R.id.name);
+            summaryView = (TextView) itemView.findViewById(R.id.summary);
+            itemView.setOnClickListener(this);
+        }
+
+        void bind( PetListItem pet ) {
+            thumbnailLoader.load(pet, thumbnailView);
+            nameView.setText(pet.name);
+            if (TextUtils.isEmpty(pet.breed)) {
+                summaryView.setText(R.string.breed_unknown);
+            } else {
+                summaryView.setText(pet.breed);
+            }
+        }
+
+        @Override
+        public void onClick( View v ) {
+            int position = getAdapterPosition( );
+            if (position != RecyclerView.NO_POSITION && clickListener != null) {
+                clickListener.onPetClick(items.get(position));
+            }
+        }
+    }
+
+    /* Pets are the same item when they have the same _id */
+    private static class PetDiffCallback extends DiffUtil.Callback {
+
+        private final List <PetListItem> oldItems;
+        private final List <PetListItem> newItems;
+
+        PetDiffCallback( List <PetListItem> oldItems, List <PetListItem> newItems ) {
+            this.oldItems = oldItems;
+            this.newItems = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldItems.size( );
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newItems.size( );
+        }
+
+        @Override
+        public boolean areItemsTheSame( int oldItemPosition, int newItemPosition ) {
+            return oldItems.get(oldItemPosition).id == newItems.get(newItemPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame( int oldItemPosition, int newItemPosition ) {
+            return oldItems.get(oldItemPosition).sameContentAs(newItems.get(newItemPosition));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable copy of the columns the catalog shows for one pet.
+ * <p>
+ * The list works on these snapshots instead of a live {@link Cursor}, so the old and the new
+ * list can be compared on a background thread.
+ */
+public final class PetListItem {
+
+    public final long id;
+    public final String name;
+    public final String breed;
+    public final int gender;
+    public final int weight;
+
+    /* Photo version, 0 when the pet has no photo */
+    public final long photo;
+
+    public PetListItem( long id, String name, String breed, int gender, int weight,
+                        long photo ) {
+        this.id = id;
+        this.name = name;
+        this.breed = breed;
+        this.gender = gender;
+        this.weight = weight;
+        this.photo = photo;
+    }
+
+    /**
+     * Returns true if both items would look the same on screen.
+     */
+    public boolean sameContentAs( PetListItem other ) {
+        return TextUtils.equals(name, other.name) && TextUtils.equals(breed, other.breed) &&
+                photo == other.photo;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PetListItem)) {
+            return false;
+        }
+        PetListItem other = (PetListItem) o;
+        return id == other.id && gender == other.gender && weight == other.weight &&
+                photo == other.photo && TextUtils.equals(name, other.name) &&
+                TextUtils.equals(breed, other.breed);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (id ^ (id >>> 32));
+    }
+
+    /**
+     * Read every row of the cursor, from the first one. Column indexes are resolved once for
+     * the whole cursor; gender, weight and photo are optional and read as 0 when not
+     * projected. The cursor is left open.
+     */
+    public static List <PetListItem> readAll( Cursor cursor ) {
+        List <PetListItem> items = new ArrayList <>(cursor.getCount( ));
+        int idColumn = cursor.getColumnIndexOrThrow(PetEntry._ID);
+        int nameColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+        int breedColumn = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+        int genderColumn = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
+        int weightColumn = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+        int photoColumn = cursor.getColumnIndex(PetEntry.COLUMN_PET_PHOTO);
+
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext( )) {
+            items.add(new PetListItem(
+                    cursor.getLong(idColumn),
+                    cursor.getString(nameColumn),
+                    cursor.getString(breedColumn),
+                    genderColumn < 0 ? 0 : cursor.getInt(genderColumn),
+                    weightColumn < 0 ? 0 : cursor.getInt(weightColumn),
+                    photoColumn < 0 ? 0 : cursor.getLong(photoColumn)));
+        }
+        return items;
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.android.pets;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.List;
+
+/**
+ * Loads one page of pets from a keyset page URI (see
+ * {@link com.example.android.pets.data.CatalogFilter}).
+ * <p>
+ * The rows are copied into {@link PetListItem}s and the cursor is closed in the background,
+ * so the catalog can keep every page it has shown without holding cursors open. It does not
+ * watch for changes; the catalog watches the rows it already has through a {@link PetQuery}.
+ */
+public class PetPageLoader extends AsyncTaskLoader <List <PetListItem>> {
+
+    private final String[] projection;
+    private final Uri pageUri;
+    private final PetListItem after;
+    private final int limit;
+
+    /* Page already delivered by this loader, if any */
+    private List <PetListItem> delivered;
+
+    /**
+     * @param after the last row of the previous page, or null for a first page
+     */
+    public PetPageLoader( Context context, String[] projection, Uri pageUri, PetListItem after,
+                          int limit ) {
+        super(context);
+        this.projection = projection;
+        this.pageUri = pageUri;
+        this.after = after;
+        this.limit = limit;
+    }
+
+    public PetListItem getAfter() {
+        return after;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public List <PetListItem> loadInBackground() {
+        // On a cold start the provider has usually read this page already
+        if (after == null) {
+            List <PetListItem> prefetched = PetStartup.takeFirstPage(pageUri, projection);
+            if (prefetched != null) {
+                return prefetched;
+            }
+        }
+        Cursor cursor = getContext( ).getContentResolver( ).query(
+                pageUri, projection, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return PetListItem.readAll(cursor);
+        } finally {
+            cursor.close( );
+        }
+    }
+
+    @Override
+    public void deliverResult( List <PetListItem> page ) {
+        delivered = page;
+        if (isStarted( )) {
+            super.deliverResult(page);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (delivered == null) {
+            forceLoad( );
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad( );
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset( );
+        onStopLoading( );
+        delivered = null;
+    }
+}
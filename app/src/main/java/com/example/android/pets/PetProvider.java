@@ -1,16 +1,59 @@
 package com.example.android.pets;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.os.ResultReceiver;
 import android.util.Log;
-import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.example.android.pets.data.CatalogFilter;
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetBackup;
+import com.example.android.pets.data.PetBreeds;
+import com.example.android.pets.data.PetChangeLog;
+import com.example.android.pets.data.PetCodec;
 import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetPhotos;
+import com.example.android.pets.data.PetShelters;
+import com.example.android.pets.data.PetTombstones;
+import com.example.android.pets.data.PetTransfer;
+import com.example.android.pets.data.StorageProfile;
 
 import static com.example.android.pets.data.PetContract.*;
 
@@ -20,12 +63,132 @@ import static com.example.android.pets.data.PetContract.*;
 
 public class PetProvider extends ContentProvider {
 
-    /* Inicializ Helper and make it global */
-    private PetDbHelper helper;
+    /* Inicializ Helper and make it global. Built off the main thread, see helper(). */
+    private FutureTask <PetDbHelper> helperTask;
+
+    /* Database files of the other shelters of the region */
+    private PetShelters shelters;
+
+    /* Runs the region queries on every shelter at once */
+    private final PetShelterFanOut fanOut = new PetShelterFanOut(FAN_OUT_THREADS);
+
+    /* Recently read pets, served to PETS_ID queries without touching SQLite */
+    private final PetRowCache rowCache = new PetRowCache(ROW_CACHE_SIZE);
+
+    /* Sends change notifications after commit, coalesced per window */
+    private PetChangeDispatcher changeDispatcher;
+
+    /* URIs waiting to be notified while an applyBatch() runs on the current thread */
+    private final ThreadLocal <Set <Uri>> batchNotifications = new ThreadLocal <>( );
+
+    /* Latency and row counts of every call, per operation and URI */
+    private final PetProviderMetrics metrics = new PetProviderMetrics(
+            new int[]{PETS, PETS_ID, PETS_SEARCH, PETS_STATS, PETS_STATS_BREEDS, PETS_PHOTO,
+                    SHELTERS, SHELTERS_PETS, SHELTERS_COUNT, SHELTER_PETS, SHELTER_PETS_ID,
+                    PETS_CHANGES},
+            new String[]{PATH_PETS, PATH_PETS_ID, PATH_PETS_SEARCH, PATH_PETS_STATS,
+                    PATH_PETS_STATS_BREEDS, PATH_PETS_PHOTO, PATH_SHELTERS, PATH_SHELTERS_PETS,
+                    PATH_SHELTERS_COUNT, PATH_SHELTER_PETS, PATH_SHELTER_PETS_ID,
+                    PATH_PETS_CHANGES},
+            SLOW_CALL_MILLIS);
+
+    /* Every use of the database holds the read lock; a restore takes the write lock while it
+     * swaps the file, so no call ever sees the database closed under it */
+    private final ReentrantReadWriteLock databaseLock = new ReentrantReadWriteLock( );
+
+    /* Set while a purge of deleted pets is waiting to run */
+    private final AtomicBoolean purgeScheduled = new AtomicBoolean( );
+
+    /* Set by shutdown(); background work queued before it finds the databases closed */
+    private volatile boolean shutDown;
+
+    /* Totals for the stats URI. Reads the three rows of the gender summary, plus the top of the
+     * weight index for the maximum, so it costs the same for any number of pets. */
+    private static final String SQL_STATS =
+            "SELECT IFNULL(SUM(" + StatsEntry.COLUMN_COUNT + "), 0) AS " + StatsEntry.COLUMN_TOTAL +
+                    ", " + genderCount(PetEntry.GENDER_UNKNOWN, StatsEntry.COLUMN_COUNT_UNKNOWN) +
+                    ", " + genderCount(PetEntry.GENDER_MALE, StatsEntry.COLUMN_COUNT_MALE) +
+                    ", " + genderCount(PetEntry.GENDER_FEMALE, StatsEntry.COLUMN_COUNT_FEMALE) +
+                    ", IFNULL(CAST(SUM(" + StatsEntry.COLUMN_WEIGHT_SUM + ") AS REAL) / NULLIF(SUM(" +
+                    StatsEntry.COLUMN_COUNT + "), 0), 0) AS " + StatsEntry.COLUMN_AVERAGE_WEIGHT +
+                    ", IFNULL((SELECT MAX(" + PetEntry.COLUMN_PET_WEIGHT + ") FROM " +
+                    PetEntry.TABLE_NAME + " WHERE " + PetTombstones.SQL_VISIBLE + "), 0) AS " +
+                    StatsEntry.COLUMN_MAX_WEIGHT +
+                    " FROM " + StatsEntry.TABLE_GENDER_STATS;
+
+    /* Bump the photo version of a visible pet, parameters: current time, _id */
+    private static final String SQL_SET_PHOTO =
+            "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_PHOTO + " = MAX(" +
+                    PetEntry.COLUMN_PET_PHOTO + " + 1, ?) WHERE " + PetEntry._ID + " = ? AND " +
+                    PetTombstones.SQL_VISIBLE;
+
+    /* Changes after a sequence number, with the current values of the pets. The log entry of a
+     * pet deleted since it was logged reads as a delete. Walks the primary key of the log from
+     * the given sequence, plus one lookup per change. Parameters: since, limit. */
+    private static final String SQL_CHANGES =
+            "SELECT c." + PetChangeLog.COLUMN_SEQUENCE + " AS " + ChangeEntry.COLUMN_SEQUENCE +
+                    ", c." + PetChangeLog.COLUMN_PET_ID + " AS " + PetEntry._ID +
+                    ", CASE WHEN c." + PetChangeLog.COLUMN_OPERATION + " = " +
+                    ChangeEntry.OP_UPSERT + " AND " + PetEntry.TABLE_NAME + "." + PetEntry._ID +
+                    " IS NULL THEN " + ChangeEntry.OP_DELETE + " ELSE c." +
+                    PetChangeLog.COLUMN_OPERATION + " END AS " + ChangeEntry.COLUMN_OPERATION +
+                    ", " + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_NAME + " AS " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetBreeds.TABLE_BREEDS + "." +
+                    PetBreeds.COLUMN_NAME + " AS " + PetEntry.COLUMN_PET_BREED +
+                    ", " + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT +
+                    ", " + PetEntry.COLUMN_PET_PHOTO +
+                    " FROM " + PetChangeLog.TABLE_CHANGES + " AS c LEFT JOIN " +
+                    PetEntry.TABLE_NAME + " ON " + PetEntry.TABLE_NAME + "." + PetEntry._ID +
+                    " = c." + PetChangeLog.COLUMN_PET_ID + " AND c." +
+                    PetChangeLog.COLUMN_OPERATION + " = " + ChangeEntry.OP_UPSERT + " AND " +
+                    PetTombstones.SQL_VISIBLE + " LEFT JOIN " + PetBreeds.TABLE_BREEDS + " ON " +
+                    PetBreeds.TABLE_BREEDS + "." + PetEntry._ID + " = " +
+                    PetBreeds.COLUMN_BREED_ID +
+                    " WHERE c." + PetChangeLog.COLUMN_SEQUENCE + " > %d ORDER BY c." +
+                    PetChangeLog.COLUMN_SEQUENCE + " LIMIT %d";
+
+    private static String genderCount( int gender, String alias ) {
+        return "IFNULL(SUM(CASE " + StatsEntry.COLUMN_GENDER + " WHEN " + gender + " THEN " +
+                StatsEntry.COLUMN_COUNT + " END), 0) AS " + alias;
+    }
+
+    /* Changes are coalesced into one notification per window of this length */
+    private static final long NOTIFICATION_WINDOW_MILLIS = 100;
+
+    /* Calls taking longer than this are kept in the slow call log */
+    private static final long SLOW_CALL_MILLIS = 50;
+
+    /* Number of pet rows kept in the row cache */
+    private static final int ROW_CACHE_SIZE = 500;
+
+    /* Shelters queried at the same time by a region query */
+    private static final int FAN_OUT_THREADS =
+            Math.max(2, Math.min(4, Runtime.getRuntime( ).availableProcessors( )));
+
+    /* Columns of a region pet query without a projection */
+    private static final String[] REGION_PET_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO};
 
     /* Constants Codes for UriMatcher */
     private static final int PETS = 100;
     private static final int PETS_ID = 101;
+    private static final int PETS_SEARCH = 102;
+    private static final int PETS_STATS = 103;
+    private static final int PETS_STATS_BREEDS = 104;
+    private static final int PETS_EXPORT = 105;
+    private static final int PETS_PHOTO = 106;
+    private static final int PETS_THUMBNAIL = 107;
+    private static final int SHELTERS = 108;
+    private static final int SHELTERS_PETS = 109;
+    private static final int SHELTERS_COUNT = 110;
+    private static final int SHELTER_PETS = 111;
+    private static final int SHELTER_PETS_ID = 112;
+    private static final int PETS_CHANGES = 113;
 
     /* Inicialize UriMatcher */
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -33,6 +196,18 @@ public class PetProvider extends ContentProvider {
     static {
         sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS, PETS);
         sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS_ID, PETS_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS_SEARCH, PETS_SEARCH);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS_STATS, PETS_STATS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS_STATS_BREEDS, PETS_STATS_BREEDS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS_EXPORT, PETS_EXPORT);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS_PHOTO, PETS_PHOTO);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS_THUMBNAIL, PETS_THUMBNAIL);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS, SHELTERS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS_PETS, SHELTERS_PETS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS_COUNT, SHELTERS_COUNT);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTER_PETS, SHELTER_PETS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTER_PETS_ID, SHELTER_PETS_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS_CHANGES, PETS_CHANGES);
     }
 
     /**
@@ -41,40 +216,204 @@ public class PetProvider extends ContentProvider {
     public static final String LOG_TAG = PetProvider.class.getSimpleName( );
 
     /**
-     * Initialize the provider and the database helper object.
+     * Initialize the provider. Runs on the main thread while the process starts, so the
+     * database helper is built, and the database opened, upgraded and warmed, in the
+     * background; a call arriving before that is done waits for it.
      */
     @Override
     public boolean onCreate() {
-        helper = new PetDbHelper(getContext( ));
+        final boolean coldStart = PetStartup.begin( );
+        final Context context = getContext( );
+        helperTask = new FutureTask <>(new Callable <PetDbHelper>( ) {
+            @Override
+            public PetDbHelper call() {
+                return createDbHelper(context);
+            }
+        });
+        shelters = new PetShelters(context, StorageProfile.forName(BuildConfig.DB_STORAGE_PROFILE),
+                AsyncTask.THREAD_POOL_EXECUTOR);
+        changeDispatcher = new PetChangeDispatcher(context.getContentResolver( ),
+                NOTIFICATION_WINDOW_MILLIS);
+
+        // Warm up, then finish any data migration left by an upgrade and the purge of pets
+        // deleted in the last session, without blocking startup
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable( ) {
+            @Override
+            public void run() {
+                if (coldStart) {
+                    warmUp( );
+                }
+                databaseLock.readLock( ).lock( );
+                try {
+                    if (shutDown) {
+                        return;
+                    }
+                    helper( ).runPendingBackfills( );
+                } finally {
+                    databaseLock.readLock( ).unlock( );
+                }
+                schedulePurge( );
+            }
+        });
         return true;
     }
 
+    /**
+     * Returns the database helper, building it on the calling thread if the startup task has
+     * not got to it yet.
+     */
+    private PetDbHelper helper() {
+        // No-op if the task already ran or is running on another thread
+        helperTask.run( );
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return helperTask.get( );
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause( ) instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause( );
+            }
+            throw new IllegalStateException(e.getCause( ));
+        } finally {
+            if (interrupted) {
+                Thread.currentThread( ).interrupt( );
+            }
+        }
+    }
+
+    /* Open the database, which runs any upgrade, then read the first page of the catalog.
+     * That loads the pages of its index into the SQLite cache, and the rows are kept for the
+     * catalog to take instead of querying. A failure is left for the first call to report. */
+    private void warmUp() {
+        PetDbHelper dbHelper = helper( );
+        PetStartup.mark(PetStartup.HELPER_CREATED);
+        databaseLock.readLock( ).lock( );
+        try {
+            dbHelper.getWritableDatabase( );
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Cannot open the database", e);
+            return;
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+        PetStartup.mark(PetStartup.DATABASE_OPENED);
+
+        Uri uri = CatalogFilter.startPageUri( );
+        long generation = PetStartup.generation( );
+        try {
+            Cursor cursor = query(uri, CatalogFilter.PAGE_PROJECTION, null, null, null);
+            try {
+                PetStartup.putFirstPage(uri, CatalogFilter.PAGE_PROJECTION,
+                        PetListItem.readAll(cursor), generation);
+            } finally {
+                cursor.close( );
+            }
+        } catch (RuntimeException e) {
+            // The catalog will query for itself
+            Log.w(LOG_TAG, "Cannot prefetch the first page of the catalog", e);
+            return;
+        }
+        PetStartup.mark(PetStartup.FIRST_PAGE_PREFETCHED);
+    }
+
+    /**
+     * Returns the helper of the database this provider serves, pets.db by default. Subclasses
+     * may point the provider at another file.
+     */
+    protected PetDbHelper createDbHelper( Context context ) {
+        return new PetDbHelper(context);
+    }
+
+    /**
+     * Close the databases, once the calls and the background work in flight are done. The
+     * system never shuts a provider down; this is for the ones built by tests and benchmarks.
+     */
+    @Override
+    public void shutdown() {
+        databaseLock.writeLock( ).lock( );
+        try {
+            shutDown = true;
+            helper( ).close( );
+            for (PetDbHelper shelter : shelters.pooled( )) {
+                shelter.close( );
+            }
+        } finally {
+            databaseLock.writeLock( ).unlock( );
+        }
+    }
+
+    /* Remove soft deleted pets in the background. Deletes in a row share one purge. */
+    private void schedulePurge() {
+        if (!purgeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable( ) {
+            @Override
+            public void run() {
+                purgeScheduled.set(false);
+                databaseLock.readLock( ).lock( );
+                try {
+                    if (shutDown) {
+                        return;
+                    }
+                    helper( ).purgeDeletedPets( );
+                    for (PetDbHelper shelter : shelters.pooled( )) {
+                        shelter.purgeDeletedPets( );
+                    }
+                } finally {
+                    databaseLock.readLock( ).unlock( );
+                }
+            }
+        });
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
      */
     @Override
     public Cursor query( Uri uri, String[] projection, String selection, String[] selectionArgs,
                          String sortOrder ) {
+        databaseLock.readLock( ).lock( );
+        try {
+            long start = System.nanoTime( );
+
+            // Figure out if the URI matcher can match the URI to a specific code
+            uri = resolveMainShelter(uri);
+            int match = sUriMatcher.match(uri);
+            Cursor cursor = queryUri(match, uri, projection, selection, selectionArgs, sortOrder);
+
+            // SQLite only runs the query when the cursor is first filled, so fill it here to
+            // time it
+            metrics.record(PetProviderMetrics.QUERY, match, uri, selection, sortOrder,
+                    cursor.getCount( ), start);
+            return cursor;
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    private Cursor queryUri( int match, Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder ) {
         // Get readable database
-        SQLiteDatabase database = helper.getReadableDatabase( );
+        SQLiteDatabase database = helper( ).getReadableDatabase( );
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
                 // For the PETS code, query the pets table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
-                cursor = database.query(
-                        PetEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
+                //
+                // Catalog filters, sort and keyset pagination can also be given as query
+                // parameters, see CatalogFilter.
+                cursor = queryCatalog(database, uri, projection, selection, selectionArgs,
                         sortOrder);
                 break;
             case PETS_ID:
@@ -86,14 +425,79 @@ public class PetProvider extends ContentProvider {
                 // For every "?" in the selection, we need to have an element in the selection
                 // arguments that will fill in the "?". Since we have 1 question mark in the
                 // selection, we have 1 String in the selection arguments' String array.
-                selection = PetEntry._ID + "=?";
+                if (selection == null && PetRowCache.canProject(projection)) {
+                    // Plain lookup by _id, the row cache can answer it
+                    cursor = queryPetById(database, ContentUris.parseId(uri), projection);
+                    break;
+                }
+                selection = PetEntry._ID + "=? AND " + PetTombstones.SQL_VISIBLE;
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
 
                 // This will perform a query on the pets table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = database.query(PetBreeds.SQL_PETS_WITH_BREED, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case PETS_SEARCH:
+                cursor = searchPets(database, uri.getLastPathSegment( ), projection, selection,
+                        selectionArgs, sortOrder);
+                // Any pet may enter or leave the results, so watch the whole list
+                cursor.setNotificationUri(getContext( ).getContentResolver( ), PetEntry.CONTENT_URI);
+                return cursor;
+            case PETS_STATS:
+                cursor = database.query("(" + SQL_STATS + ")", projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                // Stats change with every write on the pets table
+                cursor.setNotificationUri(getContext( ).getContentResolver( ), PetEntry.CONTENT_URI);
+                return cursor;
+            case PETS_STATS_BREEDS:
+                if (sortOrder == null) {
+                    sortOrder = StatsEntry.COLUMN_COUNT + " DESC, " + StatsEntry.COLUMN_BREED;
+                }
+                cursor = database.query(StatsEntry.TABLE_BREED_STATS, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                cursor.setNotificationUri(getContext( ).getContentResolver( ), PetEntry.CONTENT_URI);
+                return cursor;
+            case SHELTERS:
+                cursor = queryShelters( );
+                break;
+            case SHELTER_PETS:
+                PetDbHelper shelter = shelters.getIfExists(shelterName(uri));
+                if (shelter == null) {
+                    // Reading a shelter does not create it
+                    cursor = new MatrixCursor(projection == null ? REGION_PET_COLUMNS : projection);
+                } else {
+                    cursor = queryCatalog(shelter.getReadableDatabase( ), uri, projection,
+                            selection, selectionArgs, sortOrder);
+                }
                 break;
+            case SHELTER_PETS_ID:
+                shelter = shelters.getIfExists(shelterName(uri));
+                if (shelter == null) {
+                    // Reading a shelter does not create it
+                    cursor = new MatrixCursor(projection == null ? REGION_PET_COLUMNS : projection);
+                } else {
+                    cursor = shelter.getReadableDatabase( ).query(PetBreeds.SQL_PETS_WITH_BREED,
+                            projection, PetEntry._ID + "=? AND " + PetTombstones.SQL_VISIBLE,
+                            new String[]{String.valueOf(ContentUris.parseId(uri))},
+                            null, null, sortOrder);
+                }
+                break;
+            case SHELTERS_PETS:
+                cursor = queryRegionPets(uri, projection, selection, selectionArgs, sortOrder);
+                // Any shelter may change the result, the main one included
+                cursor.setNotificationUri(getContext( ).getContentResolver( ), BASE_CONTENT_URI);
+                return cursor;
+            case SHELTERS_COUNT:
+                cursor = countRegionPets(uri, selection, selectionArgs);
+                cursor.setNotificationUri(getContext( ).getContentResolver( ), BASE_CONTENT_URI);
+                return cursor;
+            case PETS_CHANGES:
+                cursor = queryChanges(database, uri, projection, selection, selectionArgs,
+                        sortOrder);
+                // Every write on the pets adds to the log
+                cursor.setNotificationUri(getContext( ).getContentResolver( ), PetEntry.CONTENT_URI);
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -101,17 +505,791 @@ public class PetProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Return one pet from the row cache, reading the whole row from the database and caching
+     * it on a miss.
+     */
+    private Cursor queryPetById( SQLiteDatabase database, long id, String[] projection ) {
+        Pet pet = rowCache.get(id);
+        if (pet == null) {
+            long generation = rowCache.generation( );
+            Cursor cursor = database.query(PetBreeds.SQL_PETS_WITH_BREED, PetRowCache.ALL_COLUMNS,
+                    PetEntry._ID + "=? AND " + PetTombstones.SQL_VISIBLE,
+                    new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (cursor.moveToFirst( )) {
+                    pet = new PetCodec.Reader(cursor).read( );
+                    rowCache.putIfCurrent(pet, generation);
+                }
+            } finally {
+                cursor.close( );
+            }
+        }
+        return PetRowCache.toCursor(projection, pet);
+    }
+
+    /**
+     * Returns the URI unchanged, unless it is a scoped URI of the main shelter: that one is
+     * served, and notified, as the same {@link PetEntry} URI of pets.db.
+     */
+    private static Uri resolveMainShelter( Uri uri ) {
+        int match = sUriMatcher.match(uri);
+        if ((match != SHELTER_PETS && match != SHELTER_PETS_ID) ||
+                !ShelterEntry.MAIN_SHELTER.equals(shelterName(uri))) {
+            return uri;
+        }
+        Uri.Builder builder = PetEntry.CONTENT_URI.buildUpon( );
+        if (match == SHELTER_PETS_ID) {
+            builder.appendPath(uri.getLastPathSegment( ));
+        }
+        return builder.encodedQuery(uri.getEncodedQuery( )).build( );
+    }
+
+    /* Shelter of a SHELTER_PETS or SHELTER_PETS_ID URI: shelters/<name>/pets */
+    private static String shelterName( Uri uri ) {
+        return uri.getPathSegments( ).get(1);
+    }
+
+    /* The main shelter first, then the others by name */
+    private List <String> allShelters() {
+        List <String> names = new ArrayList <>( );
+        names.add(ShelterEntry.MAIN_SHELTER);
+        names.addAll(shelters.names( ));
+        return names;
+    }
+
+    private PetDbHelper shelterHelper( String shelter ) {
+        if (ShelterEntry.MAIN_SHELTER.equals(shelter)) {
+            return helper( );
+        }
+        return shelters.getIfExists(shelter);
+    }
+
+    private Cursor queryShelters() {
+        MatrixCursor cursor = new MatrixCursor(
+                new String[]{ShelterEntry._ID, ShelterEntry.COLUMN_SHELTER});
+        List <String> names = allShelters( );
+        for (int i = 0; i < names.size( ); i++) {
+            cursor.addRow(new Object[]{i, names.get(i)});
+        }
+        return cursor;
+    }
+
+    /**
+     * Query the pets of every shelter in parallel. Without sort and limit the shelters are
+     * returned one after the other; otherwise each shelter returns its first rows in the
+     * catalog order and they are merged, so a page costs one index seek per shelter.
+     */
+    private Cursor queryRegionPets( final Uri uri, String[] projection, final String selection,
+                                    final String[] selectionArgs, final String sortOrder ) {
+        if (uri.getQueryParameter(QUERY_PARAMETER_AFTER_ID) != null) {
+            throw new IllegalArgumentException("Ids are per shelter, no after_id in " + uri);
+        }
+        String sort = uri.getQueryParameter(QUERY_PARAMETER_SORT);
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        boolean merge = sort != null || limit != null;
+        if (merge && sortOrder != null) {
+            throw new IllegalArgumentException("A sort order cannot be merged, use sort in " + uri);
+        }
+        String sortColumn = SORT_NAME.equals(sort) ? PetEntry.COLUMN_PET_NAME
+                : (SORT_WEIGHT.equals(sort) ? PetEntry.COLUMN_PET_WEIGHT : PetEntry._ID);
+
+        List <String> columns = new ArrayList <>(
+                Arrays.asList(projection == null ? REGION_PET_COLUMNS : projection));
+        if (merge && !columns.contains(PetEntry._ID)) {
+            columns.add(PetEntry._ID);
+        }
+        if (merge && !columns.contains(sortColumn)) {
+            columns.add(sortColumn);
+        }
+        columns.add(ShelterEntry.COLUMN_SHELTER);
+        final String[] names = columns.toArray(new String[columns.size( )]);
+
+        List <Cursor> cursors = fanOut.queryAll(allShelters( ),
+                new PetShelterFanOut.ShelterQuery( ) {
+                    @Override
+                    public Cursor query( String shelter ) {
+                        PetDbHelper helper = shelterHelper(shelter);
+                        if (helper == null) {
+                            return null;
+                        }
+                        // Shelter names are checked, they are safe in SQL
+                        String[] shelterProjection = names.clone( );
+                        shelterProjection[names.length - 1] =
+                                "'" + shelter + "' AS " + ShelterEntry.COLUMN_SHELTER;
+                        return queryCatalog(helper.getReadableDatabase( ), uri,
+                                shelterProjection, selection, selectionArgs, sortOrder);
+                    }
+                });
+        if (!merge) {
+            return PetShelterFanOut.concat(cursors, names);
+        }
+        return PetShelterFanOut.mergeSorted(cursors, names, sortColumn,
+                !SORT_NAME.equals(sort), SORT_NEWEST.equals(sort), PetEntry._ID,
+                limit == null ? -1 : (int) parseQueryNumber(uri, limit));
+    }
+
+    /**
+     * Count the pets of every shelter that match the catalog filters of the URI, in parallel.
+     * One row per shelter.
+     */
+    private Cursor countRegionPets( Uri uri, final String selection,
+                                    final String[] selectionArgs ) {
+        // Sort and paging parameters mean nothing to a count
+        Uri.Builder builder = PetEntry.CONTENT_URI.buildUpon( );
+        for (String parameter : new String[]{QUERY_PARAMETER_GENDER, QUERY_PARAMETER_MIN_WEIGHT,
+                QUERY_PARAMETER_MAX_WEIGHT, QUERY_PARAMETER_BREED}) {
+            String value = uri.getQueryParameter(parameter);
+            if (value != null) {
+                builder.appendQueryParameter(parameter, value);
+            }
+        }
+        final Uri filterUri = builder.build( );
+
+        String[] columns = {ShelterEntry.COLUMN_SHELTER, ShelterEntry.COLUMN_COUNT};
+        List <Cursor> cursors = fanOut.queryAll(allShelters( ),
+                new PetShelterFanOut.ShelterQuery( ) {
+                    @Override
+                    public Cursor query( String shelter ) {
+                        PetDbHelper helper = shelterHelper(shelter);
+                        if (helper == null) {
+                            return null;
+                        }
+                        return queryCatalog(helper.getReadableDatabase( ), filterUri,
+                                new String[]{"'" + shelter + "' AS " + ShelterEntry.COLUMN_SHELTER,
+                                        "COUNT(*) AS " + ShelterEntry.COLUMN_COUNT},
+                                selection, selectionArgs, null);
+                    }
+                });
+        return PetShelterFanOut.concat(cursors, columns);
+    }
+
+    /**
+     * Query the changes after the since parameter of the URI, at most limit of them, oldest
+     * first unless another sort order is given.
+     */
+    private Cursor queryChanges( SQLiteDatabase database, Uri uri, String[] projection,
+                                 String selection, String[] selectionArgs, String sortOrder ) {
+        String since = uri.getQueryParameter(QUERY_PARAMETER_SINCE);
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        // Both are checked to be numbers, they are safe in SQL
+        String changes = String.format(Locale.US, SQL_CHANGES,
+                since == null ? 0 : parseQueryNumber(uri, since),
+                limit == null ? -1 : parseQueryNumber(uri, limit));
+        if (sortOrder == null) {
+            sortOrder = ChangeEntry.COLUMN_SEQUENCE;
+        }
+        return database.query("(" + changes + ")", projection, selection, selectionArgs,
+                null, null, sortOrder);
+    }
+
+    /**
+     * Drop the cached rows a write on the given URI may have changed: one pet for a PETS_ID
+     * URI, every pet for a write on the whole table.
+     */
+    private void invalidateCachedPets( Uri uri ) {
+        int match = sUriMatcher.match(uri);
+        if (match == PETS_ID) {
+            rowCache.invalidate(ContentUris.parseId(uri));
+        } else if (match == PETS_PHOTO) {
+            // The photo version is not among the cached columns
+        } else if (match == SHELTER_PETS || match == SHELTER_PETS_ID) {
+            // Only the pets of the main shelter are cached
+        } else {
+            rowCache.invalidateAll( );
+        }
+    }
+
+    /**
+     * Handles provider methods called through {@link android.content.ContentResolver#call}.
+     * {@link #METHOD_GET_CACHE_STATS} returns the hit and miss counters of the row cache,
+     * {@link #METHOD_GET_METRICS} the call metrics, which {@link #METHOD_RESET_METRICS} clears.
+     * {@link #METHOD_IMPORT_PETS} imports a file, see {@link #importPets(InputStream, String,
+     * int, PetTransfer.Progress)}. {@link #METHOD_BACKUP} and {@link #METHOD_RESTORE} take and
+     * restore a hot backup, see {@link #backup()} and {@link #restoreBackup()}.
+     * {@link #METHOD_GET_CHANGE_LOG} returns the epoch and last sequence of the change log.
+     * {@link #METHOD_BULK_INSERT} is a bulk insert that returns the rejected positions.
+     */
+    @Override
+    public Bundle call( String method, String arg, Bundle extras ) {
+        if (METHOD_IMPORT_PETS.equals(method)) {
+            return importPets(arg, extras);
+        }
+        if (METHOD_BULK_INSERT.equals(method)) {
+            return bulkInsertValues(arg, extras);
+        }
+        if (METHOD_BACKUP.equals(method) || METHOD_RESTORE.equals(method)) {
+            try {
+                if (METHOD_RESTORE.equals(method)) {
+                    restoreBackup( );
+                    return null;
+                }
+                PetBackup.Result backup = backup( );
+                Bundle result = new Bundle( );
+                result.putLong(KEY_PAGES_WRITTEN, backup.pagesWritten);
+                result.putLong(KEY_PAGES_TOTAL, backup.pagesTotal);
+                return result;
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot " + method + " the database", e);
+            }
+        }
+        if (METHOD_GET_CHANGE_LOG.equals(method)) {
+            databaseLock.readLock( ).lock( );
+            try {
+                SQLiteDatabase database = helper( ).getReadableDatabase( );
+                Bundle result = new Bundle( );
+                // Both in one transaction, so the sequence belongs to the epoch
+                database.beginTransactionNonExclusive( );
+                try {
+                    result.putString(KEY_EPOCH, PetChangeLog.epoch(database));
+                    result.putLong(KEY_LAST_SEQUENCE, PetChangeLog.lastSequence(database));
+                    database.setTransactionSuccessful( );
+                } finally {
+                    database.endTransaction( );
+                }
+                return result;
+            } finally {
+                databaseLock.readLock( ).unlock( );
+            }
+        }
+        if (METHOD_GET_METRICS.equals(method)) {
+            Bundle result = new Bundle( );
+            result.putString(KEY_METRICS, metrics.toJson( ));
+            return result;
+        }
+        if (METHOD_RESET_METRICS.equals(method)) {
+            metrics.reset( );
+            return null;
+        }
+        if (METHOD_GET_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle( );
+            stats.putInt(KEY_CACHE_HITS, rowCache.hitCount( ));
+            stats.putInt(KEY_CACHE_MISSES, rowCache.missCount( ));
+            stats.putInt(KEY_CACHE_SIZE, rowCache.size( ));
+            stats.putInt(KEY_CACHE_MAX_SIZE, rowCache.maxSize( ));
+            return stats;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Take a hot backup of the database while other calls keep running; writes wait until the
+     * pages are copied. Only pages that changed since the backup before last are written.
+     */
+    public PetBackup.Result backup() throws IOException {
+        databaseLock.readLock( ).lock( );
+        try {
+            return helper( ).backup( );
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    /**
+     * Replace the database by the last backup, in place: calls in flight finish first, the
+     * next ones wait for the swap and then see the restored pets. Cached rows are dropped and
+     * observers of the pets notified, and the change log starts a new epoch. The database is
+     * left untouched if the backup is missing or damaged.
+     */
+    public synchronized void restoreBackup() throws IOException {
+        // Copying and checking the backup does not touch the database, calls keep running
+        File restored = helper( ).prepareRestore( );
+        databaseLock.writeLock( ).lock( );
+        try {
+            helper( ).restore(restored);
+            rowCache.invalidateAll( );
+            // The backup's sequence numbers were handed out again since it was taken
+            PetChangeLog.renewEpoch(helper( ).getWritableDatabase( ));
+        } finally {
+            databaseLock.writeLock( ).unlock( );
+        }
+        notifyChange(PetEntry.CONTENT_URI);
+        // The backup may hold pets deleted before it was taken
+        schedulePurge( );
+    }
+
+    /**
+     * Open the files of the provider:
+     * <ul>
+     * <li>the export file of {@link PetEntry#CONTENT_EXPORT_URI}, streamed through a pipe. The
+     * pets are written by a background thread while the caller reads them;</li>
+     * <li>the photo of a pet, read straight from its file, or written through a pipe and saved
+     * with a new thumbnail once the caller closes it, see {@link #savePhoto};</li>
+     * <li>the thumbnail of a pet's photo, read only.</li>
+     * </ul>
+     */
+    @Override
+    public ParcelFileDescriptor openFile( Uri uri, String mode ) throws FileNotFoundException {
+        switch (sUriMatcher.match(uri)) {
+            case PETS_EXPORT:
+                return openExport(uri, mode, null);
+            case PETS_PHOTO:
+                if (mode.startsWith("w")) {
+                    return openPhotoForWriting(uri);
+                }
+                return openPhoto(uri, mode, helper( ).getPhotos( ).photoFile(photoPetId(uri)));
+            case PETS_THUMBNAIL:
+                return openPhoto(uri, mode, helper( ).getPhotos( ).thumbnailFile(photoPetId(uri)));
+            default:
+                throw new FileNotFoundException("No file at " + uri);
+        }
+    }
+
+    /**
+     * Open the export file like {@link #openFile}, reporting the progress to the
+     * {@link #KEY_PROGRESS_RECEIVER} option, if given. Other files are opened as usual.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile( Uri uri, String mimeTypeFilter, Bundle opts )
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PETS_EXPORT) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        String type = getType(uri);
+        if (type == null || !ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+            throw new FileNotFoundException("Cannot export " + uri + " as " + mimeTypeFilter);
+        }
+        return new AssetFileDescriptor(openExport(uri, "r", progressReceiver(opts)), 0,
+                AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    /* _id of the pet of a photo or thumbnail URI, pets/#/photo */
+    private static long photoPetId( Uri uri ) {
+        return Long.parseLong(uri.getPathSegments( ).get(1));
+    }
+
+    private static ParcelFileDescriptor openPhoto( Uri uri, String mode, File file )
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Cannot open " + uri + " in mode " + mode);
+        }
+        if (!file.exists( )) {
+            throw new FileNotFoundException("No photo at " + uri);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /* Hand the caller the write end of a pipe; a background thread saves what comes out */
+    private ParcelFileDescriptor openPhotoForWriting( final Uri uri ) throws FileNotFoundException {
+        final long id = photoPetId(uri);
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe( );
+        } catch (IOException e) {
+            throw new FileNotFoundException("Cannot open " + uri + ": " + e);
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable( ) {
+            @Override
+            public void run() {
+                InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]);
+                try {
+                    if (!savePhoto(id, in)) {
+                        Log.w(LOG_TAG, "No pet for the photo written to " + uri);
+                    }
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Photo written to " + uri + " not saved", e);
+                } finally {
+                    try {
+                        in.close( );
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+        return pipe[1];
+    }
+
+    /**
+     * Replace the photo of a pet by the JPEG image read from in, make its thumbnail and bump
+     * its {@link PetEntry#COLUMN_PET_PHOTO} version. Returns false, keeping no file, if the pet
+     * does not exist. Does not close in.
+     */
+    public boolean savePhoto( long id, InputStream in ) throws IOException {
+        databaseLock.readLock( ).lock( );
+        try {
+            PetPhotos photos = helper( ).getPhotos( );
+            photos.save(id, in);
+            SQLiteDatabase db = helper( ).getWritableDatabase( );
+            SQLiteStatement statement = db.compileStatement(SQL_SET_PHOTO);
+            int updated;
+            try {
+                statement.bindLong(1, System.currentTimeMillis( ));
+                statement.bindLong(2, id);
+                updated = statement.executeUpdateDelete( );
+            } finally {
+                statement.close( );
+            }
+            if (updated == 0) {
+                photos.delete(id);
+                return false;
+            }
+            notifyChange(PetEntry.buildPhotoUri(id));
+            return true;
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    /* Stream the export file through a pipe, telling progress, if not null, after each page */
+    private ParcelFileDescriptor openExport( Uri uri, String mode, PetTransfer.Progress progress )
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Export can only be read: " + uri);
+        }
+        if (getType(uri) == null) {
+            throw new FileNotFoundException("Unknown export format: " + uri);
+        }
+        return openPipeHelper(uri, getType(uri), null, progress,
+                new PipeDataWriter <PetTransfer.Progress>( ) {
+            @Override
+            public void writeDataToPipe( ParcelFileDescriptor output, Uri uri, String mimeType,
+                                         Bundle opts, PetTransfer.Progress progress ) {
+                OutputStream out = new FileOutputStream(output.getFileDescriptor( ));
+                try {
+                    long exported = exportPets(out, exportFormat(uri), progress);
+                    Log.d(LOG_TAG, "Exported " + exported + " pets to " + uri);
+                } catch (IOException e) {
+                    // Usually the reader closed its end early
+                    Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+                } finally {
+                    try {
+                        out.close( );
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+    }
+
+    private static String exportFormat( Uri uri ) {
+        String format = uri.getQueryParameter(QUERY_PARAMETER_FORMAT);
+        return format == null ? FORMAT_CSV : format;
+    }
+
+    /**
+     * Write every pet to out as {@link #FORMAT_CSV} or {@link #FORMAT_JSON}, reading the table
+     * in pages, so memory use does not grow with the number of pets. Progress, if not null, is
+     * told after each page. Returns the number of pets written.
+     */
+    public long exportPets( OutputStream out, String format, PetTransfer.Progress progress )
+            throws IOException {
+        databaseLock.readLock( ).lock( );
+        try {
+            if (PetTransfer.mimeType(format) == null) {
+                throw new IllegalArgumentException("Unknown export format " + format);
+            }
+            return PetTransfer.export(helper( ).getReadableDatabase( ), format, out, progress);
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    /**
+     * Insert the pets of a {@link #FORMAT_CSV} or {@link #FORMAT_JSON} file, parsed as it is
+     * read and committed every chunkSize pets. Observers are notified after each chunk and
+     * progress, if not null, is told how many pets were read so far. Does not close in.
+     */
+    public PetTransfer.ImportResult importPets( InputStream in, String format, int chunkSize,
+                                                final PetTransfer.Progress progress )
+            throws IOException {
+        databaseLock.readLock( ).lock( );
+        try {
+            if (PetTransfer.mimeType(format) == null) {
+                throw new IllegalArgumentException("Unknown import format " + format);
+            }
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("Chunk size must be positive");
+            }
+            SQLiteDatabase db = helper( ).getWritableDatabase( );
+            PetTransfer.ImportResult result = PetTransfer.importPets(db, helper( ).getBreeds( ),
+                    format, in, chunkSize, new PetTransfer.Progress( ) {
+                        @Override
+                        public void onProgress( long pets ) {
+                            notifyChange(PetEntry.CONTENT_URI);
+                            if (progress != null) {
+                                progress.onProgress(pets);
+                            }
+                        }
+                    });
+            if (result.rejected != 0) {
+                Log.e(LOG_TAG, "Import rejected " + result.rejected + " pets");
+            }
+            return result;
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    /* METHOD_IMPORT_PETS: import the file at the URI given as arg */
+    private Bundle importPets( String source, Bundle extras ) {
+        if (source == null) {
+            throw new IllegalArgumentException("Missing the URI of the file to import");
+        }
+        String format = FORMAT_CSV;
+        int chunkSize = PetTransfer.DEFAULT_CHUNK_SIZE;
+        if (extras != null) {
+            format = extras.getString(KEY_FORMAT, FORMAT_CSV);
+            chunkSize = extras.getInt(KEY_CHUNK_SIZE, PetTransfer.DEFAULT_CHUNK_SIZE);
+        }
+
+        PetTransfer.ImportResult result;
+        try {
+            InputStream in = getContext( ).getContentResolver( ).openInputStream(Uri.parse(source));
+            if (in == null) {
+                throw new IllegalArgumentException("Cannot open " + source);
+            }
+            try {
+                result = importPets(in, format, chunkSize, progressReceiver(extras));
+            } finally {
+                in.close( );
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot import " + source, e);
+        }
+
+        Bundle bundle = new Bundle( );
+        bundle.putLong(KEY_IMPORTED, result.imported);
+        bundle.putLong(KEY_REJECTED, result.rejected);
+        return bundle;
+    }
+
+    /* Reports progress to the KEY_PROGRESS_RECEIVER of extras, or null if there is none */
+    private static PetTransfer.Progress progressReceiver( Bundle extras ) {
+        final ResultReceiver receiver = extras == null ? null
+                : (ResultReceiver) extras.getParcelable(KEY_PROGRESS_RECEIVER);
+        if (receiver == null) {
+            return null;
+        }
+        return new PetTransfer.Progress( ) {
+            @Override
+            public void onProgress( long pets ) {
+                Bundle data = new Bundle( );
+                data.putLong(KEY_PETS_PROCESSED, pets);
+                receiver.send(RESULT_PROGRESS, data);
+            }
+        };
+    }
+
+    /**
+     * Query the pets table applying the catalog query parameters of the URI on top of the
+     * caller's selection:
+     * <ul>
+     * <li>gender, min_weight, max_weight and breed add conditions;</li>
+     * <li>sort orders by name, weight or newest first (default _id), always with _id as
+     * tie-breaker so the order is total;</li>
+     * <li>after_id (plus after_key, the name or weight of that row, for name and weight sort)
+     * and limit select the next page with a keyset condition, never with an OFFSET.</li>
+     * </ul>
+     * Every filter and sort used by the catalog has a covering index, see PetDbHelper; the
+     * breed filter looks the name up once and then compares ids. Deleted pets waiting for the
+     * purge are left out.
+     */
+    private Cursor queryCatalog( SQLiteDatabase database, Uri uri, String[] projection,
+                                 String selection, String[] selectionArgs, String sortOrder ) {
+        List <String> args = new ArrayList <>( );
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                args.add(arg);
+            }
+        }
+        selection = appendSelection(selection, PetTombstones.SQL_VISIBLE);
+
+        String gender = uri.getQueryParameter(QUERY_PARAMETER_GENDER);
+        if (gender != null) {
+            selection = appendSelection(selection, PetEntry.COLUMN_PET_GENDER + " = ?");
+            args.add(String.valueOf(parseQueryNumber(uri, gender)));
+        }
+        String minWeight = uri.getQueryParameter(QUERY_PARAMETER_MIN_WEIGHT);
+        if (minWeight != null) {
+            selection = appendSelection(selection, PetEntry.COLUMN_PET_WEIGHT + " >= ?");
+            args.add(String.valueOf(parseQueryNumber(uri, minWeight)));
+        }
+        String maxWeight = uri.getQueryParameter(QUERY_PARAMETER_MAX_WEIGHT);
+        if (maxWeight != null) {
+            selection = appendSelection(selection, PetEntry.COLUMN_PET_WEIGHT + " <= ?");
+            args.add(String.valueOf(parseQueryNumber(uri, maxWeight)));
+        }
+        String breed = uri.getQueryParameter(QUERY_PARAMETER_BREED);
+        if (breed != null) {
+            selection = appendSelection(selection, PetBreeds.SQL_HAS_BREED);
+            args.add(breed);
+        }
+
+        String sort = uri.getQueryParameter(QUERY_PARAMETER_SORT);
+        String afterId = uri.getQueryParameter(QUERY_PARAMETER_AFTER_ID);
+        String afterKey = uri.getQueryParameter(QUERY_PARAMETER_AFTER_KEY);
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        if (afterId != null) {
+            afterId = String.valueOf(parseQueryNumber(uri, afterId));
+        }
+        if (limit != null) {
+            limit = String.valueOf(parseQueryNumber(uri, limit));
+        }
+
+        String order;
+        if (SORT_NAME.equals(sort) || SORT_WEIGHT.equals(sort)) {
+            String column = SORT_NAME.equals(sort)
+                    ? PetEntry.COLUMN_PET_NAME : PetEntry.COLUMN_PET_WEIGHT;
+            order = column + ", " + PetEntry._ID;
+            if (afterId != null) {
+                if (afterKey == null) {
+                    throw new IllegalArgumentException("Missing after_key in " + uri);
+                }
+                selection = appendSelection(selection, "(" + column + " > ? OR (" + column +
+                        " = ? AND " + PetEntry._ID + " > ?))");
+                args.add(afterKey);
+                args.add(afterKey);
+                args.add(afterId);
+            }
+        } else if (SORT_NEWEST.equals(sort)) {
+            order = PetEntry._ID + " DESC";
+            if (afterId != null) {
+                selection = appendSelection(selection, PetEntry._ID + " < ?");
+                args.add(afterId);
+            }
+        } else if (sort == null) {
+            order = PetEntry._ID + " ASC";
+            if (afterId != null) {
+                selection = appendSelection(selection, PetEntry._ID + " > ?");
+                args.add(afterId);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown sort in " + uri);
+        }
+        if (sortOrder == null && (sort != null || afterId != null || limit != null)) {
+            sortOrder = order;
+        }
+
+        return database.query(
+                PetBreeds.SQL_PETS_WITH_BREED,
+                projection,
+                selection,
+                args.isEmpty( ) ? null : args.toArray(new String[args.size( )]),
+                null,
+                null,
+                sortOrder,
+                limit);
+    }
+
+    /* Join an extra condition to the caller's selection */
+    private static String appendSelection( String selection, String condition ) {
+        if (selection == null || selection.isEmpty( )) {
+            return condition;
+        }
+        return "(" + selection + ") AND " + condition;
+    }
+
+    private static long parseQueryNumber( Uri uri, String value ) {
+        try {
+            long number = Long.parseLong(value);
+            if (number < 0) {
+                throw new IllegalArgumentException("Negative query parameter in " + uri);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid query parameter in " + uri, e);
+        }
+    }
+
+    /**
+     * Query the pets whose name or breed contains words starting with the words of the term.
+     * The lookup goes through the full-text index, never through a scan of the pets table.
+     * Unless a sort order is given, pets whose name matches rank above pets matched only by
+     * breed, then they are sorted by name.
+     */
+    private Cursor searchPets( SQLiteDatabase database, String term, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder ) {
+        String match = buildMatchExpression(term, null);
+        if (match == null) {
+            // Nothing searchable in the term, return an empty result with the right columns
+            return database.query(PetBreeds.SQL_PETS_WITH_BREED, projection, "0", null, null, null,
+                    null);
+        }
+
+        List <String> args = new ArrayList <>( );
+        args.add(match);
+        String where = PetEntry._ID + " IN (SELECT docid FROM " + PetEntry.FTS_TABLE_NAME +
+                " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH ?) AND " +
+                PetTombstones.SQL_VISIBLE;
+        if (selection != null && !selection.isEmpty( )) {
+            where = where + " AND (" + selection + ")";
+            if (selectionArgs != null) {
+                for (String arg : selectionArgs) {
+                    args.add(arg);
+                }
+            }
+        }
+
+        if (sortOrder == null || sortOrder.isEmpty( )) {
+            args.add(buildMatchExpression(term, PetEntry.COLUMN_PET_NAME));
+            sortOrder = PetEntry._ID + " IN (SELECT docid FROM " + PetEntry.FTS_TABLE_NAME +
+                    " WHERE " + PetEntry.FTS_TABLE_NAME + " MATCH ?) DESC, " +
+                    PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE";
+        }
+
+        return database.query(PetBreeds.SQL_PETS_WITH_BREED, projection, where,
+                args.toArray(new String[args.size( )]), null, null, sortOrder);
+    }
+
+    /**
+     * Turn a user typed term into an FTS prefix query, e.g. "gold ret" becomes "gold* ret*".
+     * Characters with a meaning in the FTS syntax are dropped. When column is not null every
+     * word is restricted to that column. Returns null if no word is left.
+     */
+    private static String buildMatchExpression( String term, String column ) {
+        if (term == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder( );
+        for (String word : term.trim( ).split("\\s+")) {
+            StringBuilder clean = new StringBuilder( );
+            for (int i = 0; i < word.length( ); i++) {
+                char c = word.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    clean.append(c);
+                }
+            }
+            if (clean.length( ) == 0) {
+                continue;
+            }
+            if (match.length( ) > 0) {
+                match.append(' ');
+            }
+            if (column != null) {
+                match.append(column).append(':');
+            }
+            match.append(clean).append('*');
+        }
+        return match.length( ) == 0 ? null : match.toString( );
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
     @Override
     public Uri insert( Uri uri, ContentValues contentValues ) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return insertPet(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        databaseLock.readLock( ).lock( );
+        try {
+            long start = System.nanoTime( );
+            uri = resolveMainShelter(uri);
+            final int match = sUriMatcher.match(uri);
+            Uri petUri;
+            switch (match) {
+                case PETS:
+                    petUri = insertPet(helper( ), uri, contentValues);
+                    break;
+                case SHELTER_PETS:
+                    // The first pet of a shelter creates its database
+                    petUri = insertPet(shelters.get(shelterName(uri)), uri, contentValues);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+            metrics.record(PetProviderMetrics.INSERT, match, uri, null, null, petUri == null ? 0 : 1,
+                    start);
+            return petUri;
+        } finally {
+            databaseLock.readLock( ).unlock( );
         }
     }
 
@@ -119,19 +1297,17 @@ public class PetProvider extends ContentProvider {
      * Insert a pet into the database with the given content values. Return the new content URI
      * for that specific row in the database.
      */
-    private Uri insertPet( Uri uri, ContentValues values ) {
-
-        // Insert a new pet into the pets database table with the given ContentValues
-        // Get SQLdb
-        SQLiteDatabase db = helper.getReadableDatabase( );
+    private Uri insertPet( PetDbHelper dbHelper, Uri uri, ContentValues values ) {
 
         //Check if data is valid before insert
         if (checkContentValues(values) == false) {
             Log.e(LOG_TAG, "Invalid inputs were submitted");
             return null;
         } else {
-            // Insert data on db
-            long id = db.insert(PetEntry.TABLE_NAME, null, values);
+            // Insert data on db, with the breed as its id
+            SQLiteDatabase db = dbHelper.getWritableDatabase( );
+            long id = db.insert(PetEntry.TABLE_NAME, null,
+                    dbHelper.getBreeds( ).toStored(db, values));
 
             // Log if insertion failed
             if (id == -1) {
@@ -139,19 +1315,382 @@ public class PetProvider extends ContentProvider {
                 return null;
             }
 
-            getContext().getContentResolver().notifyChange(uri, null);
-            return ContentUris.withAppendedId(uri, id);
+            Uri petUri = ContentUris.withAppendedId(uri, id);
+            invalidateCachedPets(petUri);
+            notifyChange(petUri);
+            return petUri;
+        }
+    }
+
+    /**
+     * Outcome of a bulk insert: the number of pets inserted and the positions in the batch of
+     * the rows that were rejected, in increasing order. A row is rejected when it is invalid
+     * or when its insert breaks a constraint; the other rows are still inserted.
+     */
+    public static final class BulkInsertResult {
+        public final int inserted;
+        public final int[] rejected;
+
+        BulkInsertResult( int inserted, int[] rejected ) {
+            this.inserted = inserted;
+            this.rejected = rejected;
+        }
+    }
+
+    /**
+     * Insert many pets at once. All rows of the batch are validated before anything is written,
+     * then the valid ones are inserted inside a single transaction through one precompiled
+     * statement, and observers are notified only once at the end. Returns the number of rows
+     * inserted; {@link #METHOD_BULK_INSERT} also returns the positions of the rejected rows.
+     */
+    @Override
+    public int bulkInsert( Uri uri, ContentValues[] values ) {
+        return bulkInsertValues(uri, values).inserted;
+    }
+
+    private BulkInsertResult bulkInsertValues( Uri uri, ContentValues[] values ) {
+        databaseLock.readLock( ).lock( );
+        try {
+            long start = System.nanoTime( );
+            uri = resolveMainShelter(uri);
+            final int match = sUriMatcher.match(uri);
+            BulkInsertResult result;
+            switch (match) {
+                case PETS:
+                    result = bulkInsertPets(helper( ), uri, values);
+                    break;
+                case SHELTER_PETS:
+                    result = bulkInsertPets(shelters.get(shelterName(uri)), uri, values);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+            metrics.record(PetProviderMetrics.BULK_INSERT, match, uri, null, null,
+                    result.inserted, start);
+            return result;
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    /* METHOD_BULK_INSERT: bulk insert into the pets URI given as arg */
+    private Bundle bulkInsertValues( String arg, Bundle extras ) {
+        Parcelable[] parcels = extras == null ? null : extras.getParcelableArray(KEY_VALUES);
+        ContentValues[] values = new ContentValues[parcels == null ? 0 : parcels.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (ContentValues) parcels[i];
         }
+        BulkInsertResult result = bulkInsertValues(Uri.parse(arg), values);
+        Bundle bundle = new Bundle( );
+        bundle.putInt(KEY_INSERTED, result.inserted);
+        bundle.putIntArray(KEY_REJECTED_POSITIONS, result.rejected);
+        return bundle;
     }
 
+    private BulkInsertResult bulkInsertPets( PetDbHelper dbHelper, Uri uri,
+                                             ContentValues[] values ) {
+        if (values == null || values.length == 0) {
+            return new BulkInsertResult(0, new int[0]);
+        }
+
+        // Valida tudo antes de abrir a transação; as linhas que falharem no insert também
+        // deixam de ser válidas
+        boolean[] valid = new boolean[values.length];
+        for (int i = 0; i < values.length; i++) {
+            valid[i] = isValidPet(values[i]);
+        }
+
+        SQLiteDatabase db = dbHelper.getWritableDatabase( );
+        PetBreeds breeds = dbHelper.getBreeds( );
+        SQLiteStatement statement = db.compileStatement(PetCodec.SQL_INSERT);
+        int inserted = 0;
+
+        db.beginTransaction( );
+        try {
+            for (int i = 0; i < values.length; i++) {
+                if (!valid[i]) {
+                    continue;
+                }
+                ContentValues row = values[i];
+                statement.clearBindings( );
+                statement.bindString(1, row.getAsString(PetEntry.COLUMN_PET_NAME));
+                statement.bindLong(2, breeds.intern(db,
+                        row.getAsString(PetEntry.COLUMN_PET_BREED)));
+                statement.bindLong(3, row.getAsInteger(PetEntry.COLUMN_PET_GENDER));
+                statement.bindLong(4, row.getAsInteger(PetEntry.COLUMN_PET_WEIGHT));
+                try {
+                    statement.executeInsert( );
+                    inserted++;
+                } catch (SQLiteConstraintException e) {
+                    // Only the statement is rolled back, the transaction goes on
+                    valid[i] = false;
+                }
+            }
+            db.setTransactionSuccessful( );
+        } finally {
+            db.endTransaction( );
+            statement.close( );
+        }
+
+        int[] rejected = rejectedPositions(valid, values.length - inserted);
+        if (rejected.length != 0) {
+            Log.e(LOG_TAG, "Bulk insert rejected " + rejected.length + " of " + values.length
+                    + " rows at positions " + Arrays.toString(rejected));
+        }
+
+        if (inserted != 0) {
+            notifyChange(uri);
+        }
+        return new BulkInsertResult(inserted, rejected);
+    }
+
+    /* Positions of the false entries, of which there are count */
+    private static int[] rejectedPositions( boolean[] valid, int count ) {
+        int[] positions = new int[count];
+        int next = 0;
+        for (int i = 0; i < valid.length; i++) {
+            if (!valid[i]) {
+                positions[next++] = i;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Returns the provider instance of this process, to call the typed {@link Pet} entry points
+     * directly. They skip ContentValues and Binder entirely, so they are only available
+     * in-process; other processes use {@link PetCodec#toContentValues(Pet)}.
+     */
+    public static PetProvider getLocalProvider( Context context ) {
+        ContentProviderClient client =
+                context.getContentResolver( ).acquireContentProviderClient(CONTENT_AUTHORITY);
+        if (client == null) {
+            throw new IllegalStateException("Pet provider is not available");
+        }
+        try {
+            return (PetProvider) client.getLocalContentProvider( );
+        } finally {
+            client.release( );
+        }
+    }
+
+    /**
+     * Insert a pet. Returns its content URI, or null if it is not valid or the insert failed.
+     */
+    public Uri insert( Pet pet ) {
+        databaseLock.readLock( ).lock( );
+        try {
+            if (!PetCodec.isValid(pet)) {
+                Log.e(LOG_TAG, "Invalid pet " + pet);
+                return null;
+            }
+            SQLiteDatabase db = helper( ).getWritableDatabase( );
+            SQLiteStatement statement = db.compileStatement(PetCodec.SQL_INSERT);
+            long id;
+            try {
+                PetCodec.bindInsert(statement, pet, helper( ).getBreeds( ).intern(db, pet.breed));
+                id = statement.executeInsert( );
+            } finally {
+                statement.close( );
+            }
+            if (id == -1) {
+                Log.e(LOG_TAG, "Failed to insert " + pet);
+                return null;
+            }
+            Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+            invalidateCachedPets(petUri);
+            notifyChange(petUri);
+            return petUri;
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    /**
+     * Insert many pets in one transaction through one precompiled statement, like
+     * {@link #bulkInsert(Uri, ContentValues[])}. Returns the number of pets inserted and the
+     * positions in the list of those rejected.
+     */
+    public BulkInsertResult bulkInsert( List <Pet> pets ) {
+        databaseLock.readLock( ).lock( );
+        try {
+            SQLiteDatabase db = helper( ).getWritableDatabase( );
+            PetBreeds breeds = helper( ).getBreeds( );
+            SQLiteStatement statement = db.compileStatement(PetCodec.SQL_INSERT);
+            boolean[] valid = new boolean[pets.size( )];
+            int inserted = 0;
+
+            db.beginTransaction( );
+            try {
+                for (int i = 0; i < pets.size( ); i++) {
+                    Pet pet = pets.get(i);
+                    if (!PetCodec.isValid(pet)) {
+                        continue;
+                    }
+                    PetCodec.bindInsert(statement, pet, breeds.intern(db, pet.breed));
+                    try {
+                        statement.executeInsert( );
+                        valid[i] = true;
+                        inserted++;
+                    } catch (SQLiteConstraintException e) {
+                        // Only the statement is rolled back, the transaction goes on
+                    }
+                }
+                db.setTransactionSuccessful( );
+            } finally {
+                db.endTransaction( );
+                statement.close( );
+            }
+
+            int[] rejected = rejectedPositions(valid, pets.size( ) - inserted);
+            if (rejected.length != 0) {
+                Log.e(LOG_TAG, "Bulk insert rejected " + rejected.length + " of " + pets.size( ) +
+                        " pets at positions " + Arrays.toString(rejected));
+            }
+            if (inserted != 0) {
+                notifyChange(PetEntry.CONTENT_URI);
+            }
+            return new BulkInsertResult(inserted, rejected);
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    /**
+     * Replace every field of the stored pet with the same id. Returns the number of rows
+     * updated, 0 or 1.
+     */
+    public int update( Pet pet ) {
+        databaseLock.readLock( ).lock( );
+        try {
+            if (pet.id == Pet.NO_ID || !PetCodec.isValid(pet)) {
+                Log.e(LOG_TAG, "Invalid pet " + pet);
+                return 0;
+            }
+            SQLiteDatabase db = helper( ).getWritableDatabase( );
+            SQLiteStatement statement = db.compileStatement(PetCodec.SQL_UPDATE);
+            int rowsUpdated;
+            try {
+                PetCodec.bindUpdate(statement, pet, helper( ).getBreeds( ).intern(db, pet.breed));
+                rowsUpdated = statement.executeUpdateDelete( );
+            } finally {
+                statement.close( );
+            }
+            Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, pet.id);
+            invalidateCachedPets(petUri);
+            if (rowsUpdated != 0) {
+                notifyChange(petUri);
+            }
+            return rowsUpdated;
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    /**
+     * Same rules as {@link #checkContentValues(ContentValues)}, but without logging so it can
+     * be called once per row of a large batch. Breed is required here too because the
+     * column is NOT NULL.
+     */
+    private static boolean isValidPet( ContentValues values ) {
+        if (values == null) {
+            return false;
+        }
+        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        if (name == null || name.isEmpty( )) {
+            return false;
+        }
+        if (values.getAsString(PetEntry.COLUMN_PET_BREED) == null) {
+            return false;
+        }
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        if (weight == null || weight <= 0) {
+            return false;
+        }
+        return values.getAsInteger(PetEntry.COLUMN_PET_GENDER) != null;
+    }
+
+    /**
+     * Apply a batch of operations inside a single transaction. Back-references between
+     * operations are resolved by {@link ContentProviderOperation#apply}. If any operation fails
+     * the whole batch is rolled back; otherwise each affected URI is notified once, after commit.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch( ArrayList <ContentProviderOperation> operations )
+            throws OperationApplicationException {
+        // A batch is one transaction, which cannot span database files
+        for (ContentProviderOperation operation : operations) {
+            int match = sUriMatcher.match(resolveMainShelter(operation.getUri( )));
+            if (match == SHELTER_PETS || match == SHELTER_PETS_ID) {
+                throw new IllegalArgumentException("Batches only run on the main shelter, not on "
+                        + operation.getUri( ));
+            }
+        }
+        databaseLock.readLock( ).lock( );
+        try {
+            SQLiteDatabase db = helper( ).getWritableDatabase( );
+            Set <Uri> pending = new LinkedHashSet <>( );
+            ContentProviderResult[] results = new ContentProviderResult[operations.size( )];
+
+            batchNotifications.set(pending);
+            db.beginTransaction( );
+            try {
+                for (int i = 0; i < operations.size( ); i++) {
+                    results[i] = operations.get(i).apply(this, results, i);
+                }
+                db.setTransactionSuccessful( );
+            } finally {
+                db.endTransaction( );
+                batchNotifications.remove( );
+                // Invalidate again once the transaction is over: another thread may have cached a
+                // row it read before this batch committed.
+                for (ContentProviderOperation operation : operations) {
+                    if (!operation.isInsert( )) {
+                        invalidateCachedPets(operation.getUri( ));
+                    }
+                }
+            }
+
+            // Only reached when the batch committed
+            if (!pending.isEmpty( )) {
+                PetStartup.invalidate( );
+            }
+            for (Uri uri : pending) {
+                changeDispatcher.changed(uri);
+            }
+            return results;
+        } finally {
+            databaseLock.readLock( ).unlock( );
+        }
+    }
+
+    /**
+     * Report a committed change of a pet (item URI) or of the pets table (list URI) to the
+     * change dispatcher. Inside applyBatch() the URI is only recorded, and handed to the
+     * dispatcher if the batch commits.
+     */
+    private void notifyChange( Uri uri ) {
+        Set <Uri> pending = batchNotifications.get( );
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            // After the commit and before the notification, so a first page read before the
+            // change is never handed to a catalog that was already told about it
+            PetStartup.invalidate( );
+            changeDispatcher.changed(uri);
+        }
+    }
+
+    /* Writes may run on any thread, so problems are logged; the caller shows the feedback */
     private boolean checkContentValues( ContentValues values ) {
         if (values.getAsString(PetEntry.COLUMN_PET_NAME) == null ||
                 values.getAsString(PetEntry.COLUMN_PET_NAME).isEmpty( )) {
-            Toast.makeText(getContext( ), "Name cannot be empty", Toast.LENGTH_SHORT).show( );
+            Log.e(LOG_TAG, "Name cannot be empty");
             return false;
         }
-        if (values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT) <= 0) {
-            Toast.makeText(getContext( ), "Weight must be bigger then 0", Toast.LENGTH_SHORT).show( );
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        if (weight == null || weight <= 0) {
+            Log.e(LOG_TAG, "Weight must be bigger then 0");
             return false;
         }
         if (values.getAsInteger(PetEntry.COLUMN_PET_GENDER) == null) {
@@ -166,19 +1705,44 @@ public class PetProvider extends ContentProvider {
     @Override
     public int update( Uri uri, ContentValues contentValues, String selection,
                        String[] selectionArgs ) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
-            case PETS_ID:
-                // Para o código PET_ID, extraia o ID do URI,
-                // para que saibamos qual registro atualizar. Selection será "_id=?" and selection
-                // args será um String array contendo o atual ID.
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updatePet(uri, contentValues, selection, selectionArgs);
-            default:
-                throw new IllegalArgumentException("Update is not supported for " + uri);
+        databaseLock.readLock( ).lock( );
+        try {
+            long start = System.nanoTime( );
+            uri = resolveMainShelter(uri);
+            final int match = sUriMatcher.match(uri);
+            int rowsUpdated;
+            PetDbHelper shelter;
+            switch (match) {
+                case PETS:
+                    rowsUpdated = updatePet(helper( ), uri, contentValues,
+                            selectVisiblePets(selection), selectionArgs);
+                    break;
+                case PETS_ID:
+                    // Para o código PET_ID, extraia o ID do URI,
+                    // para que saibamos qual registro atualizar. Selection será "_id=?" and selection
+                    // args será um String array contendo o atual ID.
+                    rowsUpdated = updatePet(helper( ), uri, contentValues,
+                            PetEntry._ID + "=? AND " + PetTombstones.SQL_VISIBLE,
+                            new String[]{String.valueOf(ContentUris.parseId(uri))});
+                    break;
+                case SHELTER_PETS:
+                    shelter = shelters.getIfExists(shelterName(uri));
+                    rowsUpdated = shelter == null ? 0 : updatePet(shelter, uri, contentValues,
+                            selectVisiblePets(selection), selectionArgs);
+                    break;
+                case SHELTER_PETS_ID:
+                    shelter = shelters.getIfExists(shelterName(uri));
+                    rowsUpdated = shelter == null ? 0 : updatePet(shelter, uri, contentValues,
+                            PetEntry._ID + "=? AND " + PetTombstones.SQL_VISIBLE,
+                            new String[]{String.valueOf(ContentUris.parseId(uri))});
+                    break;
+                default:
+                    throw new IllegalArgumentException("Update is not supported for " + uri);
+            }
+            metrics.record(PetProviderMetrics.UPDATE, match, uri, selection, null, rowsUpdated, start);
+            return rowsUpdated;
+        } finally {
+            databaseLock.readLock( ).unlock( );
         }
     }
 
@@ -187,9 +1751,9 @@ public class PetProvider extends ContentProvider {
      * especificados no selection e selection args (que podem ser 0 ou 1 ou mais pets).
      * Retorne o número de registros que foram atualizados com sucesso.
      */
-    private int updatePet( Uri uri, ContentValues values, String selection, String[] selectionArgs ) {
+    private int updatePet( PetDbHelper dbHelper, Uri uri, ContentValues values,
+                           String selection, String[] selectionArgs ) {
 
-        SQLiteDatabase db = helper.getReadableDatabase( );
         // Atualiza os pets selecionados na tabela de banco de dados de pets com o dado ContentValues
 
         if (values.size( ) == 0) {
@@ -211,43 +1775,116 @@ public class PetProvider extends ContentProvider {
                 throw new IllegalArgumentException("Pet requires a name");
             }
 
-            getContext().getContentResolver().notifyChange(uri, null);
             // Retorna o número de registros que foram afetados
-            return db.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+            SQLiteDatabase db = dbHelper.getWritableDatabase( );
+            int rowsUpdated = db.update(PetEntry.TABLE_NAME,
+                    dbHelper.getBreeds( ).toStored(db, values), selection, selectionArgs);
+            invalidateCachedPets(uri);
+            if (rowsUpdated != 0) {
+                notifyChange(uri);
+            }
+            return rowsUpdated;
         } else {
             Log.e(LOG_TAG, "Updates inputs are invalid");
-            Toast.makeText(getContext( ), "Não foi possivel atualizar", Toast.LENGTH_SHORT);
         }
         return 0;
     }
 
     /**
-     * Delete the data at the given selection and selection arguments.
+     * Condition of an update matching the visible pets selected by the caller. The selection
+     * may use every column of {@link PetEntry}, the breed name included, so it runs on the
+     * view; without one the pets table is enough.
+     */
+    private static String selectVisiblePets( String selection ) {
+        if (selection == null || selection.isEmpty( )) {
+            return PetTombstones.SQL_VISIBLE;
+        }
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " +
+                PetBreeds.SQL_PETS_WITH_BREED + " WHERE " + PetTombstones.SQL_VISIBLE + " AND (" +
+                selection + "))";
+    }
+
+    /**
+     * Delete the data at the given selection and selection arguments. Deletes are soft: the pets
+     * are tombstoned, hidden from every query at once, and removed from the table later by a
+     * background purge, see {@link PetTombstones}. Deleting the whole table, without a
+     * selection, costs the same for any number of pets. Deleting the photo URI of a pet removes
+     * its photo at once.
      */
     @Override
     public int delete( Uri uri, String selection, String[] selectionArgs ) {
-        // Obtém banco de dados com permissão de escrita
-        SQLiteDatabase database = helper.getWritableDatabase( );
+        databaseLock.readLock( ).lock( );
+        try {
+            long start = System.nanoTime( );
+            // Obtém banco de dados com permissão de escrita
+            SQLiteDatabase database = helper( ).getWritableDatabase( );
 
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                // Deleta todos os registros que correspondem ao selection e selection args
-                int rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
-                if (rowsDeleted != 0){
-                    getContext().getContentResolver().notifyChange(uri, null);
+            uri = resolveMainShelter(uri);
+            final int match = sUriMatcher.match(uri);
+            int rowsDeleted;
+            PetDbHelper shelter;
+            switch (match) {
+                case PETS:
+                    // Deleta todos os registros que correspondem ao selection e selection args
+                    if (selection == null || selection.isEmpty( )) {
+                        rowsDeleted = PetTombstones.tombstoneAll(database);
+                    } else {
+                        rowsDeleted = PetTombstones.tombstone(database, selection, selectionArgs);
+                    }
+                    break;
+                case PETS_ID:
+                    // Deleta um único registro dado pelo ID na URI
+                    rowsDeleted = PetTombstones.tombstone(database, PetEntry._ID + "=?",
+                            new String[]{String.valueOf(ContentUris.parseId(uri))});
+                    break;
+                case PETS_PHOTO:
+                    rowsDeleted = deletePhoto(database, photoPetId(uri));
+                    break;
+                case SHELTER_PETS:
+                    shelter = shelters.getIfExists(shelterName(uri));
+                    if (shelter == null) {
+                        rowsDeleted = 0;
+                    } else if (selection == null || selection.isEmpty( )) {
+                        rowsDeleted = PetTombstones.tombstoneAll(shelter.getWritableDatabase( ));
+                    } else {
+                        rowsDeleted = PetTombstones.tombstone(shelter.getWritableDatabase( ),
+                                selection, selectionArgs);
+                    }
+                    break;
+                case SHELTER_PETS_ID:
+                    shelter = shelters.getIfExists(shelterName(uri));
+                    rowsDeleted = shelter == null ? 0 : PetTombstones.tombstone(
+                            shelter.getWritableDatabase( ), PetEntry._ID + "=?",
+                            new String[]{String.valueOf(ContentUris.parseId(uri))});
+                    break;
+                default:
+                    throw new IllegalArgumentException("Deletion is not supported for " + uri);
+            }
+            invalidateCachedPets(uri);
+            if (rowsDeleted != 0) {
+                notifyChange(uri);
+                if (match != PETS_PHOTO) {
+                    schedulePurge( );
                 }
-                return rowsDeleted;
-            case PETS_ID:
-                // Deleta um único registro dado pelo ID na URI
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
-            default:
-                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+            }
+            metrics.record(PetProviderMetrics.DELETE, match, uri, selection, null, rowsDeleted, start);
+            return rowsDeleted;
+        } finally {
+            databaseLock.readLock( ).unlock( );
         }
     }
 
+    /* Drop the photo of a pet: the version goes back to 0, then the files are removed */
+    private int deletePhoto( SQLiteDatabase database, long id ) {
+        ContentValues values = new ContentValues(1);
+        values.put(PetEntry.COLUMN_PET_PHOTO, 0);
+        int rowsUpdated = database.update(PetEntry.TABLE_NAME, values, PetEntry._ID + "=? AND " +
+                        PetEntry.COLUMN_PET_PHOTO + " != 0 AND " + PetTombstones.SQL_VISIBLE,
+                new String[]{String.valueOf(id)});
+        helper( ).getPhotos( ).delete(id);
+        return rowsUpdated;
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -259,6 +1896,28 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PETS_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PETS_SEARCH:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PETS_STATS:
+                return StatsEntry.CONTENT_ITEM_TYPE;
+            case PETS_STATS_BREEDS:
+                return StatsEntry.CONTENT_BREEDS_TYPE;
+            case PETS_EXPORT:
+                return PetTransfer.mimeType(exportFormat(uri));
+            case PETS_PHOTO:
+            case PETS_THUMBNAIL:
+                return PetEntry.PHOTO_TYPE;
+            case SHELTERS:
+                return ShelterEntry.CONTENT_LIST_TYPE;
+            case SHELTERS_PETS:
+            case SHELTER_PETS:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case SHELTER_PETS_ID:
+                return PetEntry.CONTENT_ITEM_TYPE;
+            case SHELTERS_COUNT:
+                return ShelterEntry.CONTENT_COUNT_TYPE;
+            case PETS_CHANGES:
+                return ChangeEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
@@ -0,0 +1,253 @@
+package com.example.android.pets;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency and row count of every {@link PetProvider} call, per operation and per UriMatcher
+ * code, plus a log of the last 32 calls over the slow call threshold. Recording only touches
+ * atomics, so binder threads never wait on each other; a snapshot read while calls run may be
+ * off by the calls in flight.
+ */
+class PetProviderMetrics {
+
+    private static final String LOG_TAG = PetProviderMetrics.class.getSimpleName( );
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+
+    private static final String[] OPERATION_NAMES = {"query", "insert", "bulk_insert", "update",
+            "delete"};
+
+    /* Latency buckets by power of two microseconds: bucket i holds [2^(i-1), 2^i) us, the last
+     * one everything from about 4 s up */
+    private static final int BUCKETS = 24;
+
+    /* The last slow calls are kept in a ring, the oldest one is overwritten first */
+    private static final int SLOW_LOG_SIZE = 32;
+
+    private final int[] codes;
+    private final String[] uriNames;
+    private final long slowNanos;
+
+    /* [operation][uri], the extra uri slot is for URIs the matcher does not know */
+    private final Histogram[][] histograms;
+
+    private final AtomicReferenceArray <SlowCall> slowCalls =
+            new AtomicReferenceArray <>(SLOW_LOG_SIZE);
+    private final AtomicLong slowCallCount = new AtomicLong( );
+
+    private volatile long sinceMillis = System.currentTimeMillis( );
+
+    /**
+     * @param codes    the UriMatcher codes to keep apart
+     * @param uriNames name of each code in the report, usually its path
+     */
+    PetProviderMetrics( int[] codes, String[] uriNames, long slowMillis ) {
+        this.codes = codes.clone( );
+        this.uriNames = uriNames.clone( );
+        this.slowNanos = slowMillis * 1000000L;
+        histograms = new Histogram[OPERATION_NAMES.length][codes.length + 1];
+        for (Histogram[] byUri : histograms) {
+            for (int i = 0; i < byUri.length; i++) {
+                byUri[i] = new Histogram( );
+            }
+        }
+    }
+
+    /**
+     * Record a call that started at startNanos ({@link System#nanoTime()}) and just returned
+     * or touched the given number of rows.
+     */
+    void record( int operation, int code, Uri uri, String selection, String sortOrder, int rows,
+                 long startNanos ) {
+        long nanos = System.nanoTime( ) - startNanos;
+        histograms[operation][slot(code)].add(nanos, rows);
+        if (nanos >= slowNanos) {
+            SlowCall call = new SlowCall(operation, uri, selection, sortOrder, nanos, rows);
+            long index = slowCallCount.getAndIncrement( );
+            slowCalls.set((int) (index % SLOW_LOG_SIZE), call);
+            Log.w(LOG_TAG, "Slow " + call);
+        }
+    }
+
+    private int slot( int code ) {
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] == code) {
+                return i;
+            }
+        }
+        return codes.length;
+    }
+
+    void reset() {
+        for (Histogram[] byUri : histograms) {
+            for (Histogram histogram : byUri) {
+                histogram.clear( );
+            }
+        }
+        for (int i = 0; i < SLOW_LOG_SIZE; i++) {
+            slowCalls.set(i, null);
+        }
+        slowCallCount.set(0);
+        sinceMillis = System.currentTimeMillis( );
+    }
+
+    /**
+     * Returns every operation called at least once and the slow call log, as JSON.
+     */
+    String toJson() {
+        try {
+            JSONObject report = new JSONObject( );
+            report.put("since", sinceMillis);
+            report.put("uptime_ms", SystemClock.elapsedRealtime( ));
+            report.put("slow_threshold_ms", slowNanos / 1000000L);
+
+            JSONArray operations = new JSONArray( );
+            for (int operation = 0; operation < histograms.length; operation++) {
+                for (int slot = 0; slot < histograms[operation].length; slot++) {
+                    Histogram histogram = histograms[operation][slot];
+                    if (histogram.count.get( ) == 0) {
+                        continue;
+                    }
+                    JSONObject entry = histogram.toJson( );
+                    entry.put("operation", OPERATION_NAMES[operation]);
+                    entry.put("uri", slot < uriNames.length ? uriNames[slot] : "unknown");
+                    operations.put(entry);
+                }
+            }
+            report.put("operations", operations);
+
+            JSONArray slow = new JSONArray( );
+            for (int i = 0; i < SLOW_LOG_SIZE; i++) {
+                SlowCall call = slowCalls.get(i);
+                if (call != null) {
+                    slow.put(call.toJson( ));
+                }
+            }
+            report.put("slow_calls", slow);
+            report.put("slow_call_count", slowCallCount.get( ));
+            report.put("startup", PetStartup.toJson( ));
+            return report.toString( );
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Histogram {
+        final AtomicLong count = new AtomicLong( );
+        final AtomicLong rows = new AtomicLong( );
+        final AtomicLong totalNanos = new AtomicLong( );
+        final AtomicLong maxNanos = new AtomicLong( );
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void add( long nanos, int rowCount ) {
+            count.incrementAndGet( );
+            rows.addAndGet(rowCount);
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get( );
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get( );
+            }
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        }
+
+        void clear() {
+            count.set(0);
+            rows.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        /* Upper bound of the bucket holding the given percentile, in microseconds */
+        long percentileMicros( long[] counts, long total, int percent ) {
+            long rank = (total * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (counts.length - 1);
+        }
+
+        JSONObject toJson() throws JSONException {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            JSONArray bucketArray = new JSONArray( );
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+                bucketArray.put(counts[i]);
+            }
+            JSONObject entry = new JSONObject( );
+            entry.put("count", count.get( ));
+            entry.put("rows", rows.get( ));
+            entry.put("total_us", totalNanos.get( ) / 1000);
+            entry.put("max_us", maxNanos.get( ) / 1000);
+            if (total > 0) {
+                entry.put("p50_us", percentileMicros(counts, total, 50));
+                entry.put("p90_us", percentileMicros(counts, total, 90));
+                entry.put("p99_us", percentileMicros(counts, total, 99));
+            }
+            entry.put("buckets_us_log2", bucketArray);
+            return entry;
+        }
+    }
+
+    private static final class SlowCall {
+        final int operation;
+        final String uri;
+        final String selection;
+        final String sortOrder;
+        final long nanos;
+        final int rows;
+        final long at = System.currentTimeMillis( );
+
+        SlowCall( int operation, Uri uri, String selection, String sortOrder, long nanos,
+                  int rows ) {
+            this.operation = operation;
+            this.uri = String.valueOf(uri);
+            this.selection = selection;
+            this.sortOrder = sortOrder;
+            this.nanos = nanos;
+            this.rows = rows;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject entry = new JSONObject( );
+            entry.put("operation", OPERATION_NAMES[operation]);
+            entry.put("uri", uri);
+            entry.put("selection", selection == null ? JSONObject.NULL : selection);
+            entry.put("sort_order", sortOrder == null ? JSONObject.NULL : sortOrder);
+            entry.put("duration_us", nanos / 1000);
+            entry.put("rows", rows);
+            entry.put("at", at);
+            return entry;
+        }
+
+        @Override
+        public String toString() {
+            return OPERATION_NAMES[operation] + " " + uri + " took " + nanos / 1000000 + " ms, " +
+                    rows + " rows, selection: " + selection + ", sort: " + sortOrder;
+        }
+    }
+}
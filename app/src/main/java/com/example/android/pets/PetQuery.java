@@ -0,0 +1,336 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * A query of pets that stays up to date: when the provider notifies a change, the query runs
+ * again in the background and the listener gets only the rows that were inserted, updated or
+ * removed since the last result, as a {@link Delta}.
+ * <p>
+ * A burst of changes costs one query per throttle window: the first change runs it at once,
+ * the ones that follow while it runs or during the window are folded into one more run at the
+ * end of the window. A change that leaves the result as it was reaches nobody.
+ * <p>
+ * Call every method on the main thread, where the listener is called too. The query only
+ * runs while observed, so screens call {@link #stop()} from onDestroy().
+ */
+public class PetQuery {
+
+    private static final String LOG_TAG = PetQuery.class.getSimpleName( );
+
+    /* Shared by all queries, so they never compete for the reader connections */
+    private static final Executor QUERY_EXECUTOR = Executors.newSingleThreadExecutor( );
+
+    /**
+     * Receives the changes of the result, on the main thread.
+     */
+    public interface Listener {
+        void onQueryChanged( PetQuery query, Delta delta );
+    }
+
+    /**
+     * How the result of the query changed between two runs. Rows are matched by _id.
+     */
+    public static final class Delta {
+
+        /* The whole new result, in query order. Never modified. */
+        public final List <PetListItem> rows;
+
+        /* Rows that are new to the result, updated rows and rows that left it */
+        public final List <PetListItem> inserted;
+        public final List <PetListItem> updated;
+        public final List <PetListItem> removed;
+
+        /* Positions in rows of the updated rows, when the order of the rows did not change */
+        public final int[] updatedPositions;
+
+        /* True if the rows kept by the new result are in another order */
+        public final boolean reordered;
+
+        private Delta( List <PetListItem> rows, List <PetListItem> inserted,
+                       List <PetListItem> updated, List <PetListItem> removed,
+                       int[] updatedPositions, boolean reordered ) {
+            this.rows = rows;
+            this.inserted = inserted;
+            this.updated = updated;
+            this.removed = removed;
+            this.updatedPositions = updatedPositions;
+            this.reordered = reordered;
+        }
+
+        /**
+         * Returns true if the new result is the same as the old one.
+         */
+        public boolean isEmpty() {
+            return inserted.isEmpty( ) && updated.isEmpty( ) && removed.isEmpty( ) && !reordered;
+        }
+
+        /**
+         * Returns true if only the values of some rows changed, in place: no row was inserted,
+         * removed or moved.
+         */
+        public boolean isInPlace() {
+            return inserted.isEmpty( ) && removed.isEmpty( ) && !reordered;
+        }
+
+        /**
+         * Compare two results. Runs in linear time on the number of rows.
+         */
+        static Delta compute( List <PetListItem> oldRows, List <PetListItem> newRows ) {
+            Map <Long, PetListItem> oldById = new HashMap <>(oldRows.size( ) * 2);
+            for (PetListItem row : oldRows) {
+                oldById.put(row.id, row);
+            }
+            List <PetListItem> inserted = new ArrayList <>( );
+            List <PetListItem> updated = new ArrayList <>( );
+            List <Integer> updatedAt = new ArrayList <>( );
+            Set <Long> kept = new HashSet <>(newRows.size( ) * 2);
+            for (int i = 0; i < newRows.size( ); i++) {
+                PetListItem row = newRows.get(i);
+                PetListItem old = oldById.get(row.id);
+                if (old == null) {
+                    inserted.add(row);
+                    continue;
+                }
+                kept.add(row.id);
+                if (!old.equals(row)) {
+                    updated.add(row);
+                    updatedAt.add(i);
+                }
+            }
+            List <PetListItem> removed = new ArrayList <>( );
+            for (PetListItem row : oldRows) {
+                if (!kept.contains(row.id)) {
+                    removed.add(row);
+                }
+            }
+
+            // The kept rows are in the same order if they come in the same sequence in both
+            boolean reordered = false;
+            int next = 0;
+            for (PetListItem row : oldRows) {
+                if (!kept.contains(row.id)) {
+                    continue;
+                }
+                while (!kept.contains(newRows.get(next).id)) {
+                    next++;
+                }
+                if (newRows.get(next).id != row.id) {
+                    reordered = true;
+                    break;
+                }
+                next++;
+            }
+
+            int[] updatedPositions = new int[reordered ? 0 : updatedAt.size( )];
+            for (int i = 0; i < updatedPositions.length; i++) {
+                updatedPositions[i] = updatedAt.get(i);
+            }
+            return new Delta(newRows, inserted, updated, removed, updatedPositions, reordered);
+        }
+    }
+
+    private final ContentResolver resolver;
+    private final String[] projection;
+    private final long throttleMillis;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper( ));
+
+    private final ContentObserver observer = new ContentObserver(handler) {
+        @Override
+        public void onChange( boolean selfChange ) {
+            requery( );
+        }
+    };
+
+    private final Runnable runQuery = new Runnable( ) {
+        @Override
+        public void run() {
+            scheduled = false;
+            runQuery( );
+        }
+    };
+
+    /* What is observed, null when stopped */
+    private Uri uri;
+
+    /* Last result handed to the listener, the base of the next delta */
+    private List <PetListItem> rows = Collections.emptyList( );
+
+    /* Incremented whenever the URI changes, so the result of an outdated run is dropped */
+    private int generation = 0;
+
+    private boolean running = false;
+    private boolean scheduled = false;
+
+    /* A change was notified while the query was running */
+    private boolean dirty = false;
+
+    /* The next result goes to the listener even if it is empty: nothing was handed out yet */
+    private boolean initial = false;
+
+    /* Uptime of the start of the last run */
+    private long lastRunMillis = -1;
+
+    /**
+     * @param throttleMillis minimum time between the start of two runs
+     */
+    public PetQuery( Context context, String[] projection, long throttleMillis,
+                     Listener listener ) {
+        this.resolver = context.getApplicationContext( ).getContentResolver( );
+        this.projection = projection;
+        this.throttleMillis = throttleMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Observe the query of the given URI, or switch to it. With current set, those are the
+     * rows the URI returns now, e.g. just loaded by the caller: the first delta is relative to
+     * them and nothing runs until a change. With current null the query runs at once and the
+     * first delta inserts every row.
+     */
+    public void observe( Uri uri, List <PetListItem> current ) {
+        boolean registered = this.uri != null;
+        boolean sameNotifications = registered && notificationUri(uri).equals(
+                notificationUri(this.uri));
+        if (registered && !sameNotifications) {
+            resolver.unregisterContentObserver(observer);
+        }
+        this.uri = uri;
+        generation++;
+        // A run in progress may have seen a change the given rows predate
+        dirty = running;
+        if (!sameNotifications) {
+            resolver.registerContentObserver(notificationUri(uri), true, observer);
+        }
+        initial = current == null;
+        if (current != null) {
+            rows = current;
+        } else {
+            rows = Collections.emptyList( );
+            requery( );
+        }
+    }
+
+    /**
+     * Stop observing. A run in progress finishes without calling the listener.
+     */
+    public void stop() {
+        if (uri == null) {
+            return;
+        }
+        resolver.unregisterContentObserver(observer);
+        handler.removeCallbacks(runQuery);
+        scheduled = false;
+        uri = null;
+        generation++;
+        rows = Collections.emptyList( );
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    /* Providers notify the path, the query parameters only select rows */
+    private static Uri notificationUri( Uri uri ) {
+        return uri.buildUpon( ).clearQuery( ).build( );
+    }
+
+    /* Run the query now, or at the end of the throttle window, or after the current run */
+    private void requery() {
+        if (uri == null) {
+            return;
+        }
+        if (running) {
+            dirty = true;
+            return;
+        }
+        if (scheduled) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis( );
+        if (lastRunMillis >= 0 && now < lastRunMillis + throttleMillis) {
+            scheduled = true;
+            handler.postAtTime(runQuery, lastRunMillis + throttleMillis);
+            return;
+        }
+        runQuery( );
+    }
+
+    private void runQuery() {
+        if (uri == null) {
+            return;
+        }
+        running = true;
+        dirty = false;
+        lastRunMillis = SystemClock.uptimeMillis( );
+        final Uri queryUri = uri;
+        final List <PetListItem> oldRows = rows;
+        final int submitted = generation;
+        QUERY_EXECUTOR.execute(new Runnable( ) {
+            @Override
+            public void run() {
+                Delta delta = null;
+                try {
+                    Cursor cursor = resolver.query(queryUri, projection, null, null, null);
+                    if (cursor != null) {
+                        try {
+                            delta = Delta.compute(oldRows, PetListItem.readAll(cursor));
+                        } finally {
+                            cursor.close( );
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // Keep the last result, the next change runs the query again
+                    Log.e(LOG_TAG, "Cannot query " + queryUri, e);
+                }
+                final Delta result = delta;
+                handler.post(new Runnable( ) {
+                    @Override
+                    public void run() {
+                        deliver(submitted, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void deliver( int submitted, Delta delta ) {
+        running = false;
+        if (submitted != generation) {
+            // The URI changed or the query stopped while it ran
+            if (uri != null && dirty) {
+                requery( );
+            }
+            return;
+        }
+        if (delta != null) {
+            rows = delta.rows;
+            if (initial || !delta.isEmpty( )) {
+                initial = false;
+                listener.onQueryChanged(this, delta);
+            }
+        }
+        if (dirty) {
+            requery( );
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Bounded LRU cache of whole pet rows, keyed by _id, used by {@link PetProvider} to answer
+ * PETS_ID queries without going to SQLite.
+ * <p>
+ * A row read from the database is only stored if no invalidation happened while it was being
+ * read; otherwise a reader could put back the value a concurrent write just replaced.
+ */
+class PetRowCache {
+
+    /* Every column of the pets table, in the order rows are stored */
+    static final String[] ALL_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    private final LruCache <Long, Pet> rows;
+
+    /* Incremented by every invalidation. Guarded by this. */
+    private long generation = 0;
+
+    PetRowCache( int maxRows ) {
+        rows = new LruCache <>(maxRows);
+    }
+
+    /**
+     * Returns the cached row, or null. Counts as a hit or a miss.
+     */
+    Pet get( long id ) {
+        return rows.get(id);
+    }
+
+    /**
+     * Returns the value to give to {@link #putIfCurrent} for a row about to be read.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Store a row read from the database, unless the cache was invalidated since
+     * {@link #generation()} was called before the read.
+     */
+    synchronized void putIfCurrent( Pet pet, long readGeneration ) {
+        if (readGeneration == generation) {
+            rows.put(pet.id, pet);
+        }
+    }
+
+    synchronized void invalidate( long id ) {
+        generation++;
+        rows.remove(id);
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        rows.evictAll( );
+    }
+
+    int hitCount() {
+        return rows.hitCount( );
+    }
+
+    int missCount() {
+        return rows.missCount( );
+    }
+
+    int size() {
+        return rows.size( );
+    }
+
+    int maxSize() {
+        return rows.maxSize( );
+    }
+
+    /**
+     * Returns true if every requested column is a plain column of the pets table, so the
+     * projection can be served from a cached row.
+     */
+    static boolean canProject( String[] projection ) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build a lightweight cursor with the requested columns of a cached pet, or an empty one
+     * if pet is null.
+     */
+    static Cursor toCursor( String[] projection, Pet pet ) {
+        String[] columns = projection == null ? ALL_COLUMNS : projection;
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        if (pet != null) {
+            MatrixCursor.RowBuilder row = cursor.newRow( );
+            for (String column : columns) {
+                row.add(valueOf(pet, column));
+            }
+        }
+        return cursor;
+    }
+
+    private static Object valueOf( Pet pet, String column ) {
+        switch (indexOf(column)) {
+            case 0:
+                return pet.id;
+            case 1:
+                return pet.name;
+            case 2:
+                return pet.breed;
+            case 3:
+                return pet.gender;
+            default:
+                return pet.weight;
+        }
+    }
+
+    private static int indexOf( String column ) {
+        for (int i = 0; i < ALL_COLUMNS.length; i++) {
+            if (ALL_COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
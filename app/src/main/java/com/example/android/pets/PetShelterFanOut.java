@@ -0,0 +1,208 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.os.OperationCanceledException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs one query on every shelter database at once, for the region URIs of
+ * {@link PetProvider}, and merges the results.
+ * <p>
+ * Each shelter is a separate file with its own connections, so the queries do not share any
+ * lock and the time of a region query is close to that of its slowest shelter. The cursors
+ * are filled on the worker threads, which is when SQLite actually runs the query.
+ */
+class PetShelterFanOut {
+
+    /**
+     * The query to run on one shelter. Returns the filled cursor of that shelter, or null if
+     * it has nothing to return.
+     */
+    interface ShelterQuery {
+        Cursor query( String shelter );
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * @param threads how many shelters are queried at the same time
+     */
+    PetShelterFanOut( int threads ) {
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Run the query on every shelter in parallel. Returns the cursors in the order of the
+     * shelters, without the null ones. If any shelter fails, the other cursors are closed and
+     * the failure is thrown.
+     */
+    List <Cursor> queryAll( List <String> shelters, final ShelterQuery query ) {
+        List <Future <Cursor>> futures = new ArrayList <>(shelters.size( ));
+        for (final String shelter : shelters) {
+            futures.add(executor.submit(new Callable <Cursor>( ) {
+                @Override
+                public Cursor call() {
+                    Cursor cursor = query.query(shelter);
+                    if (cursor != null) {
+                        cursor.getCount( );
+                    }
+                    return cursor;
+                }
+            }));
+        }
+
+        // Wait for every shelter, even after a failure, so no cursor is left open
+        List <Cursor> cursors = new ArrayList <>(futures.size( ));
+        RuntimeException failure = null;
+        boolean interrupted = false;
+        for (Future <Cursor> future : futures) {
+            while (true) {
+                try {
+                    Cursor cursor = future.get( );
+                    if (cursor != null) {
+                        cursors.add(cursor);
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause( ) instanceof RuntimeException
+                                ? (RuntimeException) e.getCause( )
+                                : new IllegalStateException(e.getCause( ));
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread( ).interrupt( );
+            if (failure == null) {
+                failure = new OperationCanceledException( );
+            }
+        }
+        if (failure != null) {
+            for (Cursor cursor : cursors) {
+                cursor.close( );
+            }
+            throw failure;
+        }
+        return cursors;
+    }
+
+    /**
+     * Returns the cursors one after the other, without copying any row.
+     */
+    static Cursor concat( List <Cursor> cursors, String[] columns ) {
+        if (cursors.isEmpty( )) {
+            return new MatrixCursor(columns, 0);
+        }
+        return new MergeCursor(cursors.toArray(new Cursor[cursors.size( )]));
+    }
+
+    /**
+     * Merge cursors each sorted on the given column then _id, into one cursor sorted the same
+     * way, with at most limit rows, or every row if limit is negative. Ties between shelters
+     * go to the earlier cursor. The rows are copied and the cursors closed.
+     *
+     * @param numeric    compare the sort column as a number instead of as text
+     * @param descending sort from the biggest value down
+     */
+    static Cursor mergeSorted( List <Cursor> cursors, String[] columns, String sortColumn,
+                               boolean numeric, boolean descending, String idColumn,
+                               int limit ) {
+        try {
+            MatrixCursor merged = new MatrixCursor(columns);
+            int count = cursors.size( );
+            int[] sortIndex = new int[count];
+            int[] idIndex = new int[count];
+            for (int i = 0; i < count; i++) {
+                Cursor cursor = cursors.get(i);
+                sortIndex[i] = cursor.getColumnIndexOrThrow(sortColumn);
+                idIndex[i] = cursor.getColumnIndexOrThrow(idColumn);
+                cursor.moveToFirst( );
+            }
+
+            // A region has a few shelters, so a linear scan for the next row is enough
+            int rows = 0;
+            while (limit < 0 || rows < limit) {
+                int next = -1;
+                for (int i = 0; i < count; i++) {
+                    Cursor cursor = cursors.get(i);
+                    if (cursor.isAfterLast( )) {
+                        continue;
+                    }
+                    if (next < 0 || compare(cursor, sortIndex[i], idIndex[i], cursors.get(next),
+                            sortIndex[next], idIndex[next], numeric, descending) < 0) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                copyRow(cursors.get(next), merged, columns.length);
+                cursors.get(next).moveToNext( );
+                rows++;
+            }
+            return merged;
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close( );
+            }
+        }
+    }
+
+    private static int compare( Cursor a, int aSort, int aId, Cursor b, int bSort, int bId,
+                                boolean numeric, boolean descending ) {
+        int result;
+        if (numeric) {
+            result = compareLongs(a.getLong(aSort), b.getLong(bSort));
+        } else {
+            // Same order as SQLite's BINARY collation, except for characters outside the BMP
+            String aValue = a.getString(aSort);
+            String bValue = b.getString(bSort);
+            result = aValue == null ? (bValue == null ? 0 : -1)
+                    : (bValue == null ? 1 : aValue.compareTo(bValue));
+        }
+        if (result == 0 && aSort != aId) {
+            result = compareLongs(a.getLong(aId), b.getLong(bId));
+        }
+        return descending ? -result : result;
+    }
+
+    private static int compareLongs( long a, long b ) {
+        return a < b ? -1 : (a > b ? 1 : 0);
+    }
+
+    private static void copyRow( Cursor cursor, MatrixCursor target, int columns ) {
+        MatrixCursor.RowBuilder row = target.newRow( );
+        for (int i = 0; i < columns; i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    row.add(null);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row.add(cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row.add(cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row.add(cursor.getBlob(i));
+                    break;
+                default:
+                    row.add(cursor.getString(i));
+                    break;
+            }
+        }
+    }
+}
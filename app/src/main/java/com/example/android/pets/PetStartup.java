@@ -0,0 +1,166 @@
+package com.example.android.pets;
+
+import android.net.Uri;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cold start of the app: the first page of the catalog, read by {@link PetProvider} while
+ * the process starts, and the time each step of the start took.
+ * <p>
+ * The provider is created before the catalog, so it opens the database and reads the page the
+ * catalog will ask for first in the background, while the activity inflates its views. The
+ * catalog then takes the rows from memory instead of waiting for the query. The page is handed
+ * out once, and dropped as soon as a change to the pets is notified.
+ */
+final class PetStartup {
+
+    private static final String LOG_TAG = PetStartup.class.getSimpleName( );
+
+    /* Steps of the start, in the order they usually happen */
+    static final int HELPER_CREATED = 0;
+    static final int DATABASE_OPENED = 1;
+    static final int FIRST_PAGE_PREFETCHED = 2;
+    static final int FIRST_PAGE_LOADED = 3;
+    static final int FIRST_LIST_FRAME = 4;
+
+    private static final String[] STEP_NAMES = {"helper_created", "database_opened",
+            "first_page_prefetched", "first_page_loaded", "first_list_frame"};
+
+    /* The first provider created in the process runs the start, the others are left alone */
+    private static final AtomicBoolean started = new AtomicBoolean( );
+
+    /* Elapsed realtime when the provider was created, the origin of the steps */
+    private static volatile long startMillis = -1;
+
+    /* Milliseconds from startMillis to each step, -1 until it happens */
+    private static final AtomicLongArray steps = new AtomicLongArray(STEP_NAMES.length);
+
+    /* Whether the first page of the catalog came from the prefetch */
+    private static volatile boolean firstPageHit;
+
+    /* Incremented by every change to the pets. Guarded by PetStartup.class. */
+    private static long generation = 0;
+
+    /* The prefetched page and what it was read with. Guarded by PetStartup.class. */
+    private static Uri firstPageUri;
+    private static String[] firstPageProjection;
+    private static List <PetListItem> firstPage;
+
+    static {
+        for (int i = 0; i < STEP_NAMES.length; i++) {
+            steps.set(i, -1);
+        }
+    }
+
+    private PetStartup() {
+    }
+
+    /**
+     * Start the clock. Returns true for the first provider of the process, which should then
+     * warm the database and prefetch the first page.
+     */
+    static boolean begin() {
+        if (!started.compareAndSet(false, true)) {
+            return false;
+        }
+        startMillis = SystemClock.elapsedRealtime( );
+        return true;
+    }
+
+    /**
+     * Record that a step of the start is done. Only its first time counts, and nothing is
+     * recorded before {@link #begin()}.
+     */
+    static void mark( int step ) {
+        long start = startMillis;
+        if (start < 0 || !steps.compareAndSet(step, -1, SystemClock.elapsedRealtime( ) - start)) {
+            return;
+        }
+        if (step == FIRST_LIST_FRAME) {
+            Log.i(LOG_TAG, "Cold start: " + toJson( ));
+        }
+    }
+
+    /**
+     * Returns the value to give to {@link #putFirstPage} for a page about to be read.
+     */
+    static synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Keep the first page of the catalog, read with the given URI and projection, unless the
+     * pets changed since {@link #generation()} was called before the read.
+     */
+    static synchronized void putFirstPage( Uri uri, String[] projection,
+                                           List <PetListItem> page, long readGeneration ) {
+        if (readGeneration == generation) {
+            firstPageUri = uri;
+            firstPageProjection = projection;
+            firstPage = page;
+        }
+    }
+
+    /**
+     * Returns the prefetched page if it was read with the same URI and projection, or null.
+     * The page is only handed out once.
+     */
+    static List <PetListItem> takeFirstPage( Uri uri, String[] projection ) {
+        List <PetListItem> page;
+        synchronized (PetStartup.class) {
+            if (firstPage == null || !firstPageUri.equals(uri) ||
+                    !Arrays.equals(firstPageProjection, projection)) {
+                return null;
+            }
+            page = firstPage;
+            firstPage = null;
+        }
+        firstPageHit = true;
+        return page;
+    }
+
+    /**
+     * Drop the prefetched page, the pets changed. Called by the provider for every change.
+     */
+    static synchronized void invalidate() {
+        generation++;
+        firstPage = null;
+    }
+
+    /**
+     * Returns the steps done so far, in milliseconds since the provider was created.
+     */
+    static JSONObject toJson() {
+        try {
+            JSONObject report = new JSONObject( );
+            if (startMillis < 0) {
+                return report;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                // Time the process spent before any of our code ran
+                report.put("process_start_ms", startMillis - Process.getStartElapsedRealtime( ));
+            }
+            for (int i = 0; i < STEP_NAMES.length; i++) {
+                long millis = steps.get(i);
+                if (millis >= 0) {
+                    report.put(STEP_NAMES[i] + "_ms", millis);
+                }
+            }
+            report.put("first_page_from_prefetch", firstPageHit);
+            return report;
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
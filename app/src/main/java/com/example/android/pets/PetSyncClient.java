@@ -0,0 +1,184 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static com.example.android.pets.data.PetContract.KEY_EPOCH;
+import static com.example.android.pets.data.PetContract.KEY_LAST_SEQUENCE;
+import static com.example.android.pets.data.PetContract.METHOD_GET_CHANGE_LOG;
+
+/**
+ * Sends the changes to the pets to a server, reading them from {@link ChangeEntry#CONTENT_URI}
+ * after the last sequence number the server acknowledged. A sync sends only what changed since
+ * the previous one, in batches.
+ * <p>
+ * Each batch is POSTed as one JSON object:
+ * <pre>
+ * {"epoch": "...", "since": 120, "until": 170, "reset": false, "changes": [
+ *     {"seq": 121, "op": "upsert", "_id": 7, "name": "Rex", "breed": "Pug", ...},
+ *     {"seq": 125, "op": "delete", "_id": 3},
+ *     {"seq": 170, "op": "delete_through", "_id": 40}]}
+ * </pre>
+ * The cursor only moves once the server answered with a 2xx status, so a failed batch is sent
+ * again by the next sync; applying a batch twice must leave the server unchanged. With reset
+ * true the server drops its copy first: the log started a new epoch, after a restore, and the
+ * sync starts over from 0.
+ */
+public class PetSyncClient {
+
+    /* Changes read and sent per request */
+    private static final int BATCH_SIZE = 500;
+
+    private static final int TIMEOUT_MILLIS = 15000;
+
+    /* Keys of the sync state */
+    private static final String STATE_EPOCH = "epoch";
+    private static final String STATE_SINCE = "since";
+
+    private static final String[] OPERATIONS = {null, "upsert", "delete", "delete_through"};
+
+    private final ContentResolver resolver;
+    private final URL endpoint;
+    private final SharedPreferences state;
+
+    /**
+     * @param endpoint where the batches are POSTed
+     * @param state    where the epoch and sequence acknowledged by that endpoint are kept,
+     *                 one per endpoint
+     */
+    public PetSyncClient( Context context, URL endpoint, SharedPreferences state ) {
+        this.resolver = context.getContentResolver( );
+        this.endpoint = endpoint;
+        this.state = state;
+    }
+
+    /**
+     * Send every change the server has not acknowledged yet. Returns the number of changes
+     * sent. Blocks on the network, so call it off the main thread.
+     */
+    public int sync() throws IOException {
+        Bundle log = resolver.call(PetEntry.CONTENT_URI, METHOD_GET_CHANGE_LOG, null, null);
+        String epoch = log.getString(KEY_EPOCH);
+        long since = state.getLong(STATE_SINCE, 0);
+        // A sequence past the end also means the log is not the one the server saw
+        boolean reset = !epoch.equals(state.getString(STATE_EPOCH, null)) ||
+                since > log.getLong(KEY_LAST_SEQUENCE);
+        if (reset) {
+            since = 0;
+        }
+
+        int sent = 0;
+        while (true) {
+            JSONArray changes = new JSONArray( );
+            long until = readChanges(since, changes);
+            if (changes.length( ) == 0 && !reset) {
+                return sent;
+            }
+            post(batch(epoch, since, until, reset, changes));
+            state.edit( )
+                    .putString(STATE_EPOCH, epoch)
+                    .putLong(STATE_SINCE, until)
+                    .apply( );
+            sent += changes.length( );
+            since = until;
+            reset = false;
+            if (changes.length( ) < BATCH_SIZE) {
+                return sent;
+            }
+        }
+    }
+
+    /* Read at most one batch of changes after since into changes, returns the last sequence */
+    private long readChanges( long since, JSONArray changes ) {
+        Cursor cursor = resolver.query(ChangeEntry.buildChangesUri(since, BATCH_SIZE), null,
+                null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("No change log");
+        }
+        try {
+            int sequenceIndex = cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_SEQUENCE);
+            int operationIndex = cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_OPERATION);
+            String[] columns = cursor.getColumnNames( );
+            long until = since;
+            while (cursor.moveToNext( )) {
+                until = cursor.getLong(sequenceIndex);
+                int operation = cursor.getInt(operationIndex);
+                JSONObject change = new JSONObject( );
+                change.put(ChangeEntry.COLUMN_SEQUENCE, until);
+                change.put(ChangeEntry.COLUMN_OPERATION, OPERATIONS[operation]);
+                for (int i = 0; i < columns.length; i++) {
+                    if (i == sequenceIndex || i == operationIndex || cursor.isNull(i)) {
+                        continue;
+                    }
+                    // Pet columns are only set for an upsert, _id is always
+                    if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                        change.put(columns[i], cursor.getLong(i));
+                    } else {
+                        change.put(columns[i], cursor.getString(i));
+                    }
+                }
+                changes.put(change);
+            }
+            return until;
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            cursor.close( );
+        }
+    }
+
+    private static JSONObject batch( String epoch, long since, long until, boolean reset,
+                                     JSONArray changes ) {
+        try {
+            JSONObject batch = new JSONObject( );
+            batch.put("epoch", epoch);
+            batch.put("since", since);
+            batch.put("until", until);
+            batch.put("reset", reset);
+            batch.put("changes", changes);
+            return batch;
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void post( JSONObject batch ) throws IOException {
+        byte[] body = batch.toString( ).getBytes("UTF-8");
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection( );
+        try {
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", PetEntry.JSON_TYPE);
+            OutputStream out = connection.getOutputStream( );
+            try {
+                out.write(body);
+            } finally {
+                out.close( );
+            }
+            int status = connection.getResponseCode( );
+            if (status / 100 != 2) {
+                throw new IOException("Sync rejected by " + endpoint + ": HTTP " + status);
+            }
+        } finally {
+            connection.disconnect( );
+        }
+    }
+}
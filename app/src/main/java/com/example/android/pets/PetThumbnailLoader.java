@@ -0,0 +1,225 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows the photo thumbnails of the list rows without decoding anything on the main thread.
+ * <p>
+ * Decoded bitmaps are kept in a memory LRU bounded in bytes, and the thumbnail files in a disk
+ * cache, so rows scrolled back into view bind at once and a cold start reads local files
+ * instead of going through the provider. Both caches are keyed by pet and photo version: a
+ * new photo gets a new key, so nothing ever needs to be invalidated.
+ */
+public class PetThumbnailLoader {
+
+    private static final String LOG_TAG = PetThumbnailLoader.class.getSimpleName( );
+
+    /* Share of the heap given to the decoded thumbnails */
+    private static final int MEMORY_CACHE_FRACTION = 8;
+
+    /* The disk cache is trimmed back to 3/4 of this size, oldest files first */
+    private static final long DISK_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    /* Decoding is I/O and CPU bound, two threads keep up with a fling */
+    private static final Executor DECODE_EXECUTOR = Executors.newFixedThreadPool(2);
+
+    private final ContentResolver resolver;
+    private final File diskCacheDirectory;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper( ));
+    private final LruCache <String, Bitmap> memoryCache;
+
+    /* Bytes in the disk cache, measured on the first write */
+    private long diskCacheBytes = -1;
+
+    public PetThumbnailLoader( Context context ) {
+        resolver = context.getContentResolver( );
+        diskCacheDirectory = new File(context.getCacheDir( ), DISK_CACHE_DIRECTORY);
+        int maxKb = (int) (Runtime.getRuntime( ).maxMemory( ) / 1024 / MEMORY_CACHE_FRACTION);
+        memoryCache = new LruCache <String, Bitmap>(maxKb) {
+            @Override
+            protected int sizeOf( String key, Bitmap bitmap ) {
+                return bitmap.getByteCount( ) / 1024;
+            }
+        };
+    }
+
+    /**
+     * Show the thumbnail of the pet in the view, or the placeholder if it has no photo. Call
+     * from onBindViewHolder; a load still running for the previous pet of the view is dropped.
+     */
+    public void load( PetListItem pet, ImageView view ) {
+        String key = pet.id + "-" + pet.photo;
+        Request previous = (Request) view.getTag(R.id.thumbnail);
+        if (previous != null) {
+            if (previous.key.equals(key)) {
+                return;
+            }
+            previous.cancelled = true;
+            view.setTag(R.id.thumbnail, null);
+        }
+
+        Bitmap bitmap = pet.photo == 0 ? null : memoryCache.get(key);
+        view.setImageBitmap(bitmap);
+        if (pet.photo == 0 || bitmap != null) {
+            return;
+        }
+        Request request = new Request(pet.id, key, view);
+        view.setTag(R.id.thumbnail, request);
+        DECODE_EXECUTOR.execute(request);
+    }
+
+    /**
+     * Drop the load running for the view, if any, e.g. when its row is recycled.
+     */
+    public void cancel( ImageView view ) {
+        Request request = (Request) view.getTag(R.id.thumbnail);
+        if (request != null) {
+            request.cancelled = true;
+            view.setTag(R.id.thumbnail, null);
+        }
+    }
+
+    /* Background part of a load: disk cache, or the provider on a miss, then decode */
+    private Bitmap loadBitmap( long id, String key ) {
+        File cached = new File(diskCacheDirectory, key + ".jpg");
+        try {
+            if (cached.exists( )) {
+                // The trim removes the least recently used files first
+                cached.setLastModified(System.currentTimeMillis( ));
+            } else {
+                download(id, cached);
+            }
+        } catch (FileNotFoundException e) {
+            // The photo was removed since the row was loaded
+            return null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Cannot read the thumbnail of pet " + id, e);
+            return null;
+        }
+        return BitmapFactory.decodeFile(cached.getPath( ));
+    }
+
+    private void download( long id, File cached ) throws IOException {
+        InputStream in = resolver.openInputStream(PetEntry.buildThumbnailUri(id));
+        if (in == null) {
+            throw new FileNotFoundException("No thumbnail for pet " + id);
+        }
+        if (!diskCacheDirectory.isDirectory( ) && !diskCacheDirectory.mkdirs( )) {
+            throw new IOException("Cannot create " + diskCacheDirectory);
+        }
+        // Two rows of the same pet may download at once, each into its own file
+        File temporary = File.createTempFile(cached.getName( ), ".tmp", diskCacheDirectory);
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close( );
+            }
+            if (!temporary.renameTo(cached)) {
+                throw new IOException("Cannot rename " + temporary);
+            }
+        } finally {
+            in.close( );
+            temporary.delete( );
+        }
+        addToDiskCache(cached.length( ));
+    }
+
+    private synchronized void addToDiskCache( long bytes ) {
+        File[] files = diskCacheDirectory.listFiles( );
+        if (files == null) {
+            return;
+        }
+        if (diskCacheBytes < 0) {
+            diskCacheBytes = 0;
+            for (File file : files) {
+                diskCacheBytes += file.length( );
+            }
+        } else {
+            diskCacheBytes += bytes;
+        }
+        if (diskCacheBytes <= DISK_CACHE_MAX_BYTES) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator <File>( ) {
+            @Override
+            public int compare( File a, File b ) {
+                long difference = a.lastModified( ) - b.lastModified( );
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (diskCacheBytes <= DISK_CACHE_MAX_BYTES * 3 / 4) {
+                break;
+            }
+            long length = file.length( );
+            if (file.delete( )) {
+                diskCacheBytes -= length;
+            }
+        }
+    }
+
+    private class Request implements Runnable {
+        final long id;
+        final String key;
+        final ImageView view;
+
+        /* Set on the main thread when the view is bound to another pet */
+        volatile boolean cancelled;
+
+        Request( long id, String key, ImageView view ) {
+            this.id = id;
+            this.key = key;
+            this.view = view;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            final Bitmap bitmap = loadBitmap(id, key);
+            if (bitmap != null) {
+                memoryCache.put(key, bitmap);
+            }
+            mainHandler.post(new Runnable( ) {
+                @Override
+                public void run() {
+                    if (cancelled || view.getTag(R.id.thumbnail) != Request.this) {
+                        return;
+                    }
+                    view.setTag(R.id.thumbnail, null);
+                    view.setImageBitmap(bitmap);
+                }
+            });
+        }
+    }
+}
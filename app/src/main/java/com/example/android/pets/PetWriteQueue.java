@@ -0,0 +1,191 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs pet inserts, updates and deletes off the main thread.
+ * <p>
+ * Writes from every queue go through one background thread, so they reach the provider in
+ * the order they were submitted. The result of each write is handed to its callback on the
+ * main thread. A write can be cancelled until it starts; after that, cancelling only drops
+ * its callback.
+ * <p>
+ * Activities keep one queue and call {@link #detachAll()} from onDestroy(), so writes that are
+ * still running finish without calling back into a destroyed activity.
+ */
+public class PetWriteQueue {
+
+    private static final String LOG_TAG = PetWriteQueue.class.getSimpleName( );
+
+    /* Shared by all queues, so all writes of the app are serialized */
+    private static final Executor WRITE_EXECUTOR = Executors.newSingleThreadExecutor( );
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper( ));
+
+    /**
+     * Receives the result of a write, on the main thread.
+     */
+    public abstract static class Callback <T> {
+
+        public abstract void onResult( T result );
+
+        /**
+         * Called instead of {@link #onResult} when the provider threw. Logs by default.
+         */
+        public void onError( RuntimeException e ) {
+            Log.e(LOG_TAG, "Pet write failed", e);
+        }
+    }
+
+    private final ContentResolver resolver;
+
+    /* Writes submitted through this queue that have not called back yet */
+    private final List <Write <?>> pending = new ArrayList <>( );
+
+    public PetWriteQueue( Context context ) {
+        resolver = context.getApplicationContext( ).getContentResolver( );
+    }
+
+    public Write <Uri> insert( final Uri uri, final ContentValues values, Callback <Uri> callback ) {
+        return submit(new Callable <Uri>( ) {
+            @Override
+            public Uri call() {
+                return resolver.insert(uri, values);
+            }
+        }, callback);
+    }
+
+    public Write <Integer> update( final Uri uri, final ContentValues values, final String selection,
+                                  final String[] selectionArgs, Callback <Integer> callback ) {
+        return submit(new Callable <Integer>( ) {
+            @Override
+            public Integer call() {
+                return resolver.update(uri, values, selection, selectionArgs);
+            }
+        }, callback);
+    }
+
+    public Write <Integer> delete( final Uri uri, final String selection,
+                                  final String[] selectionArgs, Callback <Integer> callback ) {
+        return submit(new Callable <Integer>( ) {
+            @Override
+            public Integer call() {
+                return resolver.delete(uri, selection, selectionArgs);
+            }
+        }, callback);
+    }
+
+    /**
+     * Drop the callbacks of every write of this queue. Writes that have not started are still
+     * run, since the user already asked for them.
+     */
+    public void detachAll() {
+        synchronized (pending) {
+            for (Write <?> write : pending) {
+                write.callback = null;
+            }
+            pending.clear( );
+        }
+    }
+
+    /**
+     * Returns true while a write of this queue has not called back.
+     */
+    public boolean hasPendingWrites() {
+        synchronized (pending) {
+            return !pending.isEmpty( );
+        }
+    }
+
+    private <T> Write <T> submit( Callable <T> command, Callback <T> callback ) {
+        Write <T> write = new Write <>(command, callback);
+        synchronized (pending) {
+            pending.add(write);
+        }
+        WRITE_EXECUTOR.execute(write);
+        return write;
+    }
+
+    private void finished( Write <?> write ) {
+        synchronized (pending) {
+            pending.remove(write);
+        }
+    }
+
+    /**
+     * One queued write.
+     */
+    public final class Write <T> implements Runnable {
+
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+
+        private final Callable <T> command;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private volatile Callback <T> callback;
+
+        private Write( Callable <T> command, Callback <T> callback ) {
+            this.command = command;
+            this.callback = callback;
+        }
+
+        /**
+         * Cancel the write. Returns true if it had not started and will never run; otherwise
+         * it runs to the end but its callback is not called.
+         */
+        public boolean cancel() {
+            callback = null;
+            finished(this);
+            return state.compareAndSet(QUEUED, CANCELLED);
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+            T result = null;
+            RuntimeException error = null;
+            try {
+                result = command.call( );
+            } catch (RuntimeException e) {
+                error = e;
+            } catch (Exception e) {
+                error = new RuntimeException(e);
+            }
+            deliver(result, error);
+        }
+
+        private void deliver( final T result, final RuntimeException error ) {
+            MAIN_HANDLER.post(new Runnable( ) {
+                @Override
+                public void run() {
+                    finished(Write.this);
+                    Callback <T> target = callback;
+                    if (target == null) {
+                        return;
+                    }
+                    if (error != null) {
+                        target.onError(error);
+                    } else {
+                        target.onResult(result);
+                    }
+                }
+            });
+        }
+    }
+}
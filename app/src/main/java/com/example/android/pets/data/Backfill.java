@@ -0,0 +1,37 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Data work of a {@link Migration} that is too big for the upgrade transaction, e.g. filling a
+ * new column for every pet.
+ * <p>
+ * Rows are processed in ascending key order (usually _id), one chunk per transaction. The
+ * key of the last processed row is committed with the chunk, so an interrupted backfill
+ * resumes where it stopped the next time the database is opened.
+ */
+public abstract class Backfill {
+
+    /* Unique name, used to find the backfill again after a restart */
+    public final String name;
+
+    /* Rows processed per transaction */
+    public final int chunkSize;
+
+    protected Backfill( String name, int chunkSize ) {
+        this.name = name;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns the last key to process. Called once, in the upgrade transaction, so rows
+     * written after the upgrade (already in the new format) are left alone.
+     */
+    public abstract long endKey( SQLiteDatabase db );
+
+    /**
+     * Process at most limit rows with keys in (afterKey, endKey]. Returns the key of the last
+     * row processed, or endKey when no row is left.
+     */
+    public abstract long runChunk( SQLiteDatabase db, long afterKey, long endKey, int limit );
+}
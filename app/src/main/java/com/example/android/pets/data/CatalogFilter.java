@@ -0,0 +1,126 @@
+package com.example.android.pets.data;
+
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import static com.example.android.pets.data.PetContract.*;
+
+/**
+ * Filters and sort order of the catalog, turned into query parameters on
+ * {@link PetEntry#CONTENT_URI}.
+ * <p>
+ * Each combination is served by one of the covering indexes created by {@link PetDbHelper},
+ * so a page of the catalog is read from the index alone.
+ */
+public final class CatalogFilter {
+
+    /* Value of gender, minWeight and maxWeight when they don't filter */
+    public static final int ANY = -1;
+
+    /* Number of pets the catalog reads per page */
+    public static final int PAGE_SIZE = 50;
+
+    /* Columns of a catalog page, every one of them in the covering indexes */
+    public static final String[] PAGE_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO};
+
+    public final int gender;
+    public final int minWeight;
+    public final int maxWeight;
+    public final String breed;
+
+    /* One of SORT_NAME, SORT_WEIGHT, SORT_NEWEST, or null for _id order */
+    public final String sort;
+
+    /* No filter, _id order */
+    public static final CatalogFilter NONE = new CatalogFilter(ANY, ANY, ANY, null, null);
+
+    public CatalogFilter( int gender, int minWeight, int maxWeight, String breed, String sort ) {
+        this.gender = gender;
+        this.minWeight = minWeight;
+        this.maxWeight = maxWeight;
+        this.breed = breed == null || breed.isEmpty( ) ? null : breed;
+        this.sort = sort;
+    }
+
+    /**
+     * Returns the URI of the first page the catalog loads when it starts without a saved
+     * filter. The provider reads it ahead while the process starts.
+     */
+    public static Uri startPageUri() {
+        return NONE.firstPageUri(PAGE_SIZE);
+    }
+
+    /**
+     * Returns the URI of the first page of this filter.
+     */
+    public Uri firstPageUri( int limit ) {
+        return buildUpon( )
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build( );
+    }
+
+    /**
+     * Returns the URI of the page after the row with the given _id and sort key value. The
+     * sort key is the name or the weight of that row, depending on the sort; it is ignored
+     * for _id and newest order.
+     */
+    public Uri nextPageUri( long afterId, String afterKey, int limit ) {
+        Uri.Builder builder = buildUpon( )
+                .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+        if (SORT_NAME.equals(sort) || SORT_WEIGHT.equals(sort)) {
+            builder.appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, afterKey);
+        }
+        return builder.build( );
+    }
+
+    private Uri.Builder buildUpon() {
+        Uri.Builder builder = PetEntry.CONTENT_URI.buildUpon( );
+        if (gender != ANY) {
+            builder.appendQueryParameter(QUERY_PARAMETER_GENDER, String.valueOf(gender));
+        }
+        if (minWeight != ANY) {
+            builder.appendQueryParameter(QUERY_PARAMETER_MIN_WEIGHT, String.valueOf(minWeight));
+        }
+        if (maxWeight != ANY) {
+            builder.appendQueryParameter(QUERY_PARAMETER_MAX_WEIGHT, String.valueOf(maxWeight));
+        }
+        if (breed != null) {
+            builder.appendQueryParameter(QUERY_PARAMETER_BREED, breed);
+        }
+        if (sort != null) {
+            builder.appendQueryParameter(QUERY_PARAMETER_SORT, sort);
+        }
+        return builder;
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle( );
+        bundle.putInt(QUERY_PARAMETER_GENDER, gender);
+        bundle.putInt(QUERY_PARAMETER_MIN_WEIGHT, minWeight);
+        bundle.putInt(QUERY_PARAMETER_MAX_WEIGHT, maxWeight);
+        bundle.putString(QUERY_PARAMETER_BREED, breed);
+        bundle.putString(QUERY_PARAMETER_SORT, sort);
+        return bundle;
+    }
+
+    public static CatalogFilter fromBundle( Bundle bundle ) {
+        if (bundle == null) {
+            return NONE;
+        }
+        return new CatalogFilter(
+                bundle.getInt(QUERY_PARAMETER_GENDER, ANY),
+                bundle.getInt(QUERY_PARAMETER_MIN_WEIGHT, ANY),
+                bundle.getInt(QUERY_PARAMETER_MAX_WEIGHT, ANY),
+                bundle.getString(QUERY_PARAMETER_BREED),
+                bundle.getString(QUERY_PARAMETER_SORT));
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of the pets.db schema history: what changes when the database goes to
+ * {@link #version}.
+ * <p>
+ * {@link #migrate} runs inside the upgrade transaction opened by {@link PetDbHelper}, together
+ * with every other pending step, so it must stay fast: add columns, tables, indexes and
+ * triggers there. Work that grows with the number of pets goes into a {@link Backfill}, which
+ * {@link MigrationRunner} runs later in small committed chunks.
+ */
+public abstract class Migration {
+
+    /* Database version this step upgrades to */
+    public final int version;
+
+    /* Short name, recorded in the migration log */
+    public final String name;
+
+    protected Migration( int version, String name ) {
+        this.version = version;
+        this.name = name;
+    }
+
+    /**
+     * Apply the schema changes of this step.
+     */
+    public abstract void migrate( SQLiteDatabase db );
+
+    /**
+     * Returns the data backfill that completes this step, or null if there is none.
+     */
+    public Backfill getBackfill() {
+        return null;
+    }
+}
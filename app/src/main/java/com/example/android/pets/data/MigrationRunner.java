@@ -0,0 +1,193 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Upgrades pets.db in place by running the {@link Migration}s between two versions in order,
+ * then their {@link Backfill}s in chunks.
+ * <p>
+ * Two bookkeeping tables live next to the data: {@link #TABLE_MIGRATION_LOG} records every
+ * step and backfill with its duration, and {@link #TABLE_PENDING_BACKFILLS} keeps the progress
+ * of the backfills that have not finished.
+ */
+public final class MigrationRunner {
+
+    private static final String LOG_TAG = MigrationRunner.class.getSimpleName( );
+
+    public static final String TABLE_MIGRATION_LOG = "migration_log";
+    public static final String TABLE_PENDING_BACKFILLS = "pending_backfills";
+
+    private static final String COLUMN_VERSION = "version";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_DURATION_MS = "duration_ms";
+    private static final String COLUMN_APPLIED_AT = "applied_at";
+    private static final String COLUMN_LAST_KEY = "last_key";
+    private static final String COLUMN_END_KEY = "end_key";
+
+    private static final String SQL_CREATE_MIGRATION_LOG =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_MIGRATION_LOG + " (" +
+                    COLUMN_VERSION + " INTEGER NOT NULL, " +
+                    COLUMN_NAME + " TEXT NOT NULL, " +
+                    COLUMN_DURATION_MS + " INTEGER NOT NULL, " +
+                    COLUMN_APPLIED_AT + " INTEGER NOT NULL)";
+    private static final String SQL_CREATE_PENDING_BACKFILLS =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_PENDING_BACKFILLS + " (" +
+                    COLUMN_NAME + " TEXT PRIMARY KEY, " +
+                    COLUMN_VERSION + " INTEGER NOT NULL, " +
+                    COLUMN_LAST_KEY + " INTEGER NOT NULL, " +
+                    COLUMN_END_KEY + " INTEGER NOT NULL, " +
+                    COLUMN_DURATION_MS + " INTEGER NOT NULL DEFAULT 0)";
+
+    private final List <Migration> migrations;
+
+    public MigrationRunner( List <Migration> migrations ) {
+        List <Migration> sorted = new ArrayList <>(migrations);
+        Collections.sort(sorted, new Comparator <Migration>( ) {
+            @Override
+            public int compare( Migration a, Migration b ) {
+                return a.version < b.version ? -1 : (a.version == b.version ? 0 : 1);
+            }
+        });
+        this.migrations = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Returns the oldest version this runner can upgrade from.
+     */
+    public int oldestSupportedVersion() {
+        return migrations.isEmpty( ) ? Integer.MAX_VALUE : migrations.get(0).version - 1;
+    }
+
+    /**
+     * Create the bookkeeping tables if they are missing. Safe to call on every open.
+     */
+    public static void ensureTables( SQLiteDatabase db ) {
+        db.execSQL(SQL_CREATE_MIGRATION_LOG);
+        db.execSQL(SQL_CREATE_PENDING_BACKFILLS);
+    }
+
+    /**
+     * Run, in version order, every migration in (fromVersion, toVersion], and register their
+     * backfills. Must be called inside the upgrade transaction, so either every step is
+     * applied or none is.
+     */
+    public void upgrade( SQLiteDatabase db, int fromVersion, int toVersion ) {
+        ensureTables(db);
+        for (Migration migration : migrations) {
+            if (migration.version <= fromVersion || migration.version > toVersion) {
+                continue;
+            }
+            long start = SystemClock.elapsedRealtime( );
+            migration.migrate(db);
+            long duration = SystemClock.elapsedRealtime( ) - start;
+            log(db, migration.version, migration.name, duration);
+            Log.i(LOG_TAG, "Migrated to version " + migration.version + " (" + migration.name
+                    + ") in " + duration + " ms");
+
+            Backfill backfill = migration.getBackfill( );
+            if (backfill != null) {
+                ContentValues values = new ContentValues( );
+                values.put(COLUMN_NAME, backfill.name);
+                values.put(COLUMN_VERSION, migration.version);
+                values.put(COLUMN_LAST_KEY, 0);
+                values.put(COLUMN_END_KEY, backfill.endKey(db));
+                db.insertWithOnConflict(TABLE_PENDING_BACKFILLS, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        }
+    }
+
+    /**
+     * Returns true if a backfill registered by a past upgrade has not finished.
+     */
+    public static boolean hasPendingBackfills( SQLiteDatabase db ) {
+        Cursor cursor = db.query(TABLE_PENDING_BACKFILLS, new String[]{COLUMN_NAME},
+                null, null, null, null, null, "1");
+        try {
+            return cursor.moveToFirst( );
+        } finally {
+            cursor.close( );
+        }
+    }
+
+    /**
+     * Run every unfinished backfill to the end, one chunk per transaction. Progress is
+     * committed with each chunk, so this can be interrupted at any point and called again.
+     */
+    public void runPendingBackfills( SQLiteDatabase db ) {
+        for (Migration migration : migrations) {
+            Backfill backfill = migration.getBackfill( );
+            if (backfill != null) {
+                runBackfill(db, migration.version, backfill);
+            }
+        }
+    }
+
+    private void runBackfill( SQLiteDatabase db, int version, Backfill backfill ) {
+        String[] whereArgs = {backfill.name};
+        long lastKey;
+        long endKey;
+        long spent;
+        Cursor cursor = db.query(TABLE_PENDING_BACKFILLS,
+                new String[]{COLUMN_LAST_KEY, COLUMN_END_KEY, COLUMN_DURATION_MS},
+                COLUMN_NAME + " = ?", whereArgs, null, null, null);
+        try {
+            if (!cursor.moveToFirst( )) {
+                return;
+            }
+            lastKey = cursor.getLong(0);
+            endKey = cursor.getLong(1);
+            spent = cursor.getLong(2);
+        } finally {
+            cursor.close( );
+        }
+
+        while (true) {
+            long start = SystemClock.elapsedRealtime( );
+            boolean done;
+            db.beginTransaction( );
+            try {
+                long chunkEnd = lastKey < endKey
+                        ? backfill.runChunk(db, lastKey, endKey, backfill.chunkSize)
+                        : endKey;
+                done = chunkEnd >= endKey || chunkEnd <= lastKey;
+                lastKey = chunkEnd;
+                spent += SystemClock.elapsedRealtime( ) - start;
+                if (done) {
+                    db.delete(TABLE_PENDING_BACKFILLS, COLUMN_NAME + " = ?", whereArgs);
+                    log(db, version, backfill.name, spent);
+                } else {
+                    ContentValues progress = new ContentValues( );
+                    progress.put(COLUMN_LAST_KEY, lastKey);
+                    progress.put(COLUMN_DURATION_MS, spent);
+                    db.update(TABLE_PENDING_BACKFILLS, progress, COLUMN_NAME + " = ?", whereArgs);
+                }
+                db.setTransactionSuccessful( );
+            } finally {
+                db.endTransaction( );
+            }
+            if (done) {
+                Log.i(LOG_TAG, "Backfill " + backfill.name + " finished in " + spent + " ms");
+                return;
+            }
+        }
+    }
+
+    private static void log( SQLiteDatabase db, int version, String name, long durationMs ) {
+        ContentValues values = new ContentValues( );
+        values.put(COLUMN_VERSION, version);
+        values.put(COLUMN_NAME, name);
+        values.put(COLUMN_DURATION_MS, durationMs);
+        values.put(COLUMN_APPLIED_AT, System.currentTimeMillis( ));
+        db.insert(TABLE_MIGRATION_LOG, null, values);
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.android.pets.data;
+
+/**
+ * One row of the pets table, with primitive fields.
+ * <p>
+ * Used by the typed write paths of the provider and by {@link PetCodec}, so a pet can be
+ * bound to a statement or read from a cursor without going through a {@code ContentValues}
+ * map of boxed values.
+ */
+public final class Pet {
+
+    /* Id of a pet that is not stored yet */
+    public static final long NO_ID = -1;
+
+    public final long id;
+    public final String name;
+    public final String breed;
+    public final int gender;
+    public final int weight;
+
+    public Pet( long id, String name, String breed, int gender, int weight ) {
+        this.id = id;
+        this.name = name;
+        this.breed = breed;
+        this.gender = gender;
+        this.weight = weight;
+    }
+
+    /**
+     * A new pet, without an id yet.
+     */
+    public Pet( String name, String breed, int gender, int weight ) {
+        this(NO_ID, name, breed, gender, weight);
+    }
+
+    /**
+     * Returns the same pet with the given id.
+     */
+    public Pet withId( long newId ) {
+        return new Pet(newId, name, breed, gender, weight);
+    }
+
+    @Override
+    public String toString() {
+        return "Pet{" + id + ", " + name + ", " + breed + ", " + gender + ", " + weight + "}";
+    }
+}
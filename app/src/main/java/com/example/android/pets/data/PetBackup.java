@@ -0,0 +1,286 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Hot backups of the pets database, taken while the provider keeps serving it.
+ * <p>
+ * VACUUM INTO and the online backup API are not reachable through the framework on our
+ * minSdk, so the snapshot is a copy of the database file taken under the write lock: readers
+ * keep going, writers wait for the copy. The WAL is checkpointed first, so the file holds
+ * nearly every committed page; what is still in the WAL is copied with it.
+ * <p>
+ * Backups alternate between two slots, so a crash while one is written never loses the last
+ * good one. A slot is updated in place page by page, and only pages that differ are written,
+ * so a backup of a database that changed little costs reads, not writes.
+ */
+public final class PetBackup {
+
+    private static final String LOG_TAG = PetBackup.class.getSimpleName( );
+
+    private static final String[] SLOTS = {"pets-a.db", "pets-b.db"};
+
+    /* Holds the name of the slot of the last complete backup */
+    private static final String LATEST = "latest";
+
+    private static final String WAL_SUFFIX = "-wal";
+    private static final String RESTORE_SUFFIX = ".restore";
+
+    /* Files SQLite keeps next to a database */
+    private static final String[] SIDE_FILE_SUFFIXES = {"-wal", "-shm", "-journal"};
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Outcome of a backup: the file written and how many of its pages had to change.
+     */
+    public static final class Result {
+        public final File file;
+        public final long pagesWritten;
+        public final long pagesTotal;
+
+        Result( File file, long pagesWritten, long pagesTotal ) {
+            this.file = file;
+            this.pagesWritten = pagesWritten;
+            this.pagesTotal = pagesTotal;
+        }
+    }
+
+    private final File directory;
+
+    /**
+     * @param directory where the backup slots are kept, created on the first backup
+     */
+    public PetBackup( File directory ) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the file of the last complete backup, or null if there is none.
+     */
+    public File latest() throws IOException {
+        String slot = readLatest( );
+        return slot == null ? null : new File(directory, slot);
+    }
+
+    /**
+     * Copy the database open in db, stored in dbFile, into the older backup slot. Must not run
+     * inside a transaction. Writers on other threads wait while the pages are compared and
+     * copied; readers do not.
+     */
+    public Result backup( SQLiteDatabase db, File dbFile ) throws IOException {
+        if (!directory.isDirectory( ) && !directory.mkdirs( )) {
+            throw new IOException("Cannot create " + directory);
+        }
+        String latest = readLatest( );
+        String slot = SLOTS[0].equals(latest) ? SLOTS[1] : SLOTS[0];
+        File target = new File(directory, slot);
+        File targetWal = new File(directory, slot + WAL_SUFFIX);
+
+        // Move the committed pages into the database file, so the copy rarely needs the WAL.
+        // Fails to finish while readers are on old snapshots, which the copy below covers.
+        PetDbHelper.runPragma(db, "PRAGMA wal_checkpoint(TRUNCATE)");
+        int pageSize = (int) DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+
+        long[] pages;
+        // BEGIN IMMEDIATE: holds the write lock, so neither file changes under the copy
+        db.beginTransactionNonExclusive( );
+        try {
+            pages = copyChangedPages(dbFile, target, pageSize);
+            File wal = new File(dbFile.getPath( ) + WAL_SUFFIX);
+            if (wal.length( ) > 0) {
+                copyFile(wal, targetWal);
+            } else {
+                delete(targetWal);
+            }
+        } finally {
+            db.endTransaction( );
+        }
+
+        writeLatest(slot);
+        Log.d(LOG_TAG, "Backup to " + target + " wrote " + pages[0] + " of " + pages[1] +
+                " pages");
+        return new Result(target, pages[0], pages[1]);
+    }
+
+    /**
+     * Copy the last backup next to dbFile and check it: it must pass quick_check and not come
+     * from a newer schema than this build knows. Returns the checked copy, a single file ready
+     * for {@link #swap}. The live database is not touched.
+     */
+    public File prepareRestore( File dbFile ) throws IOException {
+        String slot = readLatest( );
+        if (slot == null) {
+            throw new FileNotFoundException("No backup in " + directory);
+        }
+        File source = new File(directory, slot);
+        File sourceWal = new File(directory, slot + WAL_SUFFIX);
+        File restored = new File(dbFile.getPath( ) + RESTORE_SUFFIX);
+        deleteWithSideFiles(restored);
+        copyFile(source, restored);
+        if (sourceWal.exists( )) {
+            copyFile(sourceWal, new File(restored.getPath( ) + WAL_SUFFIX));
+        }
+
+        // Opening out of WAL mode folds the copied WAL into the file and removes it
+        SQLiteDatabase check;
+        try {
+            check = SQLiteDatabase.openDatabase(restored.getPath( ), null,
+                    SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        } catch (RuntimeException e) {
+            deleteWithSideFiles(restored);
+            throw new IOException("Cannot open backup " + source, e);
+        }
+        String integrity;
+        int version;
+        try {
+            integrity = DatabaseUtils.stringForQuery(check, "PRAGMA quick_check", null);
+            version = check.getVersion( );
+        } finally {
+            check.close( );
+        }
+        if (!"ok".equals(integrity) || version > PetDbHelper.DATABASE_VERSION) {
+            deleteWithSideFiles(restored);
+            throw new IOException("Backup " + source + " is not usable: " + integrity +
+                    ", version " + version);
+        }
+        return restored;
+    }
+
+    /**
+     * Replace dbFile by the file returned by {@link #prepareRestore}. Every connection to
+     * dbFile must be closed. The rename is atomic: dbFile is either the old or the restored
+     * database, never a mix.
+     */
+    public static void swap( File restored, File dbFile ) throws IOException {
+        // Pages of the old database left in its WAL would be replayed over the restored one
+        for (String suffix : SIDE_FILE_SUFFIXES) {
+            delete(new File(dbFile.getPath( ) + suffix));
+        }
+        if (!restored.renameTo(dbFile)) {
+            throw new IOException("Cannot rename " + restored + " to " + dbFile);
+        }
+    }
+
+    /* Update target to a copy of source, writing only the pages that differ. Returns the
+     * number of pages written and the total. */
+    private static long[] copyChangedPages( File source, File target, int pageSize )
+            throws IOException {
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            RandomAccessFile out = new RandomAccessFile(target, "rw");
+            try {
+                byte[] page = new byte[pageSize];
+                byte[] old = new byte[pageSize];
+                long length = in.length( );
+                long targetLength = out.length( );
+                long written = 0;
+                long total = 0;
+                for (long offset = 0; offset < length; offset += pageSize) {
+                    int size = (int) Math.min(pageSize, length - offset);
+                    in.readFully(page, 0, size);
+                    total++;
+                    if (offset + size <= targetLength) {
+                        out.seek(offset);
+                        out.readFully(old, 0, size);
+                        if (samePrefix(page, old, size)) {
+                            continue;
+                        }
+                    }
+                    out.seek(offset);
+                    out.write(page, 0, size);
+                    written++;
+                }
+                out.setLength(length);
+                out.getFD( ).sync( );
+                return new long[]{written, total};
+            } finally {
+                out.close( );
+            }
+        } finally {
+            in.close( );
+        }
+    }
+
+    private static boolean samePrefix( byte[] a, byte[] b, int size ) {
+        for (int i = 0; i < size; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void copyFile( File source, File target ) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                out.getFD( ).sync( );
+            } finally {
+                out.close( );
+            }
+        } finally {
+            in.close( );
+        }
+    }
+
+    private String readLatest() throws IOException {
+        File file = new File(directory, LATEST);
+        if (!file.exists( )) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) file.length( )];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close( );
+        }
+        String slot = new String(bytes, "UTF-8").trim( );
+        return Arrays.asList(SLOTS).contains(slot) ? slot : null;
+    }
+
+    /* Written to a temporary file and renamed, so a crash leaves the old or the new name */
+    private void writeLatest( String slot ) throws IOException {
+        File temporary = new File(directory, LATEST + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(slot.getBytes("UTF-8"));
+            out.getFD( ).sync( );
+        } finally {
+            out.close( );
+        }
+        if (!temporary.renameTo(new File(directory, LATEST))) {
+            throw new IOException("Cannot rename " + temporary);
+        }
+    }
+
+    private static void deleteWithSideFiles( File file ) throws IOException {
+        delete(file);
+        for (String suffix : SIDE_FILE_SUFFIXES) {
+            delete(new File(file.getPath( ) + suffix));
+        }
+    }
+
+    private static void delete( File file ) throws IOException {
+        if (file.exists( ) && !file.delete( )) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of the breed names. A pet stores the integer id of its breed in
+ * {@link #COLUMN_BREED_ID} instead of the name, so each name is stored once however many pets
+ * share it: rows and catalog indexes get smaller, cursors of the stored columns too, and the
+ * breed filter compares integers.
+ * <p>
+ * Readers never see the ids. {@link #SQL_PETS_WITH_BREED} is the pets table with the name
+ * joined back in as the breed column of {@link PetEntry}. Writers turn names into ids with
+ * {@link #intern}, which keeps the ids it has seen in memory, so a known breed costs no query.
+ * <p>
+ * Names are never removed from the dictionary, and a new one takes the next id, so the
+ * committed ids are always 1 to the highest one.
+ */
+public final class PetBreeds {
+
+    public static final String TABLE_BREEDS = "breeds";
+    public static final String COLUMN_NAME = "name";
+
+    /* Column of the pets table */
+    public static final String COLUMN_BREED_ID = "breed_id";
+
+    /* The pets table with the breed name, and the same for the full-text index */
+    public static final String VIEW_PETS = "pets_with_breed";
+    public static final String VIEW_SEARCH_CONTENT = "pets_fts_content";
+
+    /**
+     * Read pets from this instead of the pets table. The view keeps the name of the table, so
+     * {@link PetTombstones#SQL_VISIBLE} and the catalog indexes apply as they are; breeds are
+     * looked up by primary key, one per row read.
+     */
+    public static final String SQL_PETS_WITH_BREED = VIEW_PETS + " AS " + PetEntry.TABLE_NAME;
+
+    /**
+     * Condition matching the pets of a breed, parameter: the breed name. One lookup of the
+     * name, then a range of the breed index.
+     */
+    public static final String SQL_HAS_BREED =
+            COLUMN_BREED_ID + " = (SELECT " + PetEntry._ID + " FROM " + TABLE_BREEDS +
+                    " WHERE " + COLUMN_NAME + " = ?)";
+
+    static final String SQL_CREATE_BREEDS =
+            "CREATE TABLE " + TABLE_BREEDS + " (" +
+                    PetEntry._ID + " INTEGER PRIMARY KEY, " +
+                    COLUMN_NAME + " TEXT NOT NULL UNIQUE)";
+
+    /* A LEFT JOIN, so the planner keeps the pets table outside and walks the catalog indexes
+     * in their order; breed_id is there for SQL_HAS_BREED */
+    static final String SQL_CREATE_VIEW_PETS =
+            "CREATE VIEW " + VIEW_PETS + " AS SELECT " +
+                    PetEntry.TABLE_NAME + "." + PetEntry._ID + " AS " + PetEntry._ID + ", " +
+                    PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_NAME + " AS " +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    TABLE_BREEDS + "." + COLUMN_NAME + " AS " + PetEntry.COLUMN_PET_BREED + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ", " +
+                    PetEntry.COLUMN_PET_PHOTO + ", " +
+                    COLUMN_BREED_ID +
+                    " FROM " + PetEntry.TABLE_NAME + " LEFT JOIN " + TABLE_BREEDS + " ON " +
+                    TABLE_BREEDS + "." + PetEntry._ID + " = " + COLUMN_BREED_ID;
+
+    /* Content of the external content full-text index, which reads it by rowid */
+    static final String SQL_CREATE_VIEW_SEARCH_CONTENT =
+            "CREATE VIEW " + VIEW_SEARCH_CONTENT + " AS SELECT " +
+                    PetEntry.TABLE_NAME + "." + PetEntry._ID + " AS rowid, " +
+                    PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_NAME + " AS " +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    TABLE_BREEDS + "." + COLUMN_NAME + " AS " + PetEntry.COLUMN_PET_BREED +
+                    " FROM " + PetEntry.TABLE_NAME + " LEFT JOIN " + TABLE_BREEDS + " ON " +
+                    TABLE_BREEDS + "." + PetEntry._ID + " = " + COLUMN_BREED_ID;
+
+    private static final String SQL_FIND =
+            "SELECT " + PetEntry._ID + " FROM " + TABLE_BREEDS + " WHERE " + COLUMN_NAME + " = ?";
+
+    private static final String SQL_ADD =
+            "INSERT OR IGNORE INTO " + TABLE_BREEDS + " (" + COLUMN_NAME + ") VALUES (?)";
+
+    /* Ids by name. Only committed ids go in, see intern(). */
+    private final ConcurrentHashMap <String, Long> ids = new ConcurrentHashMap <>( );
+
+    /* Every id up to this one is known to be committed. Guarded by this. */
+    private long committedThrough = 0;
+
+    /* Create the dictionary and the views that join it back in */
+    static void create( SQLiteDatabase db ) {
+        db.execSQL(SQL_CREATE_BREEDS);
+        db.execSQL(SQL_CREATE_VIEW_PETS);
+        db.execSQL(SQL_CREATE_VIEW_SEARCH_CONTENT);
+    }
+
+    /**
+     * SQL expression of the name of the breed with the given id, for triggers.
+     */
+    static String nameOf( String breedId ) {
+        return "(SELECT " + COLUMN_NAME + " FROM " + TABLE_BREEDS + " WHERE " + PetEntry._ID +
+                " = " + breedId + ")";
+    }
+
+    /**
+     * Returns the id of a breed name, adding the name to the dictionary if it is new. May run
+     * inside the transaction of the write that stores the id.
+     * <p>
+     * An id is only cached once it is committed: an id added by a transaction that rolls back
+     * goes to the next new name. Outside a transaction every id read is committed; inside one,
+     * an id is if it is not above the committed ones already seen.
+     */
+    public long intern( SQLiteDatabase db, String name ) {
+        Long cached = ids.get(name);
+        if (cached != null) {
+            return cached;
+        }
+        boolean inTransaction = db.inTransaction( );
+        long id = find(db, name);
+        if (id < 0) {
+            SQLiteStatement statement = db.compileStatement(SQL_ADD);
+            try {
+                statement.bindString(1, name);
+                statement.executeInsert( );
+            } finally {
+                statement.close( );
+            }
+            // Another writer may have added it meanwhile, read whichever row is there
+            id = find(db, name);
+        }
+        if (!inTransaction) {
+            ids.put(name, id);
+            raiseCommittedThrough(id);
+        } else if (id <= committedThrough( )) {
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Returns the values to store for the given pet values: the breed name, if there is one,
+     * replaced by the id of the breed. The given values are left alone.
+     */
+    public ContentValues toStored( SQLiteDatabase db, ContentValues values ) {
+        if (!values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+            return values;
+        }
+        ContentValues stored = new ContentValues(values);
+        String breed = stored.getAsString(PetEntry.COLUMN_PET_BREED);
+        stored.remove(PetEntry.COLUMN_PET_BREED);
+        if (breed == null) {
+            // Fails on the NOT NULL column, as the name did
+            stored.putNull(COLUMN_BREED_ID);
+        } else {
+            stored.put(COLUMN_BREED_ID, intern(db, breed));
+        }
+        return stored;
+    }
+
+    /**
+     * Read the whole dictionary into the cache, forgetting what was cached before, e.g. after
+     * the database file was replaced. Call it outside of any transaction.
+     */
+    void load( SQLiteDatabase db ) {
+        ids.clear( );
+        synchronized (this) {
+            committedThrough = 0;
+        }
+        Cursor cursor = db.query(TABLE_BREEDS, new String[]{PetEntry._ID, COLUMN_NAME},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext( )) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+                raiseCommittedThrough(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close( );
+        }
+    }
+
+    /* Returns the id of a name, -1 if it is not in the dictionary */
+    private static long find( SQLiteDatabase db, String name ) {
+        Cursor cursor = db.rawQuery(SQL_FIND, new String[]{name});
+        try {
+            return cursor.moveToFirst( ) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close( );
+        }
+    }
+
+    private synchronized long committedThrough() {
+        return committedThrough;
+    }
+
+    private synchronized void raiseCommittedThrough( long id ) {
+        if (id > committedThrough) {
+            committedThrough = id;
+        }
+    }
+}
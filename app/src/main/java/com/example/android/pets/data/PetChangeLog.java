@@ -0,0 +1,230 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Append-only log of the changes to the pets table, for {@link ChangeEntry#CONTENT_URI}.
+ * <p>
+ * Triggers add one small row per change, in the transaction of the change, with a sequence
+ * number that only goes up: an inserted or updated pet, a tombstoned pet, or a move of the
+ * deleted-through mark, which deletes every pet up to it with one row. A replica that kept the
+ * last sequence it applied reads the rows after it, a range of the primary key, so a sync
+ * costs as many rows as there were changes, whatever the number of pets.
+ * <p>
+ * The log only says which pet changed; its current values are joined in when the log is read.
+ * That lets {@link #compact} drop every entry a later one makes useless, so the log holds at
+ * most one entry per pet plus the last mark.
+ * <p>
+ * A restore brings back the log of the backup, whose sequence numbers were handed out again
+ * since. {@link #renewEpoch} gives the log a new epoch then, so replicas start over.
+ */
+public final class PetChangeLog {
+
+    public static final String TABLE_CHANGES = "pet_changes";
+    public static final String TABLE_STATE = "pet_change_log_state";
+
+    /* Columns of TABLE_CHANGES. For OP_DELETE_THROUGH the pet column holds the mark. */
+    public static final String COLUMN_SEQUENCE = "seq";
+    public static final String COLUMN_PET_ID = "pet_id";
+    public static final String COLUMN_OPERATION = "op";
+
+    /* Columns of TABLE_STATE */
+    public static final String COLUMN_EPOCH = "epoch";
+    public static final String COLUMN_COMPACTED_THROUGH = "compacted_through";
+
+    static final String SQL_CREATE_CHANGES =
+            "CREATE TABLE " + TABLE_CHANGES + " (" +
+                    COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    COLUMN_PET_ID + " INTEGER NOT NULL, " +
+                    COLUMN_OPERATION + " INTEGER NOT NULL)";
+
+    /* Finds the older entries of a pet when compacting */
+    static final String SQL_CREATE_CHANGES_INDEX =
+            "CREATE INDEX pet_changes_by_pet ON " + TABLE_CHANGES + " (" + COLUMN_PET_ID + ", " +
+                    COLUMN_SEQUENCE + ")";
+
+    static final String SQL_CREATE_STATE =
+            "CREATE TABLE " + TABLE_STATE + " (" +
+                    PetEntry._ID + " INTEGER PRIMARY KEY CHECK (" + PetEntry._ID + " = 0), " +
+                    COLUMN_EPOCH + " TEXT NOT NULL, " +
+                    COLUMN_COMPACTED_THROUGH + " INTEGER NOT NULL)";
+
+    private static final String SQL_NEW_EPOCH = "lower(hex(randomblob(8)))";
+
+    static final String SQL_INIT_STATE =
+            "INSERT INTO " + TABLE_STATE + " VALUES (0, " + SQL_NEW_EPOCH + ", 0)";
+
+    private static String logChange( String petId, int operation ) {
+        return "INSERT INTO " + TABLE_CHANGES + " (" + COLUMN_PET_ID + ", " + COLUMN_OPERATION +
+                ") VALUES (" + petId + ", " + operation + "); ";
+    }
+
+    /* The physical deletes of the purge are not logged, the tombstones were */
+    static final String[] SQL_CREATE_PET_TRIGGERS = {
+            "CREATE TRIGGER pet_changes_after_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                    " BEGIN " + logChange("new." + PetEntry._ID, ChangeEntry.OP_UPSERT) + "END",
+            "CREATE TRIGGER pet_changes_after_update AFTER UPDATE ON " + PetEntry.TABLE_NAME +
+                    " BEGIN " + logChange("new." + PetEntry._ID, ChangeEntry.OP_UPSERT) + "END"
+    };
+    static final String[] SQL_CREATE_DELETE_TRIGGERS = {
+            "CREATE TRIGGER pet_changes_after_tombstone AFTER INSERT ON " +
+                    PetTombstones.TABLE_TOMBSTONES + " BEGIN " +
+                    logChange("new." + PetEntry._ID, ChangeEntry.OP_DELETE) + "END",
+            "CREATE TRIGGER pet_changes_after_delete_through AFTER UPDATE OF " +
+                    PetTombstones.COLUMN_DELETED_THROUGH + " ON " +
+                    PetTombstones.TABLE_PURGE_STATE + " WHEN new." +
+                    PetTombstones.COLUMN_DELETED_THROUGH + " > old." +
+                    PetTombstones.COLUMN_DELETED_THROUGH + " BEGIN " +
+                    logChange("new." + PetTombstones.COLUMN_DELETED_THROUGH,
+                            ChangeEntry.OP_DELETE_THROUGH) + "END"
+    };
+
+    /* Entries of a pet superseded by a later entry of the same pet, logged after the last
+     * compaction. Parameters: last compacted sequence, highest sequence, highest sequence. */
+    private static final String SQL_COMPACT_PETS =
+            "DELETE FROM " + TABLE_CHANGES + " WHERE " + COLUMN_OPERATION + " != " +
+                    ChangeEntry.OP_DELETE_THROUGH + " AND " + COLUMN_PET_ID + " IN (SELECT " +
+                    COLUMN_PET_ID + " FROM " + TABLE_CHANGES + " WHERE " + COLUMN_SEQUENCE +
+                    " > ? AND " + COLUMN_OPERATION + " != " + ChangeEntry.OP_DELETE_THROUGH +
+                    ") AND " + COLUMN_SEQUENCE + " < (SELECT MAX(" + COLUMN_SEQUENCE + ") FROM " +
+                    TABLE_CHANGES + " AS later WHERE later." + COLUMN_PET_ID + " = " +
+                    TABLE_CHANGES + "." + COLUMN_PET_ID + " AND later." + COLUMN_OPERATION +
+                    " != " + ChangeEntry.OP_DELETE_THROUGH + " AND later." + COLUMN_SEQUENCE +
+                    " <= ?) AND " + COLUMN_SEQUENCE + " <= ?";
+
+    /* Everything logged before the last mark that the mark covers. Parameters: sequence of
+     * the mark, the mark. */
+    private static final String SQL_COMPACT_THROUGH_MARK =
+            "DELETE FROM " + TABLE_CHANGES + " WHERE " + COLUMN_SEQUENCE + " < ? AND (" +
+                    COLUMN_OPERATION + " = " + ChangeEntry.OP_DELETE_THROUGH + " OR " +
+                    COLUMN_PET_ID + " <= ?)";
+
+    private PetChangeLog() {}
+
+    /* Create the log, its epoch and the triggers that fill it */
+    static void create( SQLiteDatabase db ) {
+        db.execSQL(SQL_CREATE_CHANGES);
+        db.execSQL(SQL_CREATE_CHANGES_INDEX);
+        db.execSQL(SQL_CREATE_STATE);
+        db.execSQL(SQL_INIT_STATE);
+        createPetTriggers(db);
+        for (String trigger : SQL_CREATE_DELETE_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /* The triggers on the pets table itself, which go with it when it is rebuilt */
+    static void createPetTriggers( SQLiteDatabase db ) {
+        for (String trigger : SQL_CREATE_PET_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /**
+     * Returns the epoch of the log. Sequence numbers are only comparable within one epoch.
+     */
+    public static String epoch( SQLiteDatabase db ) {
+        return DatabaseUtils.stringForQuery(db,
+                "SELECT " + COLUMN_EPOCH + " FROM " + TABLE_STATE, null);
+    }
+
+    /**
+     * Returns the sequence number of the last change logged, 0 if there is none.
+     */
+    public static long lastSequence( SQLiteDatabase db ) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(" + COLUMN_SEQUENCE + "), 0) FROM " + TABLE_CHANGES, null);
+    }
+
+    /**
+     * Start a new epoch, e.g. after a restore: the sequence numbers replicas kept no longer
+     * match the log, so they have to sync from the start.
+     */
+    public static void renewEpoch( SQLiteDatabase db ) {
+        db.execSQL("UPDATE " + TABLE_STATE + " SET " + COLUMN_EPOCH + " = " + SQL_NEW_EPOCH);
+    }
+
+    /**
+     * Drop the entries made useless by a later one: older entries of the same pet, and entries
+     * under a later deleted-through mark. A replica reading from any sequence still ends up
+     * with the same pets. Only the entries logged since the last compaction are looked at, so
+     * it costs as much as the changes since then. Returns the number of entries dropped.
+     */
+    public static int compact( SQLiteDatabase db ) {
+        db.beginTransaction( );
+        try {
+            long compactedThrough = DatabaseUtils.longForQuery(db,
+                    "SELECT " + COLUMN_COMPACTED_THROUGH + " FROM " + TABLE_STATE, null);
+            long last = lastSequence(db);
+            if (last <= compactedThrough) {
+                return 0;
+            }
+            int dropped = run(db, SQL_COMPACT_PETS, compactedThrough, last, last);
+
+            long markSequence = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" +
+                    COLUMN_SEQUENCE + "), 0) FROM " + TABLE_CHANGES + " WHERE " +
+                    COLUMN_OPERATION + " = " + ChangeEntry.OP_DELETE_THROUGH + " AND " +
+                    COLUMN_SEQUENCE + " > " + compactedThrough, null);
+            if (markSequence > 0) {
+                long mark = DatabaseUtils.longForQuery(db, "SELECT " + COLUMN_PET_ID + " FROM " +
+                        TABLE_CHANGES + " WHERE " + COLUMN_SEQUENCE + " = " + markSequence, null);
+                dropped += run(db, SQL_COMPACT_THROUGH_MARK, markSequence, mark);
+            }
+
+            db.execSQL("UPDATE " + TABLE_STATE + " SET " + COLUMN_COMPACTED_THROUGH + " = " +
+                    last);
+            db.setTransactionSuccessful( );
+            return dropped;
+        } finally {
+            db.endTransaction( );
+        }
+    }
+
+    private static int run( SQLiteDatabase db, String sql, long... args ) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                statement.bindLong(i + 1, args[i]);
+            }
+            return statement.executeUpdateDelete( );
+        } finally {
+            statement.close( );
+        }
+    }
+
+    /**
+     * Logs every visible pet once, for a database that had pets before the log existed.
+     */
+    static Backfill backfill() {
+        return new Backfill("change_log_seed", 500) {
+            @Override
+            public long endKey( SQLiteDatabase db ) {
+                return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + PetEntry._ID +
+                        "), 0) FROM " + PetEntry.TABLE_NAME, null);
+            }
+
+            @Override
+            public long runChunk( SQLiteDatabase db, long afterKey, long endKey, int limit ) {
+                long chunkEnd = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" +
+                        PetEntry._ID + "), ?) FROM (SELECT " + PetEntry._ID + " FROM " +
+                        PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " > ? AND " +
+                        PetEntry._ID + " <= ? ORDER BY " + PetEntry._ID + " LIMIT ?)",
+                        new String[]{String.valueOf(endKey), String.valueOf(afterKey),
+                                String.valueOf(endKey), String.valueOf(limit)});
+                // Pets changed since the upgrade are logged already, once more does no harm
+                db.execSQL("INSERT INTO " + TABLE_CHANGES + " (" + COLUMN_PET_ID + ", " +
+                        COLUMN_OPERATION + ") SELECT " + PetEntry._ID + ", " +
+                        ChangeEntry.OP_UPSERT + " FROM " + PetEntry.TABLE_NAME + " WHERE " +
+                        PetEntry._ID + " > ? AND " + PetEntry._ID + " <= ? AND " +
+                        PetTombstones.SQL_VISIBLE,
+                        new Object[]{afterKey, chunkEnd});
+                return chunkEnd;
+            }
+        };
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Moves {@link Pet}s in and out of SQLite without boxing.
+ * <p>
+ * Writes bind fields straight to the precompiled {@link #SQL_INSERT} and {@link #SQL_UPDATE}
+ * statements, with the breed as its id from {@link PetBreeds#intern}. Reads go through a
+ * {@link Reader}, which resolves the column indexes once per cursor.
+ */
+public final class PetCodec {
+
+    private PetCodec() {}
+
+    /* Parameters: name, breed id, gender, weight */
+    public static final String SQL_INSERT =
+            "INSERT INTO " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    PetBreeds.COLUMN_BREED_ID + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    /* Parameters: name, breed id, gender, weight, _id */
+    public static final String SQL_UPDATE =
+            "UPDATE " + PetEntry.TABLE_NAME + " SET " +
+                    PetEntry.COLUMN_PET_NAME + " = ?, " +
+                    PetBreeds.COLUMN_BREED_ID + " = ?, " +
+                    PetEntry.COLUMN_PET_GENDER + " = ?, " +
+                    PetEntry.COLUMN_PET_WEIGHT + " = ? WHERE " +
+                    PetEntry._ID + " = ? AND " + PetTombstones.SQL_VISIBLE;
+
+    /**
+     * Same rules as the provider applies to ContentValues: a name, a breed (the column is
+     * NOT NULL, it may be empty) and a positive weight.
+     */
+    public static boolean isValid( Pet pet ) {
+        return pet != null
+                && pet.name != null && !pet.name.isEmpty( )
+                && pet.breed != null
+                && pet.weight > 0;
+    }
+
+    /**
+     * Bind a pet to {@link #SQL_INSERT}, with the id of its breed.
+     */
+    public static void bindInsert( SQLiteStatement statement, Pet pet, long breedId ) {
+        statement.clearBindings( );
+        bindFields(statement, pet, breedId);
+    }
+
+    /**
+     * Bind a pet to {@link #SQL_UPDATE}, with the id of its breed. The pet must have an id.
+     */
+    public static void bindUpdate( SQLiteStatement statement, Pet pet, long breedId ) {
+        statement.clearBindings( );
+        bindFields(statement, pet, breedId);
+        statement.bindLong(5, pet.id);
+    }
+
+    private static void bindFields( SQLiteStatement statement, Pet pet, long breedId ) {
+        statement.bindString(1, pet.name);
+        statement.bindLong(2, breedId);
+        statement.bindLong(3, pet.gender);
+        statement.bindLong(4, pet.weight);
+    }
+
+    /**
+     * For callers that must go through a ContentResolver, e.g. from another process.
+     */
+    public static ContentValues toContentValues( Pet pet ) {
+        ContentValues values = new ContentValues(4);
+        values.put(PetEntry.COLUMN_PET_NAME, pet.name);
+        values.put(PetEntry.COLUMN_PET_BREED, pet.breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, pet.gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, pet.weight);
+        return values;
+    }
+
+    /**
+     * Reads pets from a cursor. Columns missing from the cursor's projection are read as
+     * null or 0.
+     */
+    public static final class Reader {
+
+        private final Cursor cursor;
+        private final int idColumn;
+        private final int nameColumn;
+        private final int breedColumn;
+        private final int genderColumn;
+        private final int weightColumn;
+
+        public Reader( Cursor cursor ) {
+            this.cursor = cursor;
+            idColumn = cursor.getColumnIndex(PetEntry._ID);
+            nameColumn = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+            breedColumn = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+            genderColumn = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
+            weightColumn = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+        }
+
+        /**
+         * Read the pet at the current position of the cursor.
+         */
+        public Pet read() {
+            return new Pet(
+                    idColumn < 0 ? Pet.NO_ID : cursor.getLong(idColumn),
+                    nameColumn < 0 ? null : cursor.getString(nameColumn),
+                    breedColumn < 0 ? null : cursor.getString(breedColumn),
+                    genderColumn < 0 ? PetEntry.GENDER_UNKNOWN : cursor.getInt(genderColumn),
+                    weightColumn < 0 ? 0 : cursor.getInt(weightColumn));
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.android.pets.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -21,6 +22,131 @@ public final class PetContract {
     /* Path Constant */
     public static final String PATH_PETS = "pets";
     public static final String PATH_PETS_ID = "pets/#";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_PETS_SEARCH = "pets/search/*";
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_PETS_STATS = "pets/stats";
+    public static final String PATH_BREEDS = "breeds";
+    public static final String PATH_PETS_STATS_BREEDS = "pets/stats/breeds";
+    public static final String PATH_EXPORT = "export";
+    public static final String PATH_PETS_EXPORT = "pets/export";
+    public static final String PATH_PHOTO = "photo";
+    public static final String PATH_PETS_PHOTO = "pets/#/photo";
+    public static final String PATH_THUMBNAIL = "thumbnail";
+    public static final String PATH_PETS_THUMBNAIL = "pets/#/thumbnail";
+    public static final String PATH_SHELTERS = "shelters";
+    public static final String PATH_SHELTERS_PETS = "shelters/pets";
+    public static final String PATH_COUNT = "count";
+    public static final String PATH_SHELTERS_COUNT = "shelters/count";
+    public static final String PATH_SHELTER_PETS = "shelters/*/pets";
+    public static final String PATH_SHELTER_PETS_ID = "shelters/*/pets/#";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_PETS_CHANGES = "pets/changes";
+
+    /* Query parameters for keyset pagination on PetEntry.CONTENT_URI */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+    /* Sort key value of the last row of the previous page, with QUERY_PARAMETER_SORT */
+    public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+
+    /* Last sequence number already applied, on ChangeEntry.CONTENT_URI */
+    public static final String QUERY_PARAMETER_SINCE = "since";
+
+    /* Catalog filters on PetEntry.CONTENT_URI, see CatalogFilter */
+    public static final String QUERY_PARAMETER_GENDER = "gender";
+    public static final String QUERY_PARAMETER_MIN_WEIGHT = "min_weight";
+    public static final String QUERY_PARAMETER_MAX_WEIGHT = "max_weight";
+    public static final String QUERY_PARAMETER_BREED = "breed";
+    public static final String QUERY_PARAMETER_SORT = "sort";
+
+    /* Values of QUERY_PARAMETER_SORT. Without it pets are in _id order. */
+    public static final String SORT_NAME = "name";
+    public static final String SORT_WEIGHT = "weight";
+    public static final String SORT_NEWEST = "newest";
+
+    /* File format of PetEntry.CONTENT_EXPORT_URI and of imports, FORMAT_CSV by default */
+    public static final String QUERY_PARAMETER_FORMAT = "format";
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_JSON = "json";
+
+    /* Provider methods for ContentResolver.call() */
+    public static final String METHOD_GET_CACHE_STATS = "get_cache_stats";
+    public static final String METHOD_GET_METRICS = "get_metrics";
+    public static final String METHOD_RESET_METRICS = "reset_metrics";
+
+    /**
+     * Import pets from the file at the URI given as arg, in the format of
+     * {@link #KEY_FORMAT} (FORMAT_CSV by default), committing every {@link #KEY_CHUNK_SIZE}
+     * pets. Returns {@link #KEY_IMPORTED} and {@link #KEY_REJECTED}. Progress is reported to
+     * the {@link #KEY_PROGRESS_RECEIVER} extra, if given.
+     */
+    public static final String METHOD_IMPORT_PETS = "import_pets";
+
+    /**
+     * Take a hot backup of the database while it keeps serving queries. Only the pages changed
+     * since the backup before last are written. Returns {@link #KEY_PAGES_WRITTEN} and
+     * {@link #KEY_PAGES_TOTAL}.
+     */
+    public static final String METHOD_BACKUP = "backup";
+
+    /**
+     * Replace the database by the last backup, without restarting the process. Observers of
+     * the pets are notified.
+     */
+    public static final String METHOD_RESTORE = "restore";
+
+    /**
+     * Returns the {@link #KEY_EPOCH} of the change log and its {@link #KEY_LAST_SEQUENCE}, see
+     * {@link ChangeEntry}.
+     */
+    public static final String METHOD_GET_CHANGE_LOG = "get_change_log";
+
+    /**
+     * Same as ContentResolver.bulkInsert() into the pets URI given as arg, for the
+     * ContentValues of {@link #KEY_VALUES}. Returns {@link #KEY_INSERTED} and
+     * {@link #KEY_REJECTED_POSITIONS}, so the caller knows which of its rows were dropped.
+     */
+    public static final String METHOD_BULK_INSERT = "bulk_insert";
+
+    /* Keys of the Bundle returned by METHOD_GET_CACHE_STATS */
+    public static final String KEY_CACHE_HITS = "hits";
+    public static final String KEY_CACHE_MISSES = "misses";
+    public static final String KEY_CACHE_SIZE = "size";
+    public static final String KEY_CACHE_MAX_SIZE = "max_size";
+
+    /* Key of the Bundle returned by METHOD_GET_METRICS: a JSON document with the latency
+     * histograms per operation and URI, the last 32 calls over the slow call threshold in
+     * slow_calls, and the cold start timings */
+    public static final String KEY_METRICS = "metrics";
+
+    /* Keys of the extras and of the result of METHOD_IMPORT_PETS */
+    public static final String KEY_FORMAT = "format";
+    public static final String KEY_CHUNK_SIZE = "chunk_size";
+    public static final String KEY_IMPORTED = "imported";
+    public static final String KEY_REJECTED = "rejected";
+
+    /* Progress of an import or an export: a ResultReceiver, in the extras of
+     * METHOD_IMPORT_PETS or the options of ContentResolver.openTypedAssetFileDescriptor() on
+     * the export URI. After every chunk it is sent RESULT_PROGRESS with the number of pets
+     * processed so far in KEY_PETS_PROCESSED. */
+    public static final String KEY_PROGRESS_RECEIVER = "progress_receiver";
+    public static final String KEY_PETS_PROCESSED = "pets_processed";
+    public static final int RESULT_PROGRESS = 1;
+
+    /* Keys of the result of METHOD_BACKUP */
+    public static final String KEY_PAGES_WRITTEN = "pages_written";
+    public static final String KEY_PAGES_TOTAL = "pages_total";
+
+    /* Keys of the result of METHOD_GET_CHANGE_LOG */
+    public static final String KEY_EPOCH = "epoch";
+    public static final String KEY_LAST_SEQUENCE = "last_sequence";
+
+    /* Keys of the extras and of the result of METHOD_BULK_INSERT. The rejected positions are
+     * an int array of the positions in KEY_VALUES of the rows not inserted, in order. */
+    public static final String KEY_VALUES = "values";
+    public static final String KEY_INSERTED = "inserted";
+    public static final String KEY_REJECTED_POSITIONS = "rejected_positions";
 
 
     public static class PetEntry implements BaseColumns {
@@ -37,9 +163,22 @@ public final class PetContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
 
+        /* MIME types of the export files */
+        public static final String CSV_TYPE = "text/csv";
+        public static final String JSON_TYPE = "application/json";
+
+        /* MIME type of the photos and thumbnails */
+        public static final String PHOTO_TYPE = "image/jpeg";
+
+        /* Thumbnails are scaled down so that their longer side is at most this many pixels */
+        public static final int THUMBNAIL_SIZE = 256;
+
         /* Table Constant */
         public static final String TABLE_NAME = "pets";
 
+        /* Full-text index over name and breed, kept in sync with the pets table by triggers */
+        public static final String FTS_TABLE_NAME = "pets_fts";
+
         /* Columns Constants */
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PET_NAME = "name";
@@ -47,6 +186,13 @@ public final class PetContract {
         public static final String COLUMN_PET_GENDER = "gender";
         public static final String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Version of the pet's photo, 0 when it has none. It changes every time a photo is
+         * saved, so it can key caches of the image. The image itself is a file, see
+         * {@link #buildPhotoUri} and {@link #buildThumbnailUri}.
+         */
+        public static final String COLUMN_PET_PHOTO = "photo";
+
         /* Gender Constants */
         public static final int GENDER_UNKNOWN = 0;
         public static final int GENDER_MALE = 1;
@@ -54,5 +200,234 @@ public final class PetContract {
 
         /* Content Uri */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
+
+        /**
+         * Uri de busca por nome e raça. Append the search term as the last path segment,
+         * e.g. content://com.example.android.pets/pets/search/lab. Each word of the term
+         * matches as a prefix, and pets whose name matches come first.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        /**
+         * Every pet as one file, streamed while it is read: open it with
+         * {@link ContentResolver#openInputStream}, or with
+         * {@link ContentResolver#openTypedAssetFileDescriptor} and a
+         * {@link #KEY_PROGRESS_RECEIVER} option to be told of the progress. See
+         * {@link #buildExportUri}.
+         */
+        public static final Uri CONTENT_EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * Returns the URI of one page of pets, ordered by _id: at most limit pets whose _id is
+         * bigger than afterId. Use 0 as afterId for the first page and the _id of the last row
+         * received for the next one, so every page is a single index seek.
+         */
+        public static Uri buildPageUri( long afterId, int limit ) {
+            return CONTENT_URI.buildUpon( )
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build( );
+        }
+
+        /**
+         * Returns the search URI for the given term.
+         */
+        public static Uri buildSearchUri( String term ) {
+            return Uri.withAppendedPath(CONTENT_SEARCH_URI, term);
+        }
+
+        /**
+         * Returns the URI of the full size photo of a pet. Open it for reading with
+         * {@link ContentResolver#openInputStream}, or write a JPEG image to it with
+         * {@link ContentResolver#openOutputStream} to replace the photo and its thumbnail.
+         * Deleting it removes the photo.
+         */
+        public static Uri buildPhotoUri( long id ) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon( )
+                    .appendPath(PATH_PHOTO)
+                    .build( );
+        }
+
+        /**
+         * Returns the URI of the thumbnail of a pet's photo, a JPEG of at most
+         * {@link #THUMBNAIL_SIZE} pixels made when the photo was saved. Read only.
+         */
+        public static Uri buildThumbnailUri( long id ) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon( )
+                    .appendPath(PATH_THUMBNAIL)
+                    .build( );
+        }
+
+        /**
+         * Returns the export URI for the given format, {@link #FORMAT_CSV} or
+         * {@link #FORMAT_JSON}.
+         */
+        public static Uri buildExportUri( String format ) {
+            return CONTENT_EXPORT_URI.buildUpon( )
+                    .appendQueryParameter(QUERY_PARAMETER_FORMAT, format)
+                    .build( );
+        }
+    }
+
+    /**
+     * Shelter dashboard figures. They are read from summary tables that triggers keep up to
+     * date on every write, so reading them costs the same whatever the number of pets.
+     */
+    public static class StatsEntry {
+
+        /**
+         * One row with the totals: {@link #COLUMN_TOTAL}, the counts per gender,
+         * {@link #COLUMN_AVERAGE_WEIGHT} and {@link #COLUMN_MAX_WEIGHT}.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * One row per breed, with {@link #COLUMN_BREED} and {@link #COLUMN_COUNT}, most common
+         * breeds first unless another sort order is given.
+         */
+        public static final Uri CONTENT_BREEDS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_BREEDS);
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS_STATS;
+        public static final String CONTENT_BREEDS_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS_STATS_BREEDS;
+
+        /* Summary tables */
+        public static final String TABLE_GENDER_STATS = "pet_gender_stats";
+        public static final String TABLE_BREED_STATS = "pet_breed_stats";
+
+        /* Columns of CONTENT_URI */
+        public static final String COLUMN_TOTAL = "total";
+        public static final String COLUMN_COUNT_UNKNOWN = "count_unknown";
+        public static final String COLUMN_COUNT_MALE = "count_male";
+        public static final String COLUMN_COUNT_FEMALE = "count_female";
+        public static final String COLUMN_AVERAGE_WEIGHT = "average_weight";
+        public static final String COLUMN_MAX_WEIGHT = "max_weight";
+
+        /* Columns of CONTENT_BREEDS_URI, and of the summary tables */
+        public static final String COLUMN_BREED = "breed";
+        public static final String COLUMN_GENDER = "gender";
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_WEIGHT_SUM = "weight_sum";
+    }
+
+    /**
+     * Shelters of the region. Each shelter is its own database file with the pets table, so a
+     * shelter is written without locking the others. The URIs of {@link #buildPetsUri} touch
+     * one shelter only and accept everything {@link PetEntry#CONTENT_URI} does, catalog query
+     * parameters included. The main shelter is pets.db: its scoped URIs are the same as the
+     * {@link PetEntry} ones, and notified as such.
+     */
+    public static class ShelterEntry implements BaseColumns {
+
+        /* The shelter kept in pets.db, which PetEntry.CONTENT_URI serves */
+        public static final String MAIN_SHELTER = "main";
+
+        /**
+         * One row per shelter, with {@link #_ID} and {@link #COLUMN_SHELTER}, main shelter
+         * first. A shelter exists once a pet was inserted into it.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SHELTERS);
+
+        /**
+         * The pets of every shelter, queried in parallel and merged, with a
+         * {@link #COLUMN_SHELTER} column. Takes the catalog filters, sort and limit, but not
+         * after_id: ids are only unique within a shelter. _id and the sort column are added to
+         * the projection when missing, the merge needs them.
+         */
+        public static final Uri CONTENT_PETS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_PETS);
+
+        /**
+         * One row per shelter with {@link #COLUMN_SHELTER} and {@link #COLUMN_COUNT}, the
+         * number of its pets matching the catalog filters given as query parameters. Counted
+         * in parallel.
+         */
+        public static final Uri CONTENT_COUNT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_COUNT);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SHELTERS;
+        public static final String CONTENT_COUNT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SHELTERS_COUNT;
+
+        /* Columns of the shelter URIs */
+        public static final String COLUMN_SHELTER = "shelter";
+        public static final String COLUMN_COUNT = "count";
+
+        /**
+         * Returns true if name can be used for a shelter: 1 to 32 lower case letters, digits
+         * and underscores, other than "pets" and "count" which are taken by the region URIs.
+         */
+        public static boolean isValidName( String name ) {
+            return name != null && name.matches("[a-z0-9_]{1,32}") &&
+                    !PATH_PETS.equals(name) && !PATH_COUNT.equals(name);
+        }
+
+        /**
+         * Returns the URI of the pets of one shelter. Inserting into it creates the shelter.
+         */
+        public static Uri buildPetsUri( String shelter ) {
+            if (!isValidName(shelter)) {
+                throw new IllegalArgumentException("Invalid shelter name " + shelter);
+            }
+            return CONTENT_URI.buildUpon( )
+                    .appendPath(shelter)
+                    .appendPath(PATH_PETS)
+                    .build( );
+        }
+
+        /**
+         * Returns the URI of one pet of a shelter.
+         */
+        public static Uri buildPetUri( String shelter, long id ) {
+            return ContentUris.withAppendedId(buildPetsUri(shelter), id);
+        }
+    }
+
+    /**
+     * Changes to the pets of the main shelter, for replicas. Each change has a sequence number
+     * that only goes up; a replica keeps the last one it applied and asks for the changes after
+     * it with {@link #buildChangesUri}, so a sync costs as much as the changes since the last
+     * one, not as the whole table.
+     * <p>
+     * A pet changed several times may come only once, with its current values. The sequence
+     * numbers belong to an epoch, {@link #KEY_EPOCH} of {@link #METHOD_GET_CHANGE_LOG}: when it
+     * changes, e.g. after a restore, the replica has to start over from 0.
+     */
+    public static class ChangeEntry {
+
+        /**
+         * The changes in sequence order, with {@link #COLUMN_SEQUENCE}, {@link #COLUMN_OPERATION}
+         * and the pet: its _id and, for {@link #OP_UPSERT}, its current columns.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI, PATH_CHANGES);
+
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS_CHANGES;
+
+        /* Columns of CONTENT_URI, besides those of the pet */
+        public static final String COLUMN_SEQUENCE = "seq";
+        public static final String COLUMN_OPERATION = "op";
+
+        /* Values of COLUMN_OPERATION */
+
+        /* The pet was inserted or updated, its columns hold its current values */
+        public static final int OP_UPSERT = 1;
+
+        /* The pet was deleted */
+        public static final int OP_DELETE = 2;
+
+        /* Every pet whose _id is at most the _id of the row was deleted */
+        public static final int OP_DELETE_THROUGH = 3;
+
+        /**
+         * Returns the URI of at most limit changes after the given sequence number. Use 0 as
+         * since for the first sync, and the sequence of the last row received for the next.
+         */
+        public static Uri buildChangesUri( long since, int limit ) {
+            return CONTENT_URI.buildUpon( )
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, String.valueOf(since))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build( );
+        }
     }
 }
@@ -1,10 +1,17 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+
+import com.example.android.pets.BuildConfig;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
 
 /**
  * Created by phartmann on 23/02/2018.
@@ -13,33 +20,460 @@ import com.example.android.pets.data.PetContract.PetEntry;
 public class PetDbHelper extends SQLiteOpenHelper {
 
     /* DB Constants */
-    public static final int DATABASE_VERSION = 4;
+    public static final int DATABASE_VERSION = 12;
     public static final String DATABASE_NAME = "pets.db";
     public static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + PetEntry.TABLE_NAME + " (" +
                     PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
-                    PetEntry.COLUMN_PET_BREED + " TEXT NOT NULL, " +
+                    PetBreeds.COLUMN_BREED_ID + " INTEGER NOT NULL REFERENCES " +
+                    PetBreeds.TABLE_BREEDS + "(" + PetEntry._ID + "), " +
                     PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL DEFAULT 0, " +
-                    PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0" + ")";
+                    PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, " +
+                    PetEntry.COLUMN_PET_PHOTO + " INTEGER NOT NULL DEFAULT 0" + ")";
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + PetEntry.TABLE_NAME;
 
+    /* Covering indexes for the catalog filters and sorts. Each holds every column the catalog
+     * reads (_id is implicit), so those queries never touch the table itself. Newest-first
+     * order walks the table backwards by _id and needs no index. Gender and the photo
+     * version cost next to no space: SQLite stores 0 and 1 in the record header alone.
+     * The catalog reads every column, so a tapped row can open the editor without a query;
+     * the breed is an integer id, its name comes from the small breeds table. */
+    static final String[] SQL_CREATE_CATALOG_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS pets_by_name ON " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetBreeds.COLUMN_BREED_ID + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_PHOTO + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ")",
+            "CREATE INDEX IF NOT EXISTS pets_by_gender_name ON " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetBreeds.COLUMN_BREED_ID + ", " + PetEntry.COLUMN_PET_WEIGHT + ", " +
+                    PetEntry.COLUMN_PET_PHOTO + ")",
+            "CREATE INDEX IF NOT EXISTS pets_by_weight ON " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetBreeds.COLUMN_BREED_ID + ", " + PetEntry.COLUMN_PET_PHOTO + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ")",
+            "CREATE INDEX IF NOT EXISTS pets_by_breed ON " + PetEntry.TABLE_NAME + " (" +
+                    PetBreeds.COLUMN_BREED_ID + ", " + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_PHOTO + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ")"
+    };
+
+    /* Names of the catalog indexes, to drop them when their columns change */
+    static final String[] CATALOG_INDEX_NAMES = {
+            "pets_by_name", "pets_by_gender_name", "pets_by_weight", "pets_by_breed"};
+
+    /* Summary tables behind the stats URIs: pets and weight sum per gender, pets per breed */
+    private static final String SQL_CREATE_GENDER_STATS =
+            "CREATE TABLE " + StatsEntry.TABLE_GENDER_STATS + " (" +
+                    StatsEntry.COLUMN_GENDER + " INTEGER PRIMARY KEY, " +
+                    StatsEntry.COLUMN_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+                    StatsEntry.COLUMN_WEIGHT_SUM + " INTEGER NOT NULL DEFAULT 0)";
+    private static final String SQL_CREATE_BREED_STATS =
+            "CREATE TABLE " + StatsEntry.TABLE_BREED_STATS + " (" +
+                    StatsEntry.COLUMN_BREED + " TEXT PRIMARY KEY, " +
+                    StatsEntry.COLUMN_COUNT + " INTEGER NOT NULL DEFAULT 0)";
+    private static final String SQL_FILL_GENDER_STATS =
+            "INSERT INTO " + StatsEntry.TABLE_GENDER_STATS + " SELECT " +
+                    PetEntry.COLUMN_PET_GENDER + ", COUNT(*), TOTAL(" + PetEntry.COLUMN_PET_WEIGHT +
+                    ") FROM " + PetEntry.TABLE_NAME + " GROUP BY " + PetEntry.COLUMN_PET_GENDER;
+    private static final String SQL_FILL_BREED_STATS =
+            "INSERT INTO " + StatsEntry.TABLE_BREED_STATS + " SELECT " +
+                    PetEntry.COLUMN_PET_BREED + ", COUNT(*) FROM " + PetBreeds.VIEW_PETS +
+                    " GROUP BY " + PetEntry.COLUMN_PET_BREED;
+
+    /* Trigger bodies that add a new row to the summaries, or take an old one out. The
+     * summaries are by breed name, looked up by breed id. */
+    private static final String SQL_STATS_ADD_NEW = statsAdd(
+            "new." + PetEntry.COLUMN_PET_GENDER,
+            "new." + PetEntry.COLUMN_PET_WEIGHT,
+            PetBreeds.nameOf("new." + PetBreeds.COLUMN_BREED_ID));
+    private static final String SQL_STATS_REMOVE_OLD = statsRemove(
+            "old." + PetEntry.COLUMN_PET_GENDER,
+            "old." + PetEntry.COLUMN_PET_WEIGHT,
+            PetBreeds.nameOf("old." + PetBreeds.COLUMN_BREED_ID));
+
+    private static String statsAdd( String gender, String weight, String breed ) {
+        return "INSERT OR IGNORE INTO " + StatsEntry.TABLE_GENDER_STATS + " (" +
+                StatsEntry.COLUMN_GENDER + ") VALUES (" + gender + "); " +
+                "UPDATE " + StatsEntry.TABLE_GENDER_STATS + " SET " +
+                StatsEntry.COLUMN_COUNT + " = " + StatsEntry.COLUMN_COUNT + " + 1, " +
+                StatsEntry.COLUMN_WEIGHT_SUM + " = " + StatsEntry.COLUMN_WEIGHT_SUM +
+                " + " + weight + " WHERE " + StatsEntry.COLUMN_GENDER + " = " + gender + "; " +
+                "INSERT OR IGNORE INTO " + StatsEntry.TABLE_BREED_STATS + " (" +
+                StatsEntry.COLUMN_BREED + ") VALUES (" + breed + "); " +
+                "UPDATE " + StatsEntry.TABLE_BREED_STATS + " SET " +
+                StatsEntry.COLUMN_COUNT + " = " + StatsEntry.COLUMN_COUNT + " + 1 WHERE " +
+                StatsEntry.COLUMN_BREED + " = " + breed + "; ";
+    }
+
+    private static String statsRemove( String gender, String weight, String breed ) {
+        return "UPDATE " + StatsEntry.TABLE_GENDER_STATS + " SET " +
+                StatsEntry.COLUMN_COUNT + " = " + StatsEntry.COLUMN_COUNT + " - 1, " +
+                StatsEntry.COLUMN_WEIGHT_SUM + " = " + StatsEntry.COLUMN_WEIGHT_SUM +
+                " - " + weight + " WHERE " + StatsEntry.COLUMN_GENDER + " = " + gender + "; " +
+                "UPDATE " + StatsEntry.TABLE_BREED_STATS + " SET " +
+                StatsEntry.COLUMN_COUNT + " = " + StatsEntry.COLUMN_COUNT + " - 1 WHERE " +
+                StatsEntry.COLUMN_BREED + " = " + breed + "; " +
+                "DELETE FROM " + StatsEntry.TABLE_BREED_STATS + " WHERE " +
+                StatsEntry.COLUMN_BREED + " = " + breed + " AND " +
+                StatsEntry.COLUMN_COUNT + " <= 0; ";
+    }
+
+    /* Column of the tombstoned pet, for the tombstone trigger */
+    private static String tombstonedPet( String column ) {
+        return "(SELECT " + column + " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID +
+                " = new." + PetEntry._ID + ")";
+    }
+
+    private static final String[] SQL_CREATE_STATS_TRIGGERS = {
+            "CREATE TRIGGER pets_stats_after_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                    " BEGIN " + SQL_STATS_ADD_NEW + "END",
+            "CREATE TRIGGER pets_stats_after_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                    " BEGIN " + SQL_STATS_REMOVE_OLD + "END",
+            "CREATE TRIGGER pets_stats_after_update AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", " +
+                    PetBreeds.COLUMN_BREED_ID + " ON " + PetEntry.TABLE_NAME +
+                    " BEGIN " + SQL_STATS_REMOVE_OLD + SQL_STATS_ADD_NEW + "END"
+    };
+
+    /* Soft deletes: a tombstoned pet leaves the summaries when it is tombstoned, so the purge
+     * that removes it later must not count it again. */
+    private static final String[] SQL_CREATE_TOMBSTONE_TRIGGERS = {
+            "DROP TRIGGER IF EXISTS pets_stats_after_delete",
+            "CREATE TRIGGER pets_stats_after_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                    " WHEN old." + PetEntry._ID + " > " + PetTombstones.SQL_DELETED_THROUGH +
+                    " AND NOT EXISTS (SELECT 1 FROM " + PetTombstones.TABLE_TOMBSTONES +
+                    " WHERE " + PetEntry._ID + " = old." + PetEntry._ID + ")" +
+                    " BEGIN " + SQL_STATS_REMOVE_OLD + "END",
+            "CREATE TRIGGER pet_tombstones_after_insert AFTER INSERT ON " +
+                    PetTombstones.TABLE_TOMBSTONES + " BEGIN " +
+                    statsRemove(tombstonedPet(PetEntry.COLUMN_PET_GENDER),
+                            tombstonedPet(PetEntry.COLUMN_PET_WEIGHT),
+                            PetBreeds.nameOf(tombstonedPet(PetBreeds.COLUMN_BREED_ID))) + "END"
+    };
+
+    /* Full-text index. It is an external content table, so the text is stored only once, in
+     * the pets and breeds tables, and prefix indexes make "ab*" queries index lookups. */
+    public static final String SQL_CREATE_FTS =
+            "CREATE VIRTUAL TABLE " + PetEntry.FTS_TABLE_NAME + " USING fts4(" +
+                    "content=\"" + PetBreeds.VIEW_SEARCH_CONTENT + "\", " +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + ", " +
+                    "prefix=\"2,3\")";
+    private static final String[] SQL_CREATE_FTS_TRIGGERS = {
+            "CREATE TRIGGER pets_fts_before_update BEFORE UPDATE ON " + PetEntry.TABLE_NAME +
+                    " BEGIN DELETE FROM " + PetEntry.FTS_TABLE_NAME +
+                    " WHERE docid = old." + PetEntry._ID + "; END",
+            "CREATE TRIGGER pets_fts_before_delete BEFORE DELETE ON " + PetEntry.TABLE_NAME +
+                    " BEGIN DELETE FROM " + PetEntry.FTS_TABLE_NAME +
+                    " WHERE docid = old." + PetEntry._ID + "; END",
+            "CREATE TRIGGER pets_fts_after_update AFTER UPDATE ON " + PetEntry.TABLE_NAME +
+                    " BEGIN INSERT INTO " + PetEntry.FTS_TABLE_NAME + "(docid, " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") VALUES (new." +
+                    PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetBreeds.nameOf("new." + PetBreeds.COLUMN_BREED_ID) + "); END",
+            "CREATE TRIGGER pets_fts_after_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                    " BEGIN INSERT INTO " + PetEntry.FTS_TABLE_NAME + "(docid, " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") VALUES (new." +
+                    PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetBreeds.nameOf("new." + PetBreeds.COLUMN_BREED_ID) + "); END"
+    };
+    private static final String SQL_REBUILD_FTS =
+            "INSERT INTO " + PetEntry.FTS_TABLE_NAME + "(" + PetEntry.FTS_TABLE_NAME +
+                    ") VALUES ('rebuild')";
+    private static final String SQL_DELETE_FTS =
+            "DROP TABLE IF EXISTS " + PetEntry.FTS_TABLE_NAME;
+
+    private static final String LOG_TAG = PetDbHelper.class.getSimpleName();
+
+    /* The pets table of version 11 while its rows are moved, see moveBreedsToDictionary() */
+    private static final String TABLE_PETS_V11 = "pets_v11";
+
+    /* Deleted pets removed per purge transaction */
+    private static final int PURGE_CHUNK_SIZE = 500;
+
+    /* Upgrades older databases in place, step by step */
+    private static final MigrationRunner MIGRATIONS = new MigrationRunner(PetMigrations.all());
+
+    /* Storage settings selected at build time */
+    private final StorageProfile storageProfile;
+
+    /* The database file, the hot backups kept of it and the photo files of its pets */
+    private final File databaseFile;
+    private final PetBackup backups;
+    private final PetPhotos photos;
+
+    /* Breed ids of this database, by name */
+    private final PetBreeds breeds = new PetBreeds( );
+
     /* Constructor */
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, StorageProfile.forName(BuildConfig.DB_STORAGE_PROFILE));
+    }
+
+    public PetDbHelper(Context context, StorageProfile storageProfile) {
+        this(context, DATABASE_NAME, storageProfile);
+    }
+
+    /* Same schema in another file, e.g. a scratch database for benchmarks */
+    public PetDbHelper(Context context, String databaseName, StorageProfile storageProfile) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        this.storageProfile = storageProfile;
+        this.databaseFile = context.getDatabasePath(databaseName);
+        this.backups = new PetBackup(new File(context.getFilesDir(), databaseName + ".backup"));
+        this.photos = new PetPhotos(new File(context.getFilesDir(), databaseName + ".photos"));
+    }
+
+    public StorageProfile getStorageProfile() {
+        return storageProfile;
+    }
+
+    public PetPhotos getPhotos() {
+        return photos;
+    }
+
+    public PetBreeds getBreeds() {
+        return breeds;
+    }
+
+    /**
+     * Apply the storage profile before the schema is created or upgraded. Runs on the primary
+     * (writer) connection only, the framework has no such hook for the reader connections of
+     * the WAL pool: see {@link StorageProfile}.
+     * <p>
+     * A new file gets incremental auto_vacuum first, while it is empty and has only the primary
+     * connection, so {@link PetTombstones#reclaimSpace} never has to VACUUM it full of pets.
+     */
+    @Override
+    public void onConfigure( SQLiteDatabase db ) {
+        super.onConfigure(db);
+        if (db.getVersion( ) == 0) {
+            // The framework already added android_metadata, so it takes a VACUUM, of a file
+            // that holds nothing else yet
+            runPragma(db, "PRAGMA auto_vacuum=INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
+        // With WAL the framework keeps one writer connection plus a pool of reader
+        // connections, so queries run concurrently with writes instead of waiting on them.
+        if (storageProfile.writeAheadLogging) {
+            db.enableWriteAheadLogging( );
+        }
+        runPragma(db, "PRAGMA synchronous=" + storageProfile.synchronous);
+        // A negative cache_size is expressed in KiB instead of pages
+        runPragma(db, "PRAGMA cache_size=-" + storageProfile.cacheSizeKb);
+        Log.d(LOG_TAG, "Opened " + getDatabaseName( ) + " with storage profile " + storageProfile);
+    }
+
+    /* Some pragmas return a row when set, so they must go through rawQuery, not execSQL */
+    static void runPragma( SQLiteDatabase db, String pragma ) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     /* Call SQL parameters to create */
     @Override
     public void onCreate( SQLiteDatabase sqLiteDatabase ) {
         sqLiteDatabase.execSQL(SQL_CREATE_ENTRIES);
+        PetBreeds.create(sqLiteDatabase);
+        createCatalogIndexes(sqLiteDatabase);
+        createSearchIndex(sqLiteDatabase);
+        createStatsTables(sqLiteDatabase);
+        createTombstones(sqLiteDatabase);
+        PetChangeLog.create(sqLiteDatabase);
+        MigrationRunner.ensureTables(sqLiteDatabase);
+    }
+
+    static void createCatalogIndexes( SQLiteDatabase db ) {
+        for (String index : SQL_CREATE_CATALOG_INDEXES) {
+            db.execSQL(index);
+        }
+        // Let the planner know how selective each index is
+        db.execSQL("ANALYZE " + PetEntry.TABLE_NAME);
+    }
+
+    /* Create the summary tables and their triggers, and summarize the rows already stored */
+    static void createStatsTables( SQLiteDatabase db ) {
+        db.execSQL(SQL_CREATE_GENDER_STATS);
+        db.execSQL(SQL_CREATE_BREED_STATS);
+        db.execSQL(SQL_FILL_GENDER_STATS);
+        db.execSQL(SQL_FILL_BREED_STATS);
+        createStatsTriggers(db);
+    }
+
+    private static void createStatsTriggers( SQLiteDatabase db ) {
+        for (String trigger : SQL_CREATE_STATS_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /* Create the soft delete tables and point the summary triggers at them */
+    static void createTombstones( SQLiteDatabase db ) {
+        db.execSQL(PetTombstones.SQL_CREATE_TOMBSTONES);
+        db.execSQL(PetTombstones.SQL_CREATE_PURGE_STATE);
+        db.execSQL(PetTombstones.SQL_INIT_PURGE_STATE);
+        createTombstoneTriggers(db);
+    }
+
+    private static void createTombstoneTriggers( SQLiteDatabase db ) {
+        for (String trigger : SQL_CREATE_TOMBSTONE_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /**
+     * Move the breed names of a version 11 database into the breeds dictionary. The pets
+     * table is copied into a new one with breed_id in place of the breed text, keeping every
+     * _id and the AUTOINCREMENT counter, then the indexes, the full-text index and the
+     * triggers built on it are created again. The summaries are by name and stay as they are.
+     * One pass over the pets, inside the upgrade transaction: SQLite cannot drop a column in
+     * place, and the text column must go for the rows to shrink.
+     */
+    static void moveBreedsToDictionary( SQLiteDatabase db ) {
+        db.execSQL(PetBreeds.SQL_CREATE_BREEDS);
+        db.execSQL("INSERT INTO " + PetBreeds.TABLE_BREEDS + " (" + PetBreeds.COLUMN_NAME +
+                ") SELECT DISTINCT " + PetEntry.COLUMN_PET_BREED + " FROM " +
+                PetEntry.TABLE_NAME);
+
+        // Triggers of other tables that read the pets table would follow the rename
+        db.execSQL("DROP TRIGGER IF EXISTS pet_tombstones_after_insert");
+        db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " RENAME TO " + TABLE_PETS_V11);
+        db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " (" + PetEntry._ID + ", " +
+                PetEntry.COLUMN_PET_NAME + ", " + PetBreeds.COLUMN_BREED_ID + ", " +
+                PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", " +
+                PetEntry.COLUMN_PET_PHOTO + ") SELECT old." + PetEntry._ID + ", old." +
+                PetEntry.COLUMN_PET_NAME + ", " + PetBreeds.TABLE_BREEDS + "." + PetEntry._ID +
+                ", old." + PetEntry.COLUMN_PET_GENDER + ", old." + PetEntry.COLUMN_PET_WEIGHT +
+                ", old." + PetEntry.COLUMN_PET_PHOTO + " FROM " + TABLE_PETS_V11 + " AS old JOIN " +
+                PetBreeds.TABLE_BREEDS + " ON " + PetBreeds.TABLE_BREEDS + "." +
+                PetBreeds.COLUMN_NAME + " = old." + PetEntry.COLUMN_PET_BREED + " ORDER BY old." +
+                PetEntry._ID);
+        // The counter may be above the highest _id left: ids of deleted pets are not reused
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + PetEntry.TABLE_NAME + "'");
+        db.execSQL("UPDATE sqlite_sequence SET name = '" + PetEntry.TABLE_NAME +
+                "' WHERE name = '" + TABLE_PETS_V11 + "'");
+        // Takes its indexes and the triggers on it along
+        db.execSQL("DROP TABLE " + TABLE_PETS_V11);
+        // Its triggers wrote to the full-text index, which now reads the new table
+        db.execSQL(SQL_DELETE_FTS);
+
+        db.execSQL(PetBreeds.SQL_CREATE_VIEW_PETS);
+        db.execSQL(PetBreeds.SQL_CREATE_VIEW_SEARCH_CONTENT);
+        createCatalogIndexes(db);
+        createSearchIndex(db);
+        createStatsTriggers(db);
+        createTombstoneTriggers(db);
+        PetChangeLog.createPetTriggers(db);
+    }
+
+    /* Create the full-text index and its triggers, and index the rows already stored */
+    static void createSearchIndex( SQLiteDatabase db ) {
+        db.execSQL(SQL_CREATE_FTS);
+        for (String trigger : SQL_CREATE_FTS_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+        db.execSQL(SQL_REBUILD_FTS);
     }
 
-    /**/
+    /**
+     * Upgrade in place through {@link PetMigrations}, keeping every pet. Only databases older
+     * than the first known schema (version 4) are still dropped and recreated.
+     */
     @Override
     public void onUpgrade( SQLiteDatabase sqLiteDatabase, int olderVersion, int newerVersion ) {
+        if (olderVersion >= MIGRATIONS.oldestSupportedVersion()) {
+            MIGRATIONS.upgrade(sqLiteDatabase, olderVersion, newerVersion);
+            return;
+        }
+        Log.w(LOG_TAG, "No migration from version " + olderVersion + ", recreating " +
+                getDatabaseName( ));
+        sqLiteDatabase.execSQL(SQL_DELETE_FTS);
+        sqLiteDatabase.execSQL("DROP VIEW IF EXISTS " + PetBreeds.VIEW_PETS);
+        sqLiteDatabase.execSQL("DROP VIEW IF EXISTS " + PetBreeds.VIEW_SEARCH_CONTENT);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + StatsEntry.TABLE_GENDER_STATS);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + StatsEntry.TABLE_BREED_STATS);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PetTombstones.TABLE_TOMBSTONES);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PetTombstones.TABLE_PURGE_STATE);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PetChangeLog.TABLE_CHANGES);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PetChangeLog.TABLE_STATE);
         sqLiteDatabase.execSQL(SQL_DELETE_ENTRIES);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PetBreeds.TABLE_BREEDS);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + MigrationRunner.TABLE_PENDING_BACKFILLS);
         onCreate(sqLiteDatabase);
     }
+
+    @Override
+    public void onOpen( SQLiteDatabase db ) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            // Databases created before the migration framework have no bookkeeping tables
+            MigrationRunner.ensureTables(db);
+        }
+        // Also after a restore: the ids of the file opened are the ones to cache
+        breeds.load(db);
+    }
+
+    /**
+     * Finish the data backfills left by past upgrades, in small transactions. Opens the
+     * database, so call it off the main thread.
+     */
+    public void runPendingBackfills() {
+        SQLiteDatabase db = getWritableDatabase();
+        if (MigrationRunner.hasPendingBackfills(db)) {
+            MIGRATIONS.runPendingBackfills(db);
+        }
+    }
+
+    /**
+     * Remove soft deleted pets for good, in small transactions, then their photos, and give
+     * the freed pages back to the file system. Also compacts the change log. Opens the
+     * database, so call it off the main thread.
+     */
+    public void purgeDeletedPets() {
+        SQLiteDatabase db = getWritableDatabase();
+        int compacted = PetChangeLog.compact(db);
+        if (compacted > 0) {
+            Log.d(LOG_TAG, "Compacted " + compacted + " change log entries");
+        }
+        int purged = PetTombstones.purge(db, PURGE_CHUNK_SIZE);
+        if (purged > 0) {
+            Log.d(LOG_TAG, "Purged " + purged + " deleted pets");
+            photos.deleteOrphans(db);
+            PetTombstones.reclaimSpace(db);
+        }
+    }
+
+    /**
+     * Take a hot backup of the database, see {@link PetBackup}. Queries keep running, writes
+     * wait for the copy. Call it off the main thread.
+     */
+    public PetBackup.Result backup() throws IOException {
+        return backups.backup(getWritableDatabase(), databaseFile);
+    }
+
+    /**
+     * Copy the last backup next to the database and check it, see {@link #restore}. Does not
+     * touch the database.
+     */
+    public File prepareRestore() throws IOException {
+        return backups.prepareRestore(databaseFile);
+    }
+
+    /**
+     * Replace the database by a backup returned by {@link #prepareRestore()}. It is upgraded on
+     * the next open if it is from an older schema. The caller must make sure no other thread
+     * uses the database meanwhile; the helper reopens it on the next call.
+     */
+    public void restore(File prepared) throws IOException {
+        synchronized (this) {
+            close();
+            PetBackup.swap(prepared, databaseFile);
+        }
+        Log.i(LOG_TAG, "Restored " + databaseFile + " from backup");
+    }
 }
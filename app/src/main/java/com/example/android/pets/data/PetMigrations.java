@@ -0,0 +1,225 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every schema change of pets.db since version 4, the first version whose schema is known.
+ * To change the schema, bump {@link PetDbHelper#DATABASE_VERSION}, update the create
+ * statements used by {@link PetDbHelper#onCreate} and add the matching step here. A step
+ * must keep working on the schema of its own version, so it copies the SQL it needs once the
+ * create statements move on.
+ */
+final class PetMigrations {
+
+    /* Catalog indexes of version 6 to 8, the columns of version 9 do not exist yet there */
+    private static final String[] CATALOG_INDEXES_V6 = {
+            "CREATE INDEX IF NOT EXISTS pets_by_name ON pets (name, breed, weight)",
+            "CREATE INDEX IF NOT EXISTS pets_by_gender_name ON pets (gender, name, breed, weight)",
+            "CREATE INDEX IF NOT EXISTS pets_by_weight ON pets (weight, name, breed)",
+            "CREATE INDEX IF NOT EXISTS pets_by_breed ON pets (breed, name, weight)"
+    };
+
+    /* Steps 5 to 10 as they were while the breed name was a column of the pets table, step
+     * 12 moved it to the breeds dictionary and rebuilt all of these */
+    private static final String[] SEARCH_INDEX_V5 = {
+            "CREATE VIRTUAL TABLE pets_fts USING fts4(content=\"pets\", name, breed, " +
+                    "prefix=\"2,3\")",
+            "CREATE TRIGGER pets_fts_before_update BEFORE UPDATE ON pets " +
+                    "BEGIN DELETE FROM pets_fts WHERE docid = old._id; END",
+            "CREATE TRIGGER pets_fts_before_delete BEFORE DELETE ON pets " +
+                    "BEGIN DELETE FROM pets_fts WHERE docid = old._id; END",
+            "CREATE TRIGGER pets_fts_after_update AFTER UPDATE ON pets " +
+                    "BEGIN INSERT INTO pets_fts(docid, name, breed) " +
+                    "VALUES (new._id, new.name, new.breed); END",
+            "CREATE TRIGGER pets_fts_after_insert AFTER INSERT ON pets " +
+                    "BEGIN INSERT INTO pets_fts(docid, name, breed) " +
+                    "VALUES (new._id, new.name, new.breed); END",
+            "INSERT INTO pets_fts(pets_fts) VALUES ('rebuild')"
+    };
+
+    private static final String STATS_ADD_NEW_V7 =
+            "INSERT OR IGNORE INTO pet_gender_stats (gender) VALUES (new.gender); " +
+                    "UPDATE pet_gender_stats SET count = count + 1, " +
+                    "weight_sum = weight_sum + new.weight WHERE gender = new.gender; " +
+                    "INSERT OR IGNORE INTO pet_breed_stats (breed) VALUES (new.breed); " +
+                    "UPDATE pet_breed_stats SET count = count + 1 WHERE breed = new.breed; ";
+    private static final String STATS_REMOVE_OLD_V7 =
+            "UPDATE pet_gender_stats SET count = count - 1, " +
+                    "weight_sum = weight_sum - old.weight WHERE gender = old.gender; " +
+                    "UPDATE pet_breed_stats SET count = count - 1 WHERE breed = old.breed; " +
+                    "DELETE FROM pet_breed_stats WHERE breed = old.breed AND count <= 0; ";
+    private static final String[] STATS_TABLES_V7 = {
+            "CREATE TABLE pet_gender_stats (gender INTEGER PRIMARY KEY, " +
+                    "count INTEGER NOT NULL DEFAULT 0, weight_sum INTEGER NOT NULL DEFAULT 0)",
+            "CREATE TABLE pet_breed_stats (breed TEXT PRIMARY KEY, " +
+                    "count INTEGER NOT NULL DEFAULT 0)",
+            "INSERT INTO pet_gender_stats SELECT gender, COUNT(*), TOTAL(weight) FROM pets " +
+                    "GROUP BY gender",
+            "INSERT INTO pet_breed_stats SELECT breed, COUNT(*) FROM pets GROUP BY breed",
+            "CREATE TRIGGER pets_stats_after_insert AFTER INSERT ON pets " +
+                    "BEGIN " + STATS_ADD_NEW_V7 + "END",
+            "CREATE TRIGGER pets_stats_after_delete AFTER DELETE ON pets " +
+                    "BEGIN " + STATS_REMOVE_OLD_V7 + "END",
+            "CREATE TRIGGER pets_stats_after_update AFTER UPDATE OF gender, weight, breed " +
+                    "ON pets BEGIN " + STATS_REMOVE_OLD_V7 + STATS_ADD_NEW_V7 + "END"
+    };
+
+    private static final String[] TOMBSTONE_TABLES_V8 = {
+            "CREATE TABLE pet_tombstones (_id INTEGER PRIMARY KEY)",
+            "CREATE TABLE pet_purge_state (_id INTEGER PRIMARY KEY CHECK (_id = 0), " +
+                    "deleted_through INTEGER NOT NULL)",
+            "INSERT INTO pet_purge_state VALUES (0, 0)"
+    };
+
+    private static final String TOMBSTONED_V8 = " FROM pets WHERE _id = new._id)";
+    private static final String[] TOMBSTONE_TRIGGERS_V8 = {
+            "DROP TRIGGER IF EXISTS pets_stats_after_delete",
+            "CREATE TRIGGER pets_stats_after_delete AFTER DELETE ON pets " +
+                    "WHEN old._id > (SELECT deleted_through FROM pet_purge_state) " +
+                    "AND NOT EXISTS (SELECT 1 FROM pet_tombstones WHERE _id = old._id) " +
+                    "BEGIN " + STATS_REMOVE_OLD_V7 + "END",
+            "CREATE TRIGGER pet_tombstones_after_insert AFTER INSERT ON pet_tombstones BEGIN " +
+                    "UPDATE pet_gender_stats SET count = count - 1, " +
+                    "weight_sum = weight_sum - (SELECT weight" + TOMBSTONED_V8 +
+                    " WHERE gender = (SELECT gender" + TOMBSTONED_V8 + "; " +
+                    "UPDATE pet_breed_stats SET count = count - 1 " +
+                    "WHERE breed = (SELECT breed" + TOMBSTONED_V8 + "; " +
+                    "DELETE FROM pet_breed_stats " +
+                    "WHERE breed = (SELECT breed" + TOMBSTONED_V8 + " AND count <= 0; END"
+    };
+
+    /* Names of the catalog indexes from version 6 on */
+    private static final String[] CATALOG_INDEX_NAMES_V6 = {
+            "pets_by_name", "pets_by_gender_name", "pets_by_weight", "pets_by_breed"
+    };
+
+    /* Catalog indexes of version 10, which step 9 already built */
+    private static final String[] CATALOG_INDEXES_V10 = {
+            "CREATE INDEX IF NOT EXISTS pets_by_name ON pets (name, breed, weight, photo, gender)",
+            "CREATE INDEX IF NOT EXISTS pets_by_gender_name ON pets " +
+                    "(gender, name, breed, weight, photo)",
+            "CREATE INDEX IF NOT EXISTS pets_by_weight ON pets " +
+                    "(weight, name, breed, photo, gender)",
+            "CREATE INDEX IF NOT EXISTS pets_by_breed ON pets (breed, name, weight, photo, gender)"
+    };
+
+    private static final String[] CHANGE_LOG_V11 = {
+            "CREATE TABLE pet_changes (seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "pet_id INTEGER NOT NULL, op INTEGER NOT NULL)",
+            "CREATE INDEX pet_changes_by_pet ON pet_changes (pet_id, seq)",
+            "CREATE TABLE pet_change_log_state (_id INTEGER PRIMARY KEY CHECK (_id = 0), " +
+                    "epoch TEXT NOT NULL, compacted_through INTEGER NOT NULL)",
+            "INSERT INTO pet_change_log_state VALUES (0, lower(hex(randomblob(8))), 0)",
+            "CREATE TRIGGER pet_changes_after_insert AFTER INSERT ON pets " +
+                    "BEGIN INSERT INTO pet_changes (pet_id, op) VALUES (new._id, 1); END",
+            "CREATE TRIGGER pet_changes_after_update AFTER UPDATE ON pets " +
+                    "BEGIN INSERT INTO pet_changes (pet_id, op) VALUES (new._id, 1); END",
+            "CREATE TRIGGER pet_changes_after_tombstone AFTER INSERT ON pet_tombstones " +
+                    "BEGIN INSERT INTO pet_changes (pet_id, op) VALUES (new._id, 2); END",
+            "CREATE TRIGGER pet_changes_after_delete_through AFTER UPDATE OF deleted_through " +
+                    "ON pet_purge_state WHEN new.deleted_through > old.deleted_through " +
+                    "BEGIN INSERT INTO pet_changes (pet_id, op) " +
+                    "VALUES (new.deleted_through, 3); END"
+    };
+
+    private PetMigrations() {}
+
+    static List <Migration> all() {
+        List <Migration> migrations = new ArrayList <>( );
+
+        // 5: full-text index over name and breed
+        migrations.add(new Migration(5, "search_index") {
+            @Override
+            public void migrate( SQLiteDatabase db ) {
+                execAll(db, SEARCH_INDEX_V5);
+            }
+        });
+
+        // 6: covering indexes for the catalog filters and sorts, as they were before the photo
+        // column; step 9 rebuilds them
+        migrations.add(new Migration(6, "catalog_indexes") {
+            @Override
+            public void migrate( SQLiteDatabase db ) {
+                execAll(db, CATALOG_INDEXES_V6);
+                db.execSQL("ANALYZE " + PetEntry.TABLE_NAME);
+            }
+        });
+
+        // 7: summary tables for the stats URIs, filled once here and then kept by triggers
+        migrations.add(new Migration(7, "stats_tables") {
+            @Override
+            public void migrate( SQLiteDatabase db ) {
+                execAll(db, STATS_TABLES_V7);
+            }
+        });
+
+        // 8: soft deletes, tombstones purged in the background
+        migrations.add(new Migration(8, "tombstones") {
+            @Override
+            public void migrate( SQLiteDatabase db ) {
+                execAll(db, TOMBSTONE_TABLES_V8);
+                execAll(db, TOMBSTONE_TRIGGERS_V8);
+            }
+        });
+
+        // 9: photo version column, the photos themselves are files
+        migrations.add(new Migration(9, "photos") {
+            @Override
+            public void migrate( SQLiteDatabase db ) {
+                db.execSQL("ALTER TABLE pets ADD COLUMN photo INTEGER NOT NULL DEFAULT 0");
+                rebuildCatalogIndexesV10(db);
+            }
+        });
+
+        // 10: gender in every catalog index, so catalog rows hold all the editor shows
+        migrations.add(new Migration(10, "catalog_indexes_gender") {
+            @Override
+            public void migrate( SQLiteDatabase db ) {
+                rebuildCatalogIndexesV10(db);
+            }
+        });
+
+        // 11: change log for replicas; the pets already stored are logged by a backfill, which
+        // like every backfill runs once all the steps are done, on the current schema
+        migrations.add(new Migration(11, "change_log") {
+            @Override
+            public void migrate( SQLiteDatabase db ) {
+                execAll(db, CHANGE_LOG_V11);
+            }
+
+            @Override
+            public Backfill getBackfill() {
+                return PetChangeLog.backfill( );
+            }
+        });
+
+        // 12: breed names in a dictionary table, pets keep an integer id
+        migrations.add(new Migration(12, "breed_dictionary") {
+            @Override
+            public void migrate( SQLiteDatabase db ) {
+                PetDbHelper.moveBreedsToDictionary(db);
+            }
+        });
+
+        return migrations;
+    }
+
+    private static void execAll( SQLiteDatabase db, String[] statements ) {
+        for (String statement : statements) {
+            db.execSQL(statement);
+        }
+    }
+
+    private static void rebuildCatalogIndexesV10( SQLiteDatabase db ) {
+        for (String index : CATALOG_INDEX_NAMES_V6) {
+            db.execSQL("DROP INDEX IF EXISTS " + index);
+        }
+        execAll(db, CATALOG_INDEXES_V10);
+        db.execSQL("ANALYZE " + PetEntry.TABLE_NAME);
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Photo files of the pets, kept out of the database so that no image ever goes through a
+ * CursorWindow: one full size file and one thumbnail per pet, named after its _id. The pets
+ * table only holds {@link PetEntry#COLUMN_PET_PHOTO}, the version of the current photo.
+ */
+public final class PetPhotos {
+
+    private static final String LOG_TAG = PetPhotos.class.getSimpleName( );
+
+    private static final String PHOTO_SUFFIX = ".jpg";
+    private static final String THUMBNAIL_SUFFIX = "-thumb.jpg";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int THUMBNAIL_QUALITY = 85;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+
+    /**
+     * @param directory where the photos are kept, created on the first save
+     */
+    public PetPhotos( File directory ) {
+        this.directory = directory;
+    }
+
+    public File photoFile( long id ) {
+        return new File(directory, id + PHOTO_SUFFIX);
+    }
+
+    public File thumbnailFile( long id ) {
+        return new File(directory, id + THUMBNAIL_SUFFIX);
+    }
+
+    /**
+     * Store the image read from in as the photo of the pet, and make its thumbnail. Both are
+     * written to temporary files first, so readers see the old photo or the new one. Throws
+     * an IOException if in is not an image BitmapFactory can decode. Does not close in.
+     */
+    public void save( long id, InputStream in ) throws IOException {
+        if (!directory.isDirectory( ) && !directory.mkdirs( )) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File photo = new File(directory, id + PHOTO_SUFFIX + TEMPORARY_SUFFIX);
+        File thumbnail = new File(directory, id + THUMBNAIL_SUFFIX + TEMPORARY_SUFFIX);
+        try {
+            copy(in, photo);
+            writeThumbnail(photo, thumbnail);
+            rename(photo, photoFile(id));
+            rename(thumbnail, thumbnailFile(id));
+        } finally {
+            photo.delete( );
+            thumbnail.delete( );
+        }
+    }
+
+    /**
+     * Remove the photo and the thumbnail of the pet, if it has any.
+     */
+    public void delete( long id ) {
+        photoFile(id).delete( );
+        thumbnailFile(id).delete( );
+    }
+
+    /**
+     * Remove the photos of pets that are no longer in the table, after a purge. Costs one
+     * primary key lookup per photo, so run it in the background.
+     */
+    public int deleteOrphans( SQLiteDatabase db ) {
+        String[] names = directory.list( );
+        if (names == null) {
+            return 0;
+        }
+        int deleted = 0;
+        for (String name : names) {
+            if (!name.endsWith(THUMBNAIL_SUFFIX) && name.endsWith(PHOTO_SUFFIX)) {
+                long id;
+                try {
+                    id = Long.parseLong(name.substring(0, name.length( ) - PHOTO_SUFFIX.length( )));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME +
+                        " WHERE " + PetEntry._ID + " = ?", new String[]{String.valueOf(id)}) == 0) {
+                    delete(id);
+                    deleted++;
+                }
+            }
+        }
+        if (deleted > 0) {
+            Log.d(LOG_TAG, "Deleted " + deleted + " photos of purged pets");
+        }
+        return deleted;
+    }
+
+    /* Decode the photo at a power of two scale close to the thumbnail size, then scale it
+     * down the rest of the way, so the full size bitmap is never in memory */
+    private static void writeThumbnail( File photo, File thumbnail ) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options( );
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(photo.getPath( ), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Not an image");
+        }
+        int longerSide = Math.max(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (longerSide / (options.inSampleSize * 2) >= PetEntry.THUMBNAIL_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap sampled = BitmapFactory.decodeFile(photo.getPath( ), options);
+        if (sampled == null) {
+            throw new IOException("Cannot decode the image");
+        }
+
+        Bitmap scaled = sampled;
+        int sampledSide = Math.max(sampled.getWidth( ), sampled.getHeight( ));
+        if (sampledSide > PetEntry.THUMBNAIL_SIZE) {
+            float scale = (float) PetEntry.THUMBNAIL_SIZE / sampledSide;
+            scaled = Bitmap.createScaledBitmap(sampled,
+                    Math.max(1, Math.round(sampled.getWidth( ) * scale)),
+                    Math.max(1, Math.round(sampled.getHeight( ) * scale)), true);
+            sampled.recycle( );
+        }
+        OutputStream out = new FileOutputStream(thumbnail);
+        try {
+            scaled.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+        } finally {
+            out.close( );
+            scaled.recycle( );
+        }
+    }
+
+    private static void copy( InputStream in, File target ) throws IOException {
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.getFD( ).sync( );
+        } finally {
+            out.close( );
+        }
+    }
+
+    private static void rename( File from, File to ) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Cannot rename " + from + " to " + to);
+        }
+    }
+}
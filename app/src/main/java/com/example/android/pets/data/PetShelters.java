@@ -0,0 +1,119 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+
+import com.example.android.pets.data.PetContract.ShelterEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * The database files of the shelters other than the main one, shelter-&lt;name&gt;.db, each
+ * with the full pets schema and its own photos and backups. Every file has its own write
+ * lock and WAL, so writes to different shelters never wait on each other.
+ * <p>
+ * Helpers are pooled: built on the first use of a shelter and kept for the life of the
+ * provider. A region has a handful of shelters, so the pool is not bounded.
+ */
+public final class PetShelters {
+
+    private static final String FILE_PREFIX = "shelter-";
+    private static final String FILE_SUFFIX = ".db";
+
+    private final Context context;
+    private final StorageProfile storageProfile;
+
+    /* Runs the backfills and purge left in a shelter when it is first opened */
+    private final Executor maintenance;
+
+    private final ConcurrentMap <String, PetDbHelper> helpers = new ConcurrentHashMap <>( );
+
+    public PetShelters( Context context, StorageProfile storageProfile, Executor maintenance ) {
+        this.context = context.getApplicationContext( );
+        this.storageProfile = storageProfile;
+        this.maintenance = maintenance;
+    }
+
+    /**
+     * Returns the helper of the shelter, creating the shelter if it does not exist yet. The
+     * database itself is opened by the first call that uses it.
+     */
+    public PetDbHelper get( String shelter ) {
+        PetDbHelper helper = helpers.get(shelter);
+        if (helper != null) {
+            return helper;
+        }
+        if (!ShelterEntry.isValidName(shelter) || ShelterEntry.MAIN_SHELTER.equals(shelter)) {
+            throw new IllegalArgumentException("Invalid shelter name " + shelter);
+        }
+        final PetDbHelper created = new PetDbHelper(context, fileName(shelter), storageProfile);
+        helper = helpers.putIfAbsent(shelter, created);
+        if (helper != null) {
+            return helper;
+        }
+        // Same as for the main shelter when the provider starts
+        maintenance.execute(new Runnable( ) {
+            @Override
+            public void run() {
+                created.runPendingBackfills( );
+                created.purgeDeletedPets( );
+            }
+        });
+        return created;
+    }
+
+    /**
+     * Returns the helper of the shelter, or null if it has no database file yet, so reading
+     * an unknown shelter does not create it.
+     */
+    public PetDbHelper getIfExists( String shelter ) {
+        PetDbHelper helper = helpers.get(shelter);
+        if (helper != null) {
+            return helper;
+        }
+        if (!ShelterEntry.isValidName(shelter) || ShelterEntry.MAIN_SHELTER.equals(shelter) ||
+                !context.getDatabasePath(fileName(shelter)).exists( )) {
+            return null;
+        }
+        return get(shelter);
+    }
+
+    /**
+     * Returns the names of the shelters, sorted, the main shelter excluded.
+     */
+    public List <String> names() {
+        TreeSet <String> names = new TreeSet <>(helpers.keySet( ));
+        File directory = context.getDatabasePath(fileName("x")).getParentFile( );
+        String[] files = directory == null ? null : directory.list( );
+        if (files != null) {
+            for (String file : files) {
+                if (file.startsWith(FILE_PREFIX) && file.endsWith(FILE_SUFFIX)) {
+                    String name = file.substring(FILE_PREFIX.length( ),
+                            file.length( ) - FILE_SUFFIX.length( ));
+                    if (ShelterEntry.isValidName(name)) {
+                        names.add(name);
+                    }
+                }
+            }
+        }
+        names.remove(ShelterEntry.MAIN_SHELTER);
+        return new ArrayList <>(names);
+    }
+
+    /**
+     * Returns the helpers of the shelters used since the provider started.
+     */
+    public List <PetDbHelper> pooled() {
+        return Collections.unmodifiableList(new ArrayList <>(helpers.values( )));
+    }
+
+    private static String fileName( String shelter ) {
+        return FILE_PREFIX + shelter + FILE_SUFFIX;
+    }
+}
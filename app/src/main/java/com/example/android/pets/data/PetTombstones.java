@@ -0,0 +1,219 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+/**
+ * Soft deletes for the pets table. A deleted pet stays in the table, hidden from every query,
+ * until {@link #purge} removes it in the background.
+ * <p>
+ * There are two kinds of tombstones:
+ * <ul>
+ * <li>one row in {@link #TABLE_TOMBSTONES} per pet deleted by id or selection;</li>
+ * <li>the {@link #COLUMN_DELETED_THROUGH} mark of {@link #TABLE_PURGE_STATE}: deleting every
+ * pet only moves it to the highest _id, so it costs the same for any number of pets. _id is
+ * AUTOINCREMENT, so pets inserted later are never under the mark.</li>
+ * </ul>
+ */
+public final class PetTombstones {
+
+    private static final String LOG_TAG = PetTombstones.class.getSimpleName( );
+
+    public static final String TABLE_TOMBSTONES = "pet_tombstones";
+    public static final String TABLE_PURGE_STATE = "pet_purge_state";
+    public static final String COLUMN_DELETED_THROUGH = "deleted_through";
+
+    /* Number of pages freed by each incremental_vacuum call */
+    private static final int VACUUM_CHUNK_PAGES = 256;
+
+    /* PRAGMA auto_vacuum value of the incremental mode */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /* Largest file converted to incremental vacuum, the VACUUM holds the writer meanwhile */
+    private static final long MAX_CONVERTED_BYTES = 4 * 1024 * 1024;
+
+    static final String SQL_CREATE_TOMBSTONES =
+            "CREATE TABLE " + TABLE_TOMBSTONES + " (" + PetEntry._ID + " INTEGER PRIMARY KEY)";
+    static final String SQL_CREATE_PURGE_STATE =
+            "CREATE TABLE " + TABLE_PURGE_STATE + " (" +
+                    PetEntry._ID + " INTEGER PRIMARY KEY CHECK (" + PetEntry._ID + " = 0), " +
+                    COLUMN_DELETED_THROUGH + " INTEGER NOT NULL)";
+    static final String SQL_INIT_PURGE_STATE =
+            "INSERT INTO " + TABLE_PURGE_STATE + " VALUES (0, 0)";
+
+    static final String SQL_DELETED_THROUGH =
+            "(SELECT " + COLUMN_DELETED_THROUGH + " FROM " + TABLE_PURGE_STATE + ")";
+
+    /**
+     * Condition matching the pets that are not deleted. Add it to every query and update on the
+     * pets table. Costs one primary key lookup per row. The unary + keeps the planner from
+     * trading the covering indexes for a scan of the _id range.
+     */
+    public static final String SQL_VISIBLE =
+            "+" + PetEntry.TABLE_NAME + "." + PetEntry._ID + " > " + SQL_DELETED_THROUGH +
+                    " AND NOT EXISTS (SELECT 1 FROM " + TABLE_TOMBSTONES + " WHERE " +
+                    TABLE_TOMBSTONES + "." + PetEntry._ID + " = " + PetEntry.TABLE_NAME + "." +
+                    PetEntry._ID + ")";
+
+    /* Purge steps, parameter: chunk size */
+    private static final String SQL_PURGE_CLEARED_CHUNK =
+            "DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " IN (SELECT " +
+                    PetEntry._ID + " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID +
+                    " <= " + SQL_DELETED_THROUGH + " ORDER BY " + PetEntry._ID + " LIMIT ?)";
+    private static final String SQL_PURGE_TOMBSTONED_CHUNK =
+            "DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " IN (SELECT " +
+                    PetEntry._ID + " FROM " + TABLE_TOMBSTONES + " ORDER BY " + PetEntry._ID +
+                    " LIMIT ?)";
+    private static final String SQL_DROP_TOMBSTONES_CHUNK =
+            "DELETE FROM " + TABLE_TOMBSTONES + " WHERE " + PetEntry._ID + " IN (SELECT " +
+                    PetEntry._ID + " FROM " + TABLE_TOMBSTONES + " ORDER BY " + PetEntry._ID +
+                    " LIMIT ?)";
+
+    private PetTombstones() {}
+
+    /**
+     * Hide the visible pets matching the selection, which may use every column of
+     * {@link PetEntry}. Returns the number of pets deleted. Costs one small insert per pet; a
+     * trigger takes each of them out of the summary tables.
+     */
+    public static int tombstone( SQLiteDatabase db, String selection, String[] selectionArgs ) {
+        SQLiteStatement statement = db.compileStatement(
+                "INSERT OR IGNORE INTO " + TABLE_TOMBSTONES + " (" + PetEntry._ID + ") SELECT " +
+                        PetEntry._ID + " FROM " + PetBreeds.SQL_PETS_WITH_BREED + " WHERE " +
+                        SQL_VISIBLE + " AND (" + selection + ")");
+        try {
+            if (selectionArgs != null) {
+                statement.bindAllArgsAsStrings(selectionArgs);
+            }
+            return statement.executeUpdateDelete( );
+        } finally {
+            statement.close( );
+        }
+    }
+
+    /**
+     * Hide every pet by moving the deleted-through mark to the highest _id, and empty the
+     * summary tables. Returns the number of pets deleted, read from the summaries.
+     */
+    public static int tombstoneAll( SQLiteDatabase db ) {
+        db.beginTransaction( );
+        try {
+            long deleted = DatabaseUtils.longForQuery(db, "SELECT IFNULL(SUM(" +
+                    StatsEntry.COLUMN_COUNT + "), 0) FROM " + StatsEntry.TABLE_GENDER_STATS, null);
+            db.execSQL("UPDATE " + TABLE_PURGE_STATE + " SET " + COLUMN_DELETED_THROUGH +
+                    " = MAX(" + COLUMN_DELETED_THROUGH + ", IFNULL((SELECT MAX(" + PetEntry._ID +
+                    ") FROM " + PetEntry.TABLE_NAME + "), 0))");
+            db.execSQL("DELETE FROM " + StatsEntry.TABLE_GENDER_STATS);
+            db.execSQL("DELETE FROM " + StatsEntry.TABLE_BREED_STATS);
+            db.setTransactionSuccessful( );
+            return (int) deleted;
+        } finally {
+            db.endTransaction( );
+        }
+    }
+
+    /**
+     * Remove the deleted pets from the table for good, at most chunkSize rows per transaction
+     * so writers never wait long for the lock. Pets under the deleted-through mark go first,
+     * then the tombstoned ones. Returns the number of pets removed.
+     */
+    public static int purge( SQLiteDatabase db, int chunkSize ) {
+        SQLiteStatement clearedRows = db.compileStatement(SQL_PURGE_CLEARED_CHUNK);
+        SQLiteStatement tombstonedRows = db.compileStatement(SQL_PURGE_TOMBSTONED_CHUNK);
+        SQLiteStatement tombstones = db.compileStatement(SQL_DROP_TOMBSTONES_CHUNK);
+        int purged = 0;
+        try {
+            boolean more = true;
+            while (more) {
+                db.beginTransaction( );
+                try {
+                    int removed = runChunk(clearedRows, chunkSize);
+                    more = removed > 0;
+                    if (!more) {
+                        // The pets go before their tombstones, so the summary trigger skips them
+                        removed = runChunk(tombstonedRows, chunkSize);
+                        more = runChunk(tombstones, chunkSize) > 0;
+                    }
+                    purged += removed;
+                    db.setTransactionSuccessful( );
+                } finally {
+                    db.endTransaction( );
+                }
+            }
+        } finally {
+            clearedRows.close( );
+            tombstonedRows.close( );
+            tombstones.close( );
+        }
+        return purged;
+    }
+
+    private static int runChunk( SQLiteStatement statement, int chunkSize ) {
+        statement.clearBindings( );
+        statement.bindLong(1, chunkSize);
+        return statement.executeUpdateDelete( );
+    }
+
+    /**
+     * Give the free pages back to the file system through incremental vacuum, a few pages per
+     * call. New files get it from {@link PetDbHelper#onConfigure}; a file created before that
+     * needs one full VACUUM to switch, which rewrites it while writes wait, so it is only done
+     * while the file is small. A bigger file keeps its free pages for later inserts. Must not
+     * run inside a transaction.
+     * <p>
+     * Outside a transaction a pragma may run on one of the read-only connections WAL gives the
+     * database, so the pragmas that write run inside one, which holds the writer.
+     */
+    public static void reclaimSpace( SQLiteDatabase db ) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+            long bytes = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) *
+                    DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+            if (bytes > MAX_CONVERTED_BYTES) {
+                Log.d(LOG_TAG, "Not converting " + db.getPath( ) + ", " + bytes + " bytes");
+                return;
+            }
+            // Only recorded until the VACUUM, which cannot run in the transaction
+            db.beginTransaction( );
+            try {
+                PetDbHelper.runPragma(db, "PRAGMA auto_vacuum=INCREMENTAL");
+                db.setTransactionSuccessful( );
+            } finally {
+                db.endTransaction( );
+            }
+            db.execSQL("VACUUM");
+            Log.i(LOG_TAG, "Converted " + db.getPath( ) + " to incremental vacuum");
+            return;
+        }
+        long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        long total = free;
+        while (free > 0) {
+            // The pragma frees one page per step, so step through all of its rows
+            db.beginTransaction( );
+            try {
+                Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_CHUNK_PAGES +
+                        ")", null);
+                try {
+                    cursor.getCount( );
+                } finally {
+                    cursor.close( );
+                }
+                db.setTransactionSuccessful( );
+            } finally {
+                db.endTransaction( );
+            }
+            long left = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            if (left >= free) {
+                break;
+            }
+            free = left;
+        }
+        total -= free;
+        Log.d(LOG_TAG, "Incremental vacuum freed " + total + " pages");
+    }
+}
@@ -0,0 +1,432 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.example.android.pets.data.PetContract.FORMAT_CSV;
+import static com.example.android.pets.data.PetContract.FORMAT_JSON;
+
+/**
+ * Streams the pets table to and from CSV or JSON files. Memory use does not depend on the
+ * number of pets: export reads the table in keyset pages, and import parses one pet at a time
+ * and commits every chunk.
+ * <p>
+ * CSV files start with a header naming the columns, in any order; _id is written on export and
+ * ignored on import. JSON files hold one array of objects with the same keys.
+ */
+public final class PetTransfer {
+
+    /* Pets read per page on export, and committed per transaction on import by default */
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT};
+
+    /* Returned by a PetSource for a record it cannot read, which is then counted as rejected */
+    private static final Pet UNREADABLE = new Pet(null, null, 0, 0);
+
+    /**
+     * Told after every chunk how many pets were processed so far.
+     */
+    public interface Progress {
+        void onProgress( long pets );
+    }
+
+    /**
+     * Outcome of an import.
+     */
+    public static final class ImportResult {
+        public final long imported;
+        public final long rejected;
+
+        ImportResult( long imported, long rejected ) {
+            this.imported = imported;
+            this.rejected = rejected;
+        }
+    }
+
+    private PetTransfer() {}
+
+    /**
+     * Returns the MIME type of the given format, or null if it is unknown.
+     */
+    public static String mimeType( String format ) {
+        if (FORMAT_CSV.equals(format)) {
+            return PetEntry.CSV_TYPE;
+        }
+        if (FORMAT_JSON.equals(format)) {
+            return PetEntry.JSON_TYPE;
+        }
+        return null;
+    }
+
+    /**
+     * Write every visible pet to out, in _id order. Does not close out. Returns the number of
+     * pets written.
+     */
+    public static long export( SQLiteDatabase db, String format, OutputStream out,
+                               Progress progress ) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        PetSink sink = FORMAT_JSON.equals(format) ? new JsonSink(writer) : new CsvSink(writer);
+
+        long exported = 0;
+        long afterId = 0;
+        boolean more = true;
+        sink.begin( );
+        while (more) {
+            Cursor cursor = db.query(PetBreeds.SQL_PETS_WITH_BREED, COLUMNS,
+                    PetEntry._ID + " > ? AND " + PetTombstones.SQL_VISIBLE,
+                    new String[]{String.valueOf(afterId)}, null, null, PetEntry._ID,
+                    String.valueOf(DEFAULT_CHUNK_SIZE));
+            try {
+                PetCodec.Reader reader = new PetCodec.Reader(cursor);
+                while (cursor.moveToNext( )) {
+                    Pet pet = reader.read( );
+                    sink.write(pet);
+                    afterId = pet.id;
+                }
+                exported += cursor.getCount( );
+                more = cursor.getCount( ) == DEFAULT_CHUNK_SIZE;
+            } finally {
+                cursor.close( );
+            }
+            if (progress != null) {
+                progress.onProgress(exported);
+            }
+        }
+        sink.end( );
+        writer.flush( );
+        return exported;
+    }
+
+    /**
+     * Insert the pets read from in, committing every chunkSize pets, so an error part way
+     * keeps the chunks already committed. Pets that fail {@link PetCodec#isValid} or cannot be
+     * parsed are skipped and counted as rejected. Does not close in.
+     */
+    public static ImportResult importPets( SQLiteDatabase db, PetBreeds breeds, String format,
+                                           InputStream in, int chunkSize, Progress progress )
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        PetSource source = FORMAT_JSON.equals(format)
+                ? new JsonSource(reader) : new CsvSource(reader);
+
+        SQLiteStatement statement = db.compileStatement(PetCodec.SQL_INSERT);
+        List <Pet> chunk = new ArrayList <>(chunkSize);
+        long imported = 0;
+        long rejected = 0;
+        try {
+            Pet pet = source.next( );
+            while (pet != null) {
+                if (PetCodec.isValid(pet)) {
+                    chunk.add(pet);
+                } else {
+                    rejected++;
+                }
+                pet = source.next( );
+                if (chunk.size( ) == chunkSize || pet == null) {
+                    int inserted = insertChunk(db, breeds, statement, chunk);
+                    imported += inserted;
+                    rejected += chunk.size( ) - inserted;
+                    chunk.clear( );
+                    if (progress != null) {
+                        progress.onProgress(imported + rejected);
+                    }
+                }
+            }
+        } finally {
+            statement.close( );
+        }
+        return new ImportResult(imported, rejected);
+    }
+
+    private static int insertChunk( SQLiteDatabase db, PetBreeds breeds,
+                                    SQLiteStatement statement, List <Pet> chunk ) {
+        int inserted = 0;
+        db.beginTransaction( );
+        try {
+            for (Pet pet : chunk) {
+                PetCodec.bindInsert(statement, pet, breeds.intern(db, pet.breed));
+                if (statement.executeInsert( ) != -1) {
+                    inserted++;
+                }
+            }
+            db.setTransactionSuccessful( );
+        } finally {
+            db.endTransaction( );
+        }
+        return inserted;
+    }
+
+    /* Writes pets in one format */
+    private interface PetSink {
+        void begin() throws IOException;
+
+        void write( Pet pet ) throws IOException;
+
+        void end() throws IOException;
+    }
+
+    /* Reads pets in one format: returns null at the end, UNREADABLE for a bad record */
+    private interface PetSource {
+        Pet next() throws IOException;
+    }
+
+    private static final class CsvSink implements PetSink {
+        private final Writer writer;
+
+        CsvSink( Writer writer ) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void begin() throws IOException {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(COLUMNS[i]);
+            }
+            writer.write('\n');
+        }
+
+        @Override
+        public void write( Pet pet ) throws IOException {
+            writer.write(Long.toString(pet.id));
+            writer.write(',');
+            writeField(pet.name);
+            writer.write(',');
+            writeField(pet.breed);
+            writer.write(',');
+            writer.write(Integer.toString(pet.gender));
+            writer.write(',');
+            writer.write(Integer.toString(pet.weight));
+            writer.write('\n');
+        }
+
+        /* Quote fields holding a separator, a quote or a line break, doubling the quotes */
+        private void writeField( String value ) throws IOException {
+            boolean quote = false;
+            for (int i = 0; i < value.length( ) && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                writer.write(value);
+                return;
+            }
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+
+        @Override
+        public void end() {
+        }
+    }
+
+    private static final class JsonSink implements PetSink {
+        private final JsonWriter writer;
+
+        JsonSink( Writer writer ) {
+            this.writer = new JsonWriter(writer);
+        }
+
+        @Override
+        public void begin() throws IOException {
+            writer.beginArray( );
+        }
+
+        @Override
+        public void write( Pet pet ) throws IOException {
+            writer.beginObject( );
+            writer.name(PetEntry._ID).value(pet.id);
+            writer.name(PetEntry.COLUMN_PET_NAME).value(pet.name);
+            writer.name(PetEntry.COLUMN_PET_BREED).value(pet.breed);
+            writer.name(PetEntry.COLUMN_PET_GENDER).value(pet.gender);
+            writer.name(PetEntry.COLUMN_PET_WEIGHT).value(pet.weight);
+            writer.endObject( );
+        }
+
+        @Override
+        public void end() throws IOException {
+            writer.endArray( );
+            writer.flush( );
+        }
+    }
+
+    private static final class CsvSource implements PetSource {
+        private final BufferedReader reader;
+        private final List <String> fields = new ArrayList <>( );
+        private final StringBuilder field = new StringBuilder( );
+        private int nameColumn = -1;
+        private int breedColumn = -1;
+        private int genderColumn = -1;
+        private int weightColumn = -1;
+
+        CsvSource( BufferedReader reader ) throws IOException {
+            this.reader = reader;
+            if (readRecord( )) {
+                for (int i = 0; i < fields.size( ); i++) {
+                    String column = fields.get(i).trim( );
+                    if (PetEntry.COLUMN_PET_NAME.equals(column)) {
+                        nameColumn = i;
+                    } else if (PetEntry.COLUMN_PET_BREED.equals(column)) {
+                        breedColumn = i;
+                    } else if (PetEntry.COLUMN_PET_GENDER.equals(column)) {
+                        genderColumn = i;
+                    } else if (PetEntry.COLUMN_PET_WEIGHT.equals(column)) {
+                        weightColumn = i;
+                    }
+                }
+            }
+            if (nameColumn < 0 || weightColumn < 0) {
+                throw new IOException("CSV header must name the name and weight columns");
+            }
+        }
+
+        @Override
+        public Pet next() throws IOException {
+            if (!readRecord( )) {
+                return null;
+            }
+            try {
+                return new Pet(
+                        field(nameColumn),
+                        breedColumn < 0 ? "" : field(breedColumn),
+                        genderColumn < 0 ? PetEntry.GENDER_UNKNOWN
+                                : Integer.parseInt(field(genderColumn).trim( )),
+                        Integer.parseInt(field(weightColumn).trim( )));
+            } catch (NumberFormatException e) {
+                return UNREADABLE;
+            }
+        }
+
+        private String field( int column ) {
+            return column < fields.size( ) ? fields.get(column) : "";
+        }
+
+        /* Read the next record into fields; a quoted field may span lines. False at the end. */
+        private boolean readRecord() throws IOException {
+            fields.clear( );
+            String line = reader.readLine( );
+            while (line != null && line.isEmpty( )) {
+                line = reader.readLine( );
+            }
+            if (line == null) {
+                return false;
+            }
+            field.setLength(0);
+            boolean quoted = false;
+            int i = 0;
+            while (true) {
+                if (i == line.length( )) {
+                    if (!quoted) {
+                        break;
+                    }
+                    line = reader.readLine( );
+                    if (line == null) {
+                        throw new IOException("Unterminated quote in CSV");
+                    }
+                    field.append('\n');
+                    i = 0;
+                    continue;
+                }
+                char c = line.charAt(i++);
+                if (quoted) {
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i < line.length( ) && line.charAt(i) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString( ));
+                    field.setLength(0);
+                } else if (c != '\r') {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString( ));
+            return true;
+        }
+    }
+
+    private static final class JsonSource implements PetSource {
+        private final JsonReader reader;
+
+        JsonSource( BufferedReader reader ) throws IOException {
+            this.reader = new JsonReader(reader);
+            this.reader.beginArray( );
+        }
+
+        @Override
+        public Pet next() throws IOException {
+            if (!reader.hasNext( )) {
+                reader.endArray( );
+                return null;
+            }
+            if (reader.peek( ) != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue( );
+                return UNREADABLE;
+            }
+            String name = null;
+            String breed = "";
+            int gender = PetEntry.GENDER_UNKNOWN;
+            int weight = 0;
+            boolean readable = true;
+            reader.beginObject( );
+            while (reader.hasNext( )) {
+                String key = reader.nextName( );
+                if (reader.peek( ) == JsonToken.NULL) {
+                    reader.skipValue( );
+                    continue;
+                }
+                try {
+                    if (PetEntry.COLUMN_PET_NAME.equals(key)) {
+                        name = reader.nextString( );
+                    } else if (PetEntry.COLUMN_PET_BREED.equals(key)) {
+                        breed = reader.nextString( );
+                    } else if (PetEntry.COLUMN_PET_GENDER.equals(key)) {
+                        gender = reader.nextInt( );
+                    } else if (PetEntry.COLUMN_PET_WEIGHT.equals(key)) {
+                        weight = reader.nextInt( );
+                    } else {
+                        reader.skipValue( );
+                    }
+                } catch (NumberFormatException | IllegalStateException e) {
+                    // A value of the wrong type is not consumed
+                    reader.skipValue( );
+                    readable = false;
+                }
+            }
+            reader.endObject( );
+            return readable ? new Pet(name, breed, gender, weight) : UNREADABLE;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.android.pets.data;
+
+/**
+ * Storage settings applied by {@link PetDbHelper} every time pets.db is opened.
+ * <p>
+ * The framework only lets the helper configure its primary connection, which runs every
+ * write; the reader connections of the WAL pool keep the SQLite defaults. So a profile only
+ * holds what pays off on that connection: durability of the commits and the page cache used by
+ * writes, imports and index maintenance.
+ * <p>
+ * The profile in use is chosen at build time through the {@code DB_STORAGE_PROFILE}
+ * BuildConfig field (see app/build.gradle), so each build type can trade durability for
+ * write throughput without touching the code.
+ */
+public final class StorageProfile {
+
+    /* Values accepted for the SQLite synchronous pragma */
+    public static final String SYNCHRONOUS_OFF = "OFF";
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    public static final String SYNCHRONOUS_FULL = "FULL";
+
+    /**
+     * WAL, NORMAL sync and a moderate cache. Safe against app crashes; a power loss may only
+     * lose the last committed transactions. Good default for the app.
+     */
+    public static final StorageProfile BALANCED =
+            new StorageProfile("balanced", true, SYNCHRONOUS_NORMAL, 2 * 1024);
+
+    /**
+     * WAL with a bigger page cache for the writer, for devices that import large shelters.
+     */
+    public static final StorageProfile THROUGHPUT =
+            new StorageProfile("throughput", true, SYNCHRONOUS_NORMAL, 8 * 1024);
+
+    /**
+     * WAL with FULL sync: every commit is on disk before it returns.
+     */
+    public static final StorageProfile DURABLE =
+            new StorageProfile("durable", true, SYNCHRONOUS_FULL, 2 * 1024);
+
+    /* Profile name, as used in BuildConfig */
+    public final String name;
+
+    /* Turns on write-ahead logging, so readers don't block behind the writer */
+    public final boolean writeAheadLogging;
+
+    /* Value for PRAGMA synchronous */
+    public final String synchronous;
+
+    /* Page cache size, in KiB, of the primary connection */
+    public final int cacheSizeKb;
+
+    private StorageProfile( String name, boolean writeAheadLogging, String synchronous,
+                            int cacheSizeKb ) {
+        this.name = name;
+        this.writeAheadLogging = writeAheadLogging;
+        this.synchronous = synchronous;
+        this.cacheSizeKb = cacheSizeKb;
+    }
+
+    /**
+     * Returns the profile with the given name, or {@link #BALANCED} if the name is unknown.
+     */
+    public static StorageProfile forName( String name ) {
+        if (THROUGHPUT.name.equals(name)) {
+            return THROUGHPUT;
+        }
+        if (DURABLE.name.equals(name)) {
+            return DURABLE;
+        }
+        return BALANCED;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetCodec;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.ShelterEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes through {@link PetProvider} and checks which notifications its
+ * {@link PetChangeDispatcher} sends once the window is over: one per list that changed, the
+ * item URI when a single pet of the list did.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetChangeDispatcherTest {
+
+    /* Longer than the notification window of the provider */
+    private static final long WINDOW_MILLIS = 1000;
+
+    private PetProvider provider;
+    private ContentResolver resolver;
+
+    /* Records the URIs it is notified of */
+    private static final class Observer extends ContentObserver {
+        final List <Uri> uris = new ArrayList <>( );
+
+        Observer() {
+            super(null);
+        }
+
+        @Override
+        public void onChange( boolean selfChange, Uri uri ) {
+            uris.add(uri);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.setupContentProvider(PetProvider.class,
+                PetContract.CONTENT_AUTHORITY);
+        resolver = RuntimeEnvironment.application.getContentResolver( );
+        // Whatever the startup of the provider notifies
+        ShadowLooper.idleMainLooper(WINDOW_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown( );
+    }
+
+    @Test
+    public void writesToTwoShelters_notifyBoth() {
+        Observer north = observe(ShelterEntry.buildPetsUri("north"));
+        Observer south = observe(ShelterEntry.buildPetsUri("south"));
+        Observer main = observe(PetEntry.CONTENT_URI);
+
+        Uri northPet = insert(ShelterEntry.buildPetsUri("north"));
+        Uri southPet = insert(ShelterEntry.buildPetsUri("south"));
+        ShadowLooper.idleMainLooper(WINDOW_MILLIS);
+
+        assertEquals(Collections.singletonList(northPet), north.uris);
+        assertEquals(Collections.singletonList(southPet), south.uris);
+        assertEquals(Collections.emptyList( ), main.uris);
+    }
+
+    @Test
+    public void severalWritesToOneList_collapseIntoTheListUri() {
+        Observer north = observe(ShelterEntry.buildPetsUri("north"));
+        Observer south = observe(ShelterEntry.buildPetsUri("south"));
+        Observer main = observe(PetEntry.CONTENT_URI);
+
+        insert(ShelterEntry.buildPetsUri("north"));
+        insert(ShelterEntry.buildPetsUri("north"));
+        Uri southPet = insert(ShelterEntry.buildPetsUri("south"));
+        insert(PetEntry.CONTENT_URI);
+        insert(PetEntry.CONTENT_URI);
+        ShadowLooper.idleMainLooper(WINDOW_MILLIS);
+
+        assertEquals(Collections.singletonList(ShelterEntry.buildPetsUri("north")), north.uris);
+        assertEquals(Collections.singletonList(southPet), south.uris);
+        assertEquals(Collections.singletonList(PetEntry.CONTENT_URI), main.uris);
+    }
+
+    @Test
+    public void nextWindow_notifiesAgain() {
+        Observer north = observe(ShelterEntry.buildPetsUri("north"));
+
+        Uri first = insert(ShelterEntry.buildPetsUri("north"));
+        ShadowLooper.idleMainLooper(WINDOW_MILLIS);
+        Uri second = insert(ShelterEntry.buildPetsUri("north"));
+        ShadowLooper.idleMainLooper(WINDOW_MILLIS);
+
+        assertEquals(Arrays.asList(first, second), north.uris);
+    }
+
+    private Observer observe( Uri uri ) {
+        Observer observer = new Observer( );
+        resolver.registerContentObserver(uri, true, observer);
+        return observer;
+    }
+
+    private Uri insert( Uri uri ) {
+        return provider.insert(uri, PetCodec.toContentValues(new Pet("Rex", "Beagle", 1, 12)));
+    }
+}
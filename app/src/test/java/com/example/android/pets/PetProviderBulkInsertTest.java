@@ -0,0 +1,113 @@
+package com.example.android.pets;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetCodec;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a bulk insert rejects the rows that are invalid or break a constraint, reports
+ * their positions, and still inserts every other row of the batch.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetProviderBulkInsertTest {
+
+    /* The provider, keeping its helper so the test can add a constraint */
+    public static final class TestProvider extends PetProvider {
+        PetDbHelper helper;
+
+        @Override
+        protected PetDbHelper createDbHelper( Context context ) {
+            helper = super.createDbHelper(context);
+            return helper;
+        }
+    }
+
+    private TestProvider provider;
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.setupContentProvider(TestProvider.class,
+                PetContract.CONTENT_AUTHORITY);
+        // The helper is built on the first call
+        names( );
+        // A constraint the validation does not know of: names are unique
+        provider.helper.getWritableDatabase( ).execSQL(
+                "CREATE UNIQUE INDEX test_unique_name ON " + PetEntry.TABLE_NAME + " (" +
+                        PetEntry.COLUMN_PET_NAME + ")");
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown( );
+    }
+
+    @Test
+    public void values_rejectInvalidAndConflictingRows() {
+        ContentValues[] values = {
+                PetCodec.toContentValues(new Pet("Rex", "Pug", 1, 10)),
+                PetCodec.toContentValues(new Pet("Rex", "Pug", 1, 10)),
+                PetCodec.toContentValues(new Pet("", "Pug", 1, 10)),
+                PetCodec.toContentValues(new Pet("Bella", "Beagle", 2, 8)),
+                PetCodec.toContentValues(new Pet("Bella", "Beagle", 2, 8)),
+                PetCodec.toContentValues(new Pet("Max", "", 0, 30))};
+        Bundle extras = new Bundle( );
+        extras.putParcelableArray(PetContract.KEY_VALUES, values);
+
+        Bundle result = provider.call(PetContract.METHOD_BULK_INSERT,
+                PetEntry.CONTENT_URI.toString( ), extras);
+
+        assertEquals(3, result.getInt(PetContract.KEY_INSERTED));
+        assertArrayEquals(new int[]{1, 2, 4},
+                result.getIntArray(PetContract.KEY_REJECTED_POSITIONS));
+        assertEquals(Arrays.asList("Rex", "Bella", "Max"), names( ));
+    }
+
+    @Test
+    public void pets_rejectConflictingRows() {
+        List <Pet> pets = new ArrayList <>( );
+        pets.add(new Pet("Rex", "Pug", 1, 10));
+        pets.add(new Pet("Luna", "Pug", 2, 6));
+        pets.add(new Pet("Rex", "Beagle", 1, 12));
+
+        PetProvider.BulkInsertResult result = provider.bulkInsert(pets);
+
+        assertEquals(2, result.inserted);
+        assertArrayEquals(new int[]{2}, result.rejected);
+        assertEquals(Arrays.asList("Rex", "Luna"), names( ));
+    }
+
+    private List <String> names() {
+        List <String> names = new ArrayList <>( );
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI,
+                new String[]{PetEntry.COLUMN_PET_NAME}, null, null, PetEntry._ID);
+        try {
+            while (cursor.moveToNext( )) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close( );
+        }
+        return names;
+    }
+}
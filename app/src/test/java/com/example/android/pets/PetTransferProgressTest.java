@@ -0,0 +1,114 @@
+package com.example.android.pets;
+
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ResultReceiver;
+
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exports and imports through the provider API and checks that the progress receiver of the
+ * caller is told after every chunk, in both directions.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetTransferProgressTest {
+
+    /* Two full chunks and a partial one */
+    private static final int PETS = 2500;
+
+    private PetProvider provider;
+
+    /* Records the progress it is sent, without a handler so it is told right away */
+    private static final class Receiver extends ResultReceiver {
+        final List <Long> pets = Collections.synchronizedList(new ArrayList <Long>( ));
+        final CountDownLatch chunks = new CountDownLatch(3);
+
+        Receiver() {
+            super(null);
+        }
+
+        @Override
+        protected void onReceiveResult( int resultCode, Bundle resultData ) {
+            assertEquals(PetContract.RESULT_PROGRESS, resultCode);
+            pets.add(resultData.getLong(PetContract.KEY_PETS_PROCESSED));
+            chunks.countDown( );
+        }
+    }
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.setupContentProvider(PetProvider.class,
+                PetContract.CONTENT_AUTHORITY);
+        List <Pet> pets = new ArrayList <>( );
+        for (int i = 0; i < PETS; i++) {
+            pets.add(new Pet("Pet " + i, i % 2 == 0 ? "Beagle" : "Pug", i % 3, 1 + i % 60));
+        }
+        assertEquals(0, provider.bulkInsert(pets).rejected.length);
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown( );
+    }
+
+    @Test
+    public void export_reportsProgress() throws Exception {
+        Receiver receiver = new Receiver( );
+        Bundle opts = new Bundle( );
+        opts.putParcelable(PetContract.KEY_PROGRESS_RECEIVER, receiver);
+        AssetFileDescriptor file = provider.openTypedAssetFile(
+                PetEntry.buildExportUri(PetContract.FORMAT_CSV), "*/*", opts);
+        try {
+            // The export is written by another thread
+            assertTrue(receiver.chunks.await(30, TimeUnit.SECONDS));
+        } finally {
+            file.close( );
+        }
+        assertEquals(Arrays.asList(1000L, 2000L, 2500L), receiver.pets);
+    }
+
+    @Test
+    public void import_reportsProgress() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream( );
+        assertEquals(PETS, provider.exportPets(file, PetContract.FORMAT_CSV, null));
+        Uri source = Uri.parse("content://test/pets.csv");
+        ShadowContentResolver resolver = Shadow.extract(
+                RuntimeEnvironment.application.getContentResolver( ));
+        resolver.registerInputStream(source, new ByteArrayInputStream(file.toByteArray( )));
+
+        Receiver receiver = new Receiver( );
+        Bundle extras = new Bundle( );
+        extras.putInt(PetContract.KEY_CHUNK_SIZE, 1000);
+        extras.putParcelable(PetContract.KEY_PROGRESS_RECEIVER, receiver);
+        Bundle result = provider.call(PetContract.METHOD_IMPORT_PETS, source.toString( ),
+                extras);
+        assertEquals(PETS, result.getLong(PetContract.KEY_IMPORTED));
+        assertEquals(Arrays.asList(1000L, 2000L, 2500L), receiver.pets);
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Upgrades a seeded database of every past version to the current one, through
+ * {@link PetDbHelper} as the app does, then checks that nothing was lost: the schema is the one
+ * a new install gets, and the pets, summaries, search index, _id counter and change log match
+ * what was seeded.
+ * <p>
+ * The database of version N is the schema of version 4 taken to N by the steps up to N, then
+ * seeded with what that version could hold: tombstones and a deleted-through mark from version
+ * 8 on, photo versions from version 9 on.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+public class PetMigrationsTest {
+
+    private static final int FIRST_VERSION = 4;
+
+    /* Schema of version 4, the oldest that is upgraded in place */
+    private static final String SQL_CREATE_V4 =
+            "CREATE TABLE pets (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, " +
+                    "breed TEXT NOT NULL, gender INTEGER NOT NULL DEFAULT 0, " +
+                    "weight INTEGER NOT NULL DEFAULT 0)";
+
+    /* Pets seeded below and above the deleted-through mark, many backfill chunks in all */
+    private static final int PETS_BEFORE_MARK = 3000;
+    private static final int PETS_AFTER_MARK = 7000;
+
+    /* The pets with the highest ids are removed for good, so the counter is above the last */
+    private static final int PETS_REMOVED = 5;
+
+    private static final String[] NAMES = {
+            "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Milo"};
+    private static final String[] BREEDS = {
+            "Golden Retriever", "Pug", "Labrador", "Siamese", "Beagle", ""};
+
+    /* Full-text queries, and the pets of the whole table each one must find */
+    private static final String[][] SEARCHES = {
+            {"breed:retriever", "breed = 'Golden Retriever'"},
+            {"breed:pug", "breed = 'Pug'"},
+            {"name:lu*", "name LIKE 'lu%'"}};
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "from version {0}")
+    public static List <Object[]> versions() {
+        List <Object[]> versions = new ArrayList <>( );
+        for (int version = FIRST_VERSION; version < PetDbHelper.DATABASE_VERSION; version++) {
+            versions.add(new Object[]{version});
+        }
+        return versions;
+    }
+
+    private final int version;
+
+    public PetMigrationsTest( int version ) {
+        this.version = version;
+    }
+
+    /* What the seeded database held before the upgrade */
+    private static final class Seeded {
+        List <String> visiblePets;
+        long rows;
+        long sequence;
+        long changes;
+    }
+
+    @Test
+    public void upgradeKeepsEveryPet() {
+        Context context = RuntimeEnvironment.application;
+        String name = "pets_v" + version + ".db";
+        Seeded seeded = seed(context.getDatabasePath(name));
+
+        PetDbHelper helper = new PetDbHelper(context, name, StorageProfile.BALANCED);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase( );
+            helper.runPendingBackfills( );
+
+            assertEquals(freshSchema(context), schema(db));
+            assertEquals(seeded.visiblePets, visiblePets(db));
+            assertEquals(seeded.rows, longFor(db, "SELECT COUNT(*) FROM pets"));
+            assertEquals(seeded.sequence,
+                    longFor(db, "SELECT seq FROM sqlite_sequence WHERE name = 'pets'"));
+            assertSummariesMatch(db);
+            assertSearchMatches(db);
+
+            // Every step after the seeded version ran once, and the backfills are done
+            List <String> steps = new ArrayList <>( );
+            for (int step = version + 1; step <= PetDbHelper.DATABASE_VERSION; step++) {
+                steps.add(String.valueOf(step));
+            }
+            assertEquals(steps, rows(db, "SELECT DISTINCT version FROM migration_log " +
+                    "WHERE version > " + version + " ORDER BY version"));
+            assertFalse(MigrationRunner.hasPendingBackfills(db));
+
+            // The change log keeps its entries, or its backfill logged every visible pet once
+            long changes = longFor(db, "SELECT COUNT(*) FROM pet_changes");
+            if (version >= 11) {
+                assertEquals(seeded.changes, changes);
+            } else {
+                assertEquals(seeded.visiblePets.size( ), changes);
+                assertEquals(changes,
+                        longFor(db, "SELECT COUNT(DISTINCT pet_id) FROM pet_changes"));
+            }
+
+            // The rebuilt table and its triggers take writes: purging keeps the summaries right
+            helper.purgeDeletedPets( );
+            assertEquals(seeded.visiblePets, visiblePets(db));
+            assertEquals(seeded.visiblePets.size( ), longFor(db, "SELECT COUNT(*) FROM pets"));
+            assertSummariesMatch(db);
+            assertSearchMatches(db);
+        } finally {
+            helper.close( );
+        }
+    }
+
+    /* Build the database of the version under test and return what it holds */
+    private Seeded seed( File file ) {
+        file.getParentFile( ).mkdirs( );
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            boolean tombstones = version >= 8;
+            String visible = tombstones ? PetTombstones.SQL_VISIBLE : "1";
+            Random random = new Random(version);
+            db.beginTransaction( );
+            try {
+                db.execSQL(SQL_CREATE_V4);
+                if (version > FIRST_VERSION) {
+                    new MigrationRunner(PetMigrations.all( )).upgrade(db, FIRST_VERSION, version);
+                }
+                insertPets(db, random, PETS_BEFORE_MARK);
+                if (tombstones) {
+                    // What deleting every pet did then: move the mark, empty the summaries
+                    db.execSQL("UPDATE pet_purge_state SET deleted_through = " +
+                            "(SELECT MAX(_id) FROM pets)");
+                    db.execSQL("DELETE FROM pet_gender_stats");
+                    db.execSQL("DELETE FROM pet_breed_stats");
+                }
+                insertPets(db, random, PETS_AFTER_MARK);
+                if (tombstones) {
+                    db.execSQL("INSERT INTO pet_tombstones (_id) SELECT _id FROM pets " +
+                            "WHERE _id % 7 = 0 AND " + visible);
+                }
+                db.execSQL("DELETE FROM pets WHERE _id > (SELECT MAX(_id) FROM pets) - " +
+                        PETS_REMOVED);
+                if (tombstones) {
+                    db.execSQL("DELETE FROM pet_tombstones WHERE _id NOT IN " +
+                            "(SELECT _id FROM pets)");
+                }
+                db.setVersion(version);
+                db.setTransactionSuccessful( );
+            } finally {
+                db.endTransaction( );
+            }
+
+            Seeded seeded = new Seeded( );
+            seeded.visiblePets = rows(db, "SELECT _id, name, breed, gender, weight, " +
+                    (version >= 9 ? "photo" : "0") + " FROM pets WHERE " + visible +
+                    " ORDER BY _id");
+            seeded.rows = longFor(db, "SELECT COUNT(*) FROM pets");
+            seeded.sequence = longFor(db, "SELECT seq FROM sqlite_sequence WHERE name = 'pets'");
+            seeded.changes = version >= 11 ? longFor(db, "SELECT COUNT(*) FROM pet_changes") : 0;
+            return seeded;
+        } finally {
+            db.close( );
+        }
+    }
+
+    private void insertPets( SQLiteDatabase db, Random random, int count ) {
+        boolean photos = version >= 9;
+        SQLiteStatement insert = db.compileStatement(photos
+                ? "INSERT INTO pets (name, breed, gender, weight, photo) VALUES (?, ?, ?, ?, ?)"
+                : "INSERT INTO pets (name, breed, gender, weight) VALUES (?, ?, ?, ?)");
+        try {
+            for (int i = 0; i < count; i++) {
+                insert.bindString(1, NAMES[random.nextInt(NAMES.length)]);
+                insert.bindString(2, BREEDS[random.nextInt(BREEDS.length)]);
+                insert.bindLong(3, random.nextInt(3));
+                insert.bindLong(4, 1 + random.nextInt(60));
+                if (photos) {
+                    insert.bindLong(5, random.nextInt(4));
+                }
+                insert.executeInsert( );
+            }
+        } finally {
+            insert.close( );
+        }
+    }
+
+    private static List <String> freshSchema( Context context ) {
+        PetDbHelper fresh = new PetDbHelper(context, "pets_fresh.db", StorageProfile.BALANCED);
+        try {
+            return schema(fresh.getWritableDatabase( ));
+        } finally {
+            fresh.close( );
+        }
+    }
+
+    /* Every table, index, view and trigger, with its SQL */
+    private static List <String> schema( SQLiteDatabase db ) {
+        List <String> schema = new ArrayList <>( );
+        for (String entry : rows(db, "SELECT type, name, tbl_name, sql FROM sqlite_master " +
+                "WHERE name NOT LIKE 'sqlite_%' ORDER BY type, name")) {
+            schema.add(entry.replaceAll("\\s+", " "));
+        }
+        return schema;
+    }
+
+    private static List <String> visiblePets( SQLiteDatabase db ) {
+        return rows(db, "SELECT _id, name, breed, gender, weight, photo FROM " +
+                PetBreeds.SQL_PETS_WITH_BREED + " WHERE " + PetTombstones.SQL_VISIBLE +
+                " ORDER BY _id");
+    }
+
+    private static void assertSummariesMatch( SQLiteDatabase db ) {
+        String visiblePets = PetBreeds.SQL_PETS_WITH_BREED + " WHERE " + PetTombstones.SQL_VISIBLE;
+        assertEquals(rows(db, "SELECT gender, COUNT(*), SUM(weight) FROM " + visiblePets +
+                        " GROUP BY gender ORDER BY gender"),
+                rows(db, "SELECT gender, count, weight_sum FROM pet_gender_stats " +
+                        "WHERE count > 0 ORDER BY gender"));
+        assertEquals(rows(db, "SELECT breed, COUNT(*) FROM " + visiblePets +
+                        " GROUP BY breed ORDER BY breed"),
+                rows(db, "SELECT breed, count FROM pet_breed_stats ORDER BY breed"));
+    }
+
+    private static void assertSearchMatches( SQLiteDatabase db ) {
+        for (String[] search : SEARCHES) {
+            assertEquals(search[0],
+                    rows(db, "SELECT _id FROM " + PetBreeds.VIEW_PETS + " WHERE " + search[1] +
+                            " ORDER BY _id"),
+                    rows(db, "SELECT docid FROM pets_fts WHERE pets_fts MATCH '" + search[0] +
+                            "' ORDER BY docid"));
+        }
+    }
+
+    private static long longFor( SQLiteDatabase db, String sql ) {
+        return DatabaseUtils.longForQuery(db, sql, null);
+    }
+
+    /* Each row of the query as its columns joined by '|' */
+    private static List <String> rows( SQLiteDatabase db, String sql ) {
+        List <String> rows = new ArrayList <>( );
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext( )) {
+                StringBuilder row = new StringBuilder( );
+                for (int i = 0; i < cursor.getColumnCount( ); i++) {
+                    if (i > 0) {
+                        row.append('|');
+                    }
+                    row.append(cursor.getString(i));
+                }
+                rows.add(row.toString( ));
+            }
+        } finally {
+            cursor.close( );
+        }
+        return rows;
+    }
+}
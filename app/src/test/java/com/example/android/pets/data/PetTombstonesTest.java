@@ -0,0 +1,86 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a new database gets incremental vacuum when it is opened, before WAL, and that
+ * {@link PetTombstones#reclaimSpace} only converts an older file with a full VACUUM while it is
+ * small.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetTombstonesTest {
+
+    /* PRAGMA auto_vacuum values */
+    private static final long AUTO_VACUUM_NONE = 0;
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    @Test
+    public void newDatabase_isIncrementalInWal() {
+        Context context = RuntimeEnvironment.application;
+        PetDbHelper helper = new PetDbHelper(context, "pets_new.db", StorageProfile.BALANCED);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase( );
+            assertEquals(AUTO_VACUUM_INCREMENTAL, pragma(db, "auto_vacuum"));
+            assertEquals("wal", DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null));
+        } finally {
+            helper.close( );
+        }
+    }
+
+    @Test
+    public void smallOldDatabase_isConverted() {
+        SQLiteDatabase db = oldDatabase("pets_small.db", 100);
+        try {
+            PetTombstones.reclaimSpace(db);
+            assertEquals(AUTO_VACUUM_INCREMENTAL, pragma(db, "auto_vacuum"));
+        } finally {
+            db.close( );
+        }
+    }
+
+    @Test
+    public void bigOldDatabase_isLeftAlone() {
+        SQLiteDatabase db = oldDatabase("pets_big.db", 6000);
+        try {
+            PetTombstones.reclaimSpace(db);
+            assertEquals(AUTO_VACUUM_NONE, pragma(db, "auto_vacuum"));
+        } finally {
+            db.close( );
+        }
+    }
+
+    /* A file without auto_vacuum holding rows of 1 KiB, half of them deleted */
+    private static SQLiteDatabase oldDatabase( String name, int rows ) {
+        File file = RuntimeEnvironment.application.getDatabasePath(name);
+        file.getParentFile( ).mkdirs( );
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.execSQL("CREATE TABLE t (_id INTEGER PRIMARY KEY, data BLOB)");
+        db.beginTransaction( );
+        try {
+            for (int i = 0; i < rows; i++) {
+                db.execSQL("INSERT INTO t (data) VALUES (zeroblob(1024))");
+            }
+            db.execSQL("DELETE FROM t WHERE _id % 2 = 0");
+            db.setTransactionSuccessful( );
+        } finally {
+            db.endTransaction( );
+        }
+        assertEquals(AUTO_VACUUM_NONE, pragma(db, "auto_vacuum"));
+        return db;
+    }
+
+    private static long pragma( SQLiteDatabase db, String name ) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + name, null);
+    }
+}
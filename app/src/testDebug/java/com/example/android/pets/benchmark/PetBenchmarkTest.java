@@ -0,0 +1,176 @@
+package com.example.android.pets.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link PetBenchmark} on the JVM, the provider and SQLite under Robolectric, and writes
+ * the report to benchmark.output. Given the report of an earlier run as benchmark.baseline, it
+ * fails when the median latency or the allocations of an operation grew by more than
+ * benchmark.tolerance.
+ * <p>
+ * Skipped by the unit tests; run it with {@code ./gradlew testDebugUnitTest -Pbenchmark}.
+ * The numbers are those of the build machine, so only compare reports of the same machine.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetBenchmarkTest {
+
+    /* Robolectric's SQLite is several times slower than a device's; a million pets takes too
+     * long for every build, ask for it with -Pbenchmark.sizes */
+    private static final String DEFAULT_SIZES = "1000,100000";
+    private static final int DEFAULT_ITERATIONS = 1000;
+    private static final double DEFAULT_TOLERANCE = 0.25;
+
+    /* The metrics compared with the baseline, lower being better */
+    private static final String[] COMPARED = {"p50_us", "alloc_bytes_per_op"};
+
+    /* Bytes allocated by the calling thread, as the HotSpot JVM counts them */
+    private static final PetBenchmark.AllocationCounter JVM_ALLOCATIONS =
+            new PetBenchmark.AllocationCounter( ) {
+                private long started;
+
+                @Override
+                public void start() {
+                    started = allocatedBytes( );
+                }
+
+                @Override
+                public long stop() {
+                    return allocatedBytes( ) - started;
+                }
+
+                private long allocatedBytes() {
+                    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean( ))
+                            .getThreadAllocatedBytes(Thread.currentThread( ).getId( ));
+                }
+            };
+
+    @Test
+    public void run() throws Exception {
+        int iterations = Integer.parseInt(System.getProperty("benchmark.iterations",
+                String.valueOf(DEFAULT_ITERATIONS)));
+        JSONObject report = new PetBenchmark(RuntimeEnvironment.application, iterations,
+                JVM_ALLOCATIONS).run(sizes(System.getProperty("benchmark.sizes", DEFAULT_SIZES)));
+        report.put("runtime", System.getProperty("java.vm.name") + " " +
+                System.getProperty("java.version"));
+
+        String output = System.getProperty("benchmark.output");
+        if (output != null) {
+            write(new File(output), report);
+        }
+
+        String baseline = System.getProperty("benchmark.baseline");
+        if (baseline != null) {
+            double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance",
+                    String.valueOf(DEFAULT_TOLERANCE)));
+            List <String> regressions = regressions(read(new File(baseline)), report, tolerance);
+            if (!regressions.isEmpty( )) {
+                fail("Slower than " + baseline + ":\n" + join(regressions));
+            }
+        }
+    }
+
+    private static int[] sizes( String list ) {
+        String[] parts = list.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim( ));
+        }
+        return sizes;
+    }
+
+    /* Every metric of the report above its baseline value by more than the tolerance */
+    private static List <String> regressions( JSONObject baseline, JSONObject report,
+                                              double tolerance ) throws JSONException {
+        Map <String, JSONObject> before = byOperation(baseline);
+        List <String> regressions = new ArrayList <>( );
+        JSONArray results = report.getJSONArray("results");
+        for (int i = 0; i < results.length( ); i++) {
+            JSONObject result = results.getJSONObject(i);
+            JSONObject old = before.get(key(result));
+            if (old == null) {
+                continue;
+            }
+            for (String metric : COMPARED) {
+                long was = old.getLong(metric);
+                long now = result.getLong(metric);
+                // A floor of 1, so that a metric of 0 does not fail on any change
+                if (now > Math.max(was, 1) * (1 + tolerance)) {
+                    regressions.add(key(result) + " " + metric + ": " + was + " -> " + now);
+                }
+            }
+        }
+        return regressions;
+    }
+
+    private static Map <String, JSONObject> byOperation( JSONObject report )
+            throws JSONException {
+        Map <String, JSONObject> results = new HashMap <>( );
+        JSONArray array = report.getJSONArray("results");
+        for (int i = 0; i < array.length( ); i++) {
+            results.put(key(array.getJSONObject(i)), array.getJSONObject(i));
+        }
+        return results;
+    }
+
+    private static String key( JSONObject result ) throws JSONException {
+        return result.getString("operation") + "@" + result.getInt("rows");
+    }
+
+    private static String join( List <String> lines ) {
+        StringBuilder joined = new StringBuilder( );
+        for (String line : lines) {
+            joined.append(line).append('\n');
+        }
+        return joined.toString( );
+    }
+
+    private static void write( File file, JSONObject report ) throws IOException, JSONException {
+        File dir = file.getParentFile( );
+        assertTrue("Cannot create " + dir, dir == null || dir.isDirectory( ) || dir.mkdirs( ));
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(report.toString(2).getBytes("UTF-8"));
+        } finally {
+            out.close( );
+        }
+    }
+
+    private static JSONObject read( File file ) throws IOException, JSONException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length( )];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return new JSONObject(new String(bytes, 0, read, "UTF-8"));
+        } finally {
+            in.close( );
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.android.pets.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.PetProvider;
+import com.example.android.pets.PetSyncClient;
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link PetSyncClient} against a {@link SyncStubServer}, the provider under Robolectric,
+ * and checks that the acknowledged sequence only moves on a 2xx answer, that a batch leaving a
+ * gap is rejected, and that the replica ends up with the pets of the provider whatever changed
+ * in between.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetSyncClientTest {
+
+    /* More than one batch of the client */
+    private static final int PETS = 700;
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_PHOTO};
+
+    /* The provider, keeping its helper so the test can compact the change log */
+    public static final class TestProvider extends PetProvider {
+        PetDbHelper helper;
+
+        @Override
+        protected PetDbHelper createDbHelper( Context context ) {
+            helper = super.createDbHelper(context);
+            return helper;
+        }
+    }
+
+    private TestProvider provider;
+    private ContentResolver resolver;
+    private SyncStubServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        provider = Robolectric.setupContentProvider(TestProvider.class,
+                PetContract.CONTENT_AUTHORITY);
+        resolver = RuntimeEnvironment.application.getContentResolver( );
+        server = new SyncStubServer( );
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop( );
+        provider.shutdown( );
+    }
+
+    @Test
+    public void sequenceMovesOnlyOnSuccess() throws IOException {
+        SharedPreferences state = state("client");
+        PetSyncClient client = client(state);
+        insertPets(3);
+
+        server.failNext(1);
+        assertRejected(client, state);
+        assertEquals(0, server.pets( ).size( ));
+
+        assertEquals(3, client.sync( ));
+        assertConverged( );
+
+        // A failed batch is sent again, and only it
+        insertPets(1);
+        server.failNext(1);
+        assertRejected(client, state);
+        assertEquals(1, client.sync( ));
+        // Nothing left to send, so nothing is sent
+        assertEquals(0, client.sync( ));
+        assertConverged( );
+        assertEquals(4, server.requests( ));
+    }
+
+    @Test
+    public void gapIsRejected() throws IOException {
+        SharedPreferences firstState = state("first");
+        SharedPreferences secondState = state("second");
+        PetSyncClient first = client(firstState);
+        PetSyncClient second = client(secondState);
+        insertPets(3);
+        first.sync( );
+
+        // The second client resets the server, then moves it past where the first one is
+        second.sync( );
+        insertPets(1);
+        assertEquals(1, second.sync( ));
+
+        int requests = server.requests( );
+        assertRejected(first, firstState);
+        assertEquals(requests + 1, server.requests( ));
+        assertConverged( );
+    }
+
+    @Test
+    public void replicaConverges() throws IOException {
+        PetSyncClient client = client(state("client"));
+        insertPets(PETS);
+        assertEquals(PETS, client.sync( ));
+        assertConverged( );
+
+        // Updates and tombstones
+        for (long id = 1; id <= PETS; id += 7) {
+            ContentValues values = new ContentValues( );
+            values.put(PetEntry.COLUMN_PET_NAME, "Renamed " + id);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + id % 60);
+            assertEquals(1, resolver.update(petUri(id), values, null, null));
+        }
+        for (long id = 3; id <= PETS; id += 11) {
+            resolver.delete(petUri(id), null, null);
+        }
+        client.sync( );
+        assertConverged( );
+
+        // Changes the replica has not seen, then a compaction drops most of their entries
+        for (long id = 2; id <= PETS; id += 5) {
+            ContentValues values = new ContentValues( );
+            values.put(PetEntry.COLUMN_PET_NAME, "Updated " + id);
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+            resolver.update(petUri(id), values, null, null);
+            resolver.delete(petUri(id), null, null);
+        }
+        insertPets(10);
+        provider.helper.purgeDeletedPets( );
+        client.sync( );
+        assertConverged( );
+
+        // Delete every pet, then add some back
+        resolver.delete(PetEntry.CONTENT_URI, null, null);
+        insertPets(20);
+        client.sync( );
+        assertConverged( );
+        assertEquals(20, server.pets( ).size( ));
+
+        // A new replica reads the compacted log from the start
+        provider.helper.purgeDeletedPets( );
+        client(state("new_client")).sync( );
+        assertConverged( );
+    }
+
+    private PetSyncClient client( SharedPreferences state ) throws IOException {
+        return new PetSyncClient(RuntimeEnvironment.application, server.url( ), state);
+    }
+
+    private static SharedPreferences state( String name ) {
+        return RuntimeEnvironment.application.getSharedPreferences(name, Context.MODE_PRIVATE);
+    }
+
+    private void insertPets( int count ) {
+        List <Pet> pets = new ArrayList <>( );
+        for (int i = 0; i < count; i++) {
+            pets.add(new Pet("Pet " + i, i % 2 == 0 ? "Beagle" : "Pug", i % 3, 1 + i % 60));
+        }
+        assertEquals(0, provider.bulkInsert(pets).rejected.length);
+    }
+
+    private static Uri petUri( long id ) {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+    }
+
+    /* The sync must fail and leave the acknowledged sequence where it was */
+    private static void assertRejected( PetSyncClient client, SharedPreferences state ) {
+        Map <String, ?> before = new HashMap <>(state.getAll( ));
+        try {
+            client.sync( );
+            fail("Sync accepted");
+        } catch (IOException expected) {
+            // The server answered something else than 2xx
+        }
+        assertEquals(before, state.getAll( ));
+    }
+
+    /* The replica holds exactly the visible pets of the provider, with the same values */
+    private void assertConverged() {
+        List <String> replica = new ArrayList <>( );
+        for (JSONObject pet : server.pets( ).values( )) {
+            StringBuilder row = new StringBuilder( );
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) {
+                    row.append('|');
+                }
+                row.append(pet.optString(COLUMNS[i], null));
+            }
+            replica.add(row.toString( ));
+        }
+
+        List <String> pets = new ArrayList <>( );
+        Cursor cursor = resolver.query(PetEntry.CONTENT_URI, COLUMNS, null, null,
+                PetEntry._ID);
+        assertTrue(cursor != null);
+        try {
+            while (cursor.moveToNext( )) {
+                StringBuilder row = new StringBuilder( );
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    if (i > 0) {
+                        row.append('|');
+                    }
+                    row.append(cursor.getString(i));
+                }
+                pets.add(row.toString( ));
+            }
+        } finally {
+            cursor.close( );
+        }
+        assertEquals(pets, replica);
+    }
+}